@@ -1,31 +1,57 @@
 package cr.poc.firmador;
 
+import cr.poc.firmador.archive.ArchiveRenewer;
+import cr.poc.firmador.augment.AugmentationQueue;
+import cr.poc.firmador.augment.AugmentationWorker;
+import cr.poc.firmador.batch.BatchInput;
+import cr.poc.firmador.batch.BatchItemResult;
+import cr.poc.firmador.batch.PAdESBatchSigner;
+import cr.poc.firmador.batch.PAdESBatchTimestamper;
 import cr.poc.firmador.card.CardSignInfo;
 import cr.poc.firmador.card.SmartCardManager;
+import cr.poc.firmador.card.TokenSession;
+import cr.poc.firmador.metrics.SigningMetrics;
+import cr.poc.firmador.service.SigningController;
+import cr.poc.firmador.settings.SettingsManager;
 import cr.poc.firmador.sign.FirmadorPAdES;
 import cr.poc.firmador.sign.FirmadorOpenDocument;
 import cr.poc.firmador.sign.FirmadorXAdES;
 import cr.poc.firmador.sign.FirmadorCAdES;
 import cr.poc.firmador.sign.FirmadorWord;
+import cr.poc.firmador.sign.PAdESMultiSigner;
+import cr.poc.firmador.sign.PAdESTemplates;
 import cr.poc.firmador.utils.OfficeDocumentDebugger;
+import eu.europa.esig.dss.enumerations.DigestAlgorithm;
 import eu.europa.esig.dss.model.DSSDocument;
+import eu.europa.esig.dss.model.Digest;
 import eu.europa.esig.dss.model.FileDocument;
+import eu.europa.esig.dss.model.SignatureValue;
+import eu.europa.esig.dss.token.DSSPrivateKeyEntry;
+import eu.europa.esig.dss.utils.Utils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.builder.SpringApplicationBuilder;
 import org.springframework.context.annotation.Bean;
 import org.springframework.util.StringUtils;
+import jakarta.annotation.PreDestroy;
 
 import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.KeyStore;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 
 @SpringBootApplication
 public class FirmadorPocApplication {
 
+    private static final String SERVE_COMMAND = "serve";
+
     private SmartCardManager smartCardManager;
+    private AugmentationWorker serviceWorker;
 
     @Autowired
     public FirmadorPocApplication(SmartCardManager smartCardManager) {
@@ -33,9 +59,42 @@ public class FirmadorPocApplication {
     }
 
     public static void main(String[] args) {
+        if (args.length > 0 && SERVE_COMMAND.equals(args[0])) {
+            // Solo el modo servicio levanta el servidor web, el resto de comandos siguen sin él
+            new SpringApplicationBuilder(FirmadorPocApplication.class)
+                    .profiles(SigningController.PROFILE)
+                    .properties("server.port=" + servicePort(args), "server.address=" + serviceAddress(args))
+                    .run(args);
+            return;
+        }
+
         SpringApplication.run(FirmadorPocApplication.class, args);
     }
 
+    private static int servicePort(String[] args) {
+        for (int i = 1; i < args.length - 1; i++) {
+            if ("--port".equals(args[i])) {
+                return Integer.parseInt(args[i + 1]);
+            }
+        }
+
+        return SettingsManager.getInstance().getAndCreateSettings().portNumber;
+    }
+
+    /**
+     * The service only listens on the loopback interface unless told otherwise: it has no authentication of its own
+     * and sends PINs straight to the card.
+     */
+    private static String serviceAddress(String[] args) {
+        for (int i = 1; i < args.length - 1; i++) {
+            if ("--address".equals(args[i])) {
+                return args[i + 1];
+            }
+        }
+
+        return SettingsManager.getInstance().getAndCreateSettings().serviceAddress;
+    }
+
     @Bean
     public CommandLineRunner commandLineRunner() {
         return args -> {
@@ -44,13 +103,37 @@ public class FirmadorPocApplication {
                 System.out.println("Commands:");
                 System.out.println("  list-cards    - List available smart cards");
                 System.out.println("  sign-pdf      - Sign a PDF file");
+                System.out.println("  sign-multi    - Sign a PDF file with several cards in one pass (every detected card, or --cards in order)");
                 System.out.println("  sign-word     - Sign a Word document");
+                System.out.println("  sign-digest   - Detached CAdES signature of a SHA-256 digest (--digest hex or base64, --name, --output)");
+                System.out.println("  sign-external - Print the signing certificate and, with --digest, the raw signature of a digest prepared by serve (/external/prepare)");
+                System.out.println("  sign-batch    - Sign many PDF files (directory, glob or manifest as --input, directory as --output)");
+                System.out.println("  prepare-template - Add an empty signature field to a PDF template at the configured position (no PIN)");
+                System.out.println("  timestamp-batch - Add a document timestamp to many PDF files (--input and --output as in sign-batch; no PIN)");
+                System.out.println("  augment       - Raise documents signed with --augment-later to the configured level (no PIN)");
+                System.out.println("  archive-renew - Add an archive timestamp to the signed files under --input that are close to expiry (no PIN)");
+                System.out.println("  serve         - Run the HTTP signing service (sign, extend, timestamp, validate; no PIN)");
                 System.out.println("  extract-word  - Extract Word document contents for debugging");
                 System.out.println("    Options:");
                 System.out.println("    --input     - Input file path");
                 System.out.println("    --output    - Output signed file path");
                 System.out.println("    --reason    - Signature reason");
                 System.out.println("    --location  - Signature location");
+                System.out.println("    --field     - Signature field of a prepared template to sign into with sign-pdf and sign-batch, or to add with prepare-template");
+                System.out.println("    --cards     - Comma-separated identifications of the cards of sign-multi, in signing order");
+                System.out.println("    --threads   - Worker threads for batch commands");
+                System.out.println("    --digest    - SHA-256 digest of the document to sign, which is not needed itself");
+                System.out.println("    --name      - File name of the digested document");
+                System.out.println("    --tsa-concurrency - Maximum parallel TSA requests of timestamp-batch (tsaconcurrency setting by default)");
+                System.out.println("    --attempts  - Attempts per document of timestamp-batch before giving up (3 by default)");
+                System.out.println("    --augment-later true - Sign at BASELINE-B now and queue the augmentation");
+                System.out.println("    --append true - Append the signature of sign-word to --input itself instead of writing a new --output file;"
+                        + " the replaced parts stay in the file, so only for consumers that read the ZIP central directory");
+                System.out.println("    --margin    - Days before expiry at which archive-renew renews a timestamp (archiverenewalmargin setting by default)");
+                System.out.println("    --watch true - Keep the augment command polling the queue, or archive-renew running every archiverenewalinterval hours");
+                System.out.println("    --port      - Port of the serve command (portnumber setting by default)");
+                System.out.println("    --address   - Address the serve command listens on (serviceaddress setting, 127.0.0.1 by default)");
+                System.out.println("    --metrics   - Print per-phase signing latencies when done (text or json)");
                 return;
             }
 
@@ -71,6 +154,13 @@ public class FirmadorPocApplication {
                     }
                     handleSignPdf(args);
                     break;
+                case "sign-multi":
+                    if (args.length < 6) {
+                        System.out.println("Missing required arguments for sign-multi");
+                        return;
+                    }
+                    handleSignMulti(args);
+                    break;
                 case "sign-word":
                     if (args.length < 5) {
                         System.out.println("Missing required arguments for sign-word");
@@ -78,6 +168,54 @@ public class FirmadorPocApplication {
                     }
                     handleSignWord(args);
                     break;
+                case "sign-digest":
+                    if (args.length < 6) {
+                        System.out.println("Missing required arguments for sign-digest");
+                        return;
+                    }
+                    handleSignDigest(args);
+                    break;
+                case "sign-external":
+                    if (args.length < 2) {
+                        System.out.println("Missing required arguments for sign-external");
+                        return;
+                    }
+                    handleSignExternal(args);
+                    break;
+                case "sign-batch":
+                    if (args.length < 6) {
+                        System.out.println("Missing required arguments for sign-batch");
+                        return;
+                    }
+                    handleSignBatch(args);
+                    break;
+                case "prepare-template":
+                    if (args.length < 5) {
+                        System.out.println("Missing required arguments for prepare-template");
+                        return;
+                    }
+                    handlePrepareTemplate(args);
+                    break;
+                case "timestamp-batch":
+                    if (args.length < 5) {
+                        System.out.println("Missing required arguments for timestamp-batch");
+                        return;
+                    }
+                    handleTimestampBatch(args);
+                    break;
+                case "augment":
+                    handleAugment(args);
+                    break;
+                case "archive-renew":
+                    if (args.length < 3) {
+                        System.out.println("Missing required arguments for archive-renew");
+                        return;
+                    }
+                    handleArchiveRenew(args);
+                    break;
+                case SERVE_COMMAND:
+                    handleServe();
+                    break;
                 case "extract-word":
                     if (args.length < 3) {
                         System.out.println("Usage: extract-word --input <word-file>");
@@ -88,9 +226,27 @@ public class FirmadorPocApplication {
                 default:
                     System.out.println("Unknown command: " + command);
             }
+
+            printMetrics(args);
         };
     }
 
+    private void printMetrics(String[] args) {
+        String format = null;
+        for (int i = 1; i < args.length - 1; i++) {
+            if ("--metrics".equals(args[i])) {
+                format = args[i + 1];
+            }
+        }
+
+        SigningMetrics metrics = SigningMetrics.getInstance();
+        if (format == null || metrics.isEmpty()) {
+            return;
+        }
+
+        System.out.println("json".equalsIgnoreCase(format) ? metrics.dumpJson() : metrics.dumpText());
+    }
+
     private void listSmartCards(String... args) throws Throwable {
         try {
             // Create detector with PIN
@@ -135,6 +291,8 @@ public class FirmadorPocApplication {
         String outputPath = null;
         String reason = null;
         String location = null;
+        String field = null;
+        boolean augmentLater = false;
 
         // Parse arguments
         for (int i = 2; i < args.length; i += 2) {
@@ -153,6 +311,12 @@ public class FirmadorPocApplication {
                 case "--location":
                     location = args[i + 1];
                     break;
+                case "--field":
+                    field = args[i + 1];
+                    break;
+                case "--augment-later":
+                    augmentLater = Boolean.parseBoolean(args[i + 1]);
+                    break;
             }
         }
 
@@ -175,26 +339,533 @@ public class FirmadorPocApplication {
             CardSignInfo card = cards.get(0);
 
             // Create PDF signer
-            FirmadorPAdES signer = new FirmadorPAdES();
+            try (FirmadorPAdES signer = new FirmadorPAdES()) {
+                signer.setAugmentLater(augmentLater);
+                if (field != null) {
+                    signer.useTemplateField(field);
+                }
 
-            // Sign document
-            File inputFile = new File(inputPath);
-            DSSDocument toSignDocument = new FileDocument(inputFile);
-            DSSDocument signedDocument = signer.sign(toSignDocument, card, reason, location, null, null, false);
+                // Sign document
+                File inputFile = new File(inputPath);
+                DSSDocument toSignDocument = new FileDocument(inputFile);
+                DSSDocument signedDocument = signer.sign(toSignDocument, card, reason, location, null, null, false);
+
+                // Save signed document
+                File outputFile = new File(outputPath);
+                signedDocument.save(outputPath);
+
+                System.out.println("Document signed successfully");
+                System.out.println("Output: " + outputFile.getAbsolutePath());
+
+                if (augmentLater) {
+                    signer.queueAugmentation(AugmentationQueue.getDefault(), outputFile.toPath(), null);
+                    System.out.println("Queued for augmentation to " + SettingsManager.getInstance().getAndCreateSettings().getPAdESLevel());
+                }
+            }
+
+        } catch (Throwable e) {
+            System.err.println("Error signing document: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private void handleSignMulti(String[] args) {
+        // Get PIN from second argument
+        String pin = args[1];
+        if (pin == null || pin.isEmpty()) {
+            System.out.println("PIN is required as second argument");
+            return;
+        }
+
+        String inputPath = null;
+        String outputPath = null;
+        String reason = null;
+        String location = null;
+        String cardIds = null;
+
+        // Parse arguments
+        for (int i = 2; i < args.length; i += 2) {
+            if (i + 1 >= args.length) break;
+
+            switch (args[i]) {
+                case "--input":
+                    inputPath = args[i + 1];
+                    break;
+                case "--output":
+                    outputPath = args[i + 1];
+                    break;
+                case "--reason":
+                    reason = args[i + 1];
+                    break;
+                case "--location":
+                    location = args[i + 1];
+                    break;
+                case "--cards":
+                    cardIds = args[i + 1];
+                    break;
+            }
+        }
 
-            // Save signed document
-            File outputFile = new File(outputPath);
-            signedDocument.save(outputPath);
+        // Validate required arguments
+        if (inputPath == null || outputPath == null) {
+            System.out.println("Missing required input/output paths");
+            return;
+        }
 
-            System.out.println("Document signed successfully");
-            System.out.println("Output: " + outputFile.getAbsolutePath());
+        try {
+            // Get available cards
+            List<CardSignInfo> detected = smartCardManager.readCertificatesInfo(Optional.of(new KeyStore.PasswordProtection(pin.toCharArray())));
+            List<CardSignInfo> cards = new ArrayList<>();
+            if (cardIds == null) {
+                cards.addAll(detected);
+            } else {
+                for (String cardId : cardIds.split(",")) {
+                    Optional<CardSignInfo> card = detected.stream().filter(c -> cardId.trim().equals(c.getIdentification())).findFirst();
+                    if (card.isEmpty()) {
+                        System.out.println("Card not detected: " + cardId.trim());
+                        return;
+                    }
+                    cards.add(card.get());
+                }
+            }
 
+            if (cards.isEmpty()) {
+                System.out.println("No smart cards detected");
+                return;
+            }
+
+            // Los archivos PKCS#12 configurados se detectan sin PIN, se abren con el mismo de la línea de comandos
+            for (CardSignInfo card : cards) {
+                if (card.getPin() == null) {
+                    card.setPin(new KeyStore.PasswordProtection(pin.toCharArray()));
+                }
+            }
+
+            try (PAdESMultiSigner signer = new PAdESMultiSigner()) {
+                DSSDocument signedDocument = signer.sign(new FileDocument(inputPath), cards, reason, location);
+                if (signedDocument == null) {
+                    System.err.println("Error signing document, see the log for details");
+                    return;
+                }
+
+                signedDocument.save(outputPath);
+                System.out.println("Document signed by " + cards.size() + " cards");
+                System.out.println("Output: " + new File(outputPath).getAbsolutePath());
+            }
         } catch (Throwable e) {
             System.err.println("Error signing document: " + e.getMessage());
             e.printStackTrace();
         }
     }
 
+    private void handleSignBatch(String[] args) {
+        // Get PIN from second argument
+        String pin = args[1];
+        if (pin == null || pin.isEmpty()) {
+            System.out.println("PIN is required as second argument");
+            return;
+        }
+
+        String inputPath = null;
+        String outputPath = null;
+        String reason = null;
+        String location = null;
+        String field = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean augmentLater = false;
+
+        // Parse arguments
+        for (int i = 2; i < args.length; i += 2) {
+            if (i + 1 >= args.length) break;
+
+            switch (args[i]) {
+                case "--input":
+                    inputPath = args[i + 1];
+                    break;
+                case "--output":
+                    outputPath = args[i + 1];
+                    break;
+                case "--reason":
+                    reason = args[i + 1];
+                    break;
+                case "--location":
+                    location = args[i + 1];
+                    break;
+                case "--field":
+                    field = args[i + 1];
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--augment-later":
+                    augmentLater = Boolean.parseBoolean(args[i + 1]);
+                    break;
+            }
+        }
+
+        // Validate required arguments
+        if (inputPath == null || outputPath == null) {
+            System.out.println("Missing required input/output paths");
+            return;
+        }
+
+        try (PAdESBatchSigner batchSigner = new PAdESBatchSigner(threads)) {
+            List<Path> inputs = BatchInput.resolve(inputPath, ".pdf");
+            if (inputs.isEmpty()) {
+                System.out.println("No PDF files found for: " + inputPath);
+                return;
+            }
+
+            // Get available cards
+            List<CardSignInfo> cards = smartCardManager.readCertificatesInfo(Optional.of(new KeyStore.PasswordProtection(pin.toCharArray())));
+
+            if (cards.isEmpty()) {
+                System.out.println("No smart cards detected");
+                return;
+            }
+
+            // Use the first available card
+            CardSignInfo card = cards.get(0);
+
+            if (augmentLater) {
+                batchSigner.setAugmentationQueue(AugmentationQueue.getDefault());
+            }
+            batchSigner.setSignatureFieldId(field);
+
+            long start = System.nanoTime();
+            List<BatchItemResult> results = batchSigner.sign(inputs, Path.of(outputPath), card, reason, location);
+            double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+
+            long signed = results.stream().filter(BatchItemResult::success).count();
+            System.out.printf("Signed %d of %d documents in %.1f s (%.2f documents/s)%n", signed, results.size(), seconds, signed / Math.max(seconds, 0.001));
+            for (BatchItemResult result : results) {
+                if (!result.success()) {
+                    System.err.println("Failed: " + result.input() + " - " + result.error());
+                }
+            }
+        } catch (Throwable e) {
+            System.err.println("Error signing batch: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private void handlePrepareTemplate(String[] args) {
+        String inputPath = null;
+        String outputPath = null;
+        String field = PAdESTemplates.DEFAULT_FIELD_ID;
+
+        // Parse arguments
+        for (int i = 1; i < args.length; i += 2) {
+            if (i + 1 >= args.length) break;
+
+            switch (args[i]) {
+                case "--input":
+                    inputPath = args[i + 1];
+                    break;
+                case "--output":
+                    outputPath = args[i + 1];
+                    break;
+                case "--field":
+                    field = args[i + 1];
+                    break;
+            }
+        }
+
+        // Validate required arguments
+        if (inputPath == null || outputPath == null) {
+            System.out.println("Missing required input/output paths");
+            return;
+        }
+
+        try {
+            DSSDocument template = PAdESTemplates.getInstance().prepare(new FileDocument(inputPath), field,
+                    SettingsManager.getInstance().getAndCreateSettings());
+            template.save(outputPath);
+            System.out.println("Template prepared with signature field " + field);
+            System.out.println("Output: " + new File(outputPath).getAbsolutePath());
+        } catch (Throwable e) {
+            System.err.println("Error preparing template: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private void handleTimestampBatch(String[] args) {
+        String inputPath = null;
+        String outputPath = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int tsaConcurrency = SettingsManager.getInstance().getAndCreateSettings().tsaConcurrency;
+        int attempts = 3;
+
+        // Parse arguments
+        for (int i = 1; i < args.length; i += 2) {
+            if (i + 1 >= args.length) break;
+
+            switch (args[i]) {
+                case "--input":
+                    inputPath = args[i + 1];
+                    break;
+                case "--output":
+                    outputPath = args[i + 1];
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--tsa-concurrency":
+                    tsaConcurrency = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--attempts":
+                    attempts = Integer.parseInt(args[i + 1]);
+                    break;
+            }
+        }
+
+        // Validate required arguments
+        if (inputPath == null || outputPath == null) {
+            System.out.println("Missing required input/output paths");
+            return;
+        }
+
+        try (PAdESBatchTimestamper timestamper = new PAdESBatchTimestamper(threads, tsaConcurrency, attempts)) {
+            List<Path> inputs = BatchInput.resolve(inputPath, ".pdf");
+            if (inputs.isEmpty()) {
+                System.out.println("No PDF files found for: " + inputPath);
+                return;
+            }
+
+            long start = System.nanoTime();
+            List<BatchItemResult> results = timestamper.timestamp(inputs, Path.of(outputPath));
+            double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+
+            long timestamped = results.stream().filter(BatchItemResult::success).count();
+            System.out.printf("Timestamped %d of %d documents in %.1f s (%.2f documents/s, %d retries)%n", timestamped, results.size(), seconds, timestamped / Math.max(seconds, 0.001), timestamper.getRetries());
+            double[] latencies = timestamper.getTsaLatenciesMillis();
+            if (latencies.length > 0) {
+                System.out.printf("TSA latency over %d requests: p50 %.0f ms, p95 %.0f ms, p99 %.0f ms, max %.0f ms%n", latencies.length,
+                        percentile(latencies, 0.5), percentile(latencies, 0.95), percentile(latencies, 0.99), latencies[latencies.length - 1]);
+            }
+            for (BatchItemResult result : results) {
+                if (!result.success()) {
+                    System.err.println("Failed: " + result.input() + " - " + result.error());
+                }
+            }
+        } catch (Throwable e) {
+            System.err.println("Error timestamping batch: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    // Percentil por rango más cercano sobre valores ordenados
+    private static double percentile(double[] sorted, double percentile) {
+        int rank = (int) Math.ceil(percentile * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+
+    private void handleSignDigest(String[] args) {
+        // Get PIN from second argument
+        String pin = args[1];
+        if (pin == null || pin.isEmpty()) {
+            System.out.println("PIN is required as second argument");
+            return;
+        }
+
+        String digest = null;
+        String name = null;
+        String outputPath = null;
+
+        // Parse arguments
+        for (int i = 2; i < args.length; i += 2) {
+            if (i + 1 >= args.length) break;
+
+            switch (args[i]) {
+                case "--digest":
+                    digest = args[i + 1];
+                    break;
+                case "--name":
+                    name = args[i + 1];
+                    break;
+                case "--output":
+                    outputPath = args[i + 1];
+                    break;
+            }
+        }
+
+        if (digest == null || outputPath == null) {
+            System.out.println("Missing required digest/output");
+            return;
+        }
+
+        try {
+            byte[] digestValue = FirmadorCAdES.parseDigest(digest);
+
+            // Get available cards
+            List<CardSignInfo> cards = smartCardManager.readCertificatesInfo(Optional.of(new KeyStore.PasswordProtection(pin.toCharArray())));
+
+            if (cards.isEmpty()) {
+                System.out.println("No smart cards detected");
+                return;
+            }
+
+            // Use the first available card
+            DSSDocument signature = new FirmadorCAdES().signDigest(digestValue, name, cards.get(0));
+            if (signature == null) {
+                System.err.println("Error signing digest, see the log for details");
+                return;
+            }
+
+            signature.save(outputPath);
+            System.out.println("Detached signature saved to: " + outputPath);
+        } catch (Throwable e) {
+            System.err.println("Error signing digest: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private void handleSignExternal(String[] args) {
+        // Get PIN from second argument
+        String pin = args[1];
+        if (pin == null || pin.isEmpty()) {
+            System.out.println("PIN is required as second argument");
+            return;
+        }
+
+        String digest = null;
+
+        // Parse arguments
+        for (int i = 2; i < args.length; i += 2) {
+            if (i + 1 >= args.length) break;
+
+            if ("--digest".equals(args[i])) {
+                digest = args[i + 1];
+            }
+        }
+
+        try {
+            // Get available cards
+            List<CardSignInfo> cards = smartCardManager.readCertificatesInfo(Optional.of(new KeyStore.PasswordProtection(pin.toCharArray())));
+
+            if (cards.isEmpty()) {
+                System.out.println("No smart cards detected");
+                return;
+            }
+
+            // Use the first available card
+            FirmadorPAdES signer = new FirmadorPAdES();
+            TokenSession session = signer.getTokenSession(cards.get(0));
+            DSSPrivateKeyEntry privateKey = session != null ? signer.getPrivateKey(session) : null;
+            if (privateKey == null) {
+                System.err.println("No signing key available, see the log for details");
+                return;
+            }
+
+            System.out.println("Certificate: " + Utils.toBase64(privateKey.getCertificate().getEncoded()));
+            if (digest != null) {
+                SignatureValue signatureValue = session.signDigest(new Digest(DigestAlgorithm.SHA256, FirmadorCAdES.parseDigest(digest)));
+                System.out.println("Signature: " + Utils.toBase64(signatureValue.getValue()));
+            }
+        } catch (Throwable e) {
+            System.err.println("Error signing external digest: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private void handleAugment(String[] args) {
+        boolean watch = false;
+
+        // Parse arguments
+        for (int i = 1; i < args.length; i += 2) {
+            if (i + 1 >= args.length) break;
+
+            if ("--watch".equals(args[i])) {
+                watch = Boolean.parseBoolean(args[i + 1]);
+            }
+        }
+
+        try {
+            AugmentationQueue queue = AugmentationQueue.getDefault();
+            try (AugmentationWorker worker = new AugmentationWorker(queue)) {
+                long pollMillis = SettingsManager.getInstance().getAndCreateSettings().augmentPollInterval * 1000L;
+                do {
+                    int augmented = worker.processDue();
+                    System.out.println("Augmented " + augmented + " documents, " + queue.pending().size() + " pending in " + queue.getDirectory());
+                    if (watch) {
+                        Thread.sleep(pollMillis);
+                    }
+                } while (watch);
+            }
+        } catch (Throwable e) {
+            System.err.println("Error processing augmentation queue: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private void handleArchiveRenew(String[] args) {
+        String inputPath = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int margin = SettingsManager.getInstance().getAndCreateSettings().archiveRenewalMargin;
+        boolean watch = false;
+
+        // Parse arguments
+        for (int i = 1; i < args.length; i += 2) {
+            if (i + 1 >= args.length) break;
+
+            switch (args[i]) {
+                case "--input":
+                    inputPath = args[i + 1];
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--margin":
+                    margin = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--watch":
+                    watch = Boolean.parseBoolean(args[i + 1]);
+                    break;
+            }
+        }
+
+        if (inputPath == null) {
+            System.out.println("Missing required input path");
+            return;
+        }
+
+        try (ArchiveRenewer renewer = new ArchiveRenewer(Path.of(inputPath), threads, margin)) {
+            long intervalMillis = SettingsManager.getInstance().getAndCreateSettings().archiveRenewalInterval * 3_600_000L;
+            do {
+                ArchiveRenewer.RenewalRun run = renewer.renewDue();
+                System.out.println("Renewed " + run.renewed() + " of " + run.due() + " documents due within " + margin + " days, " + run.indexed() + " files indexed in " + renewer.getIndex().getFile());
+                if (run.skipped() > 0) {
+                    System.out.println(run.skipped() + " documents skipped: the current TSA certificate does not outlive their timestamp");
+                }
+                if (watch) {
+                    Thread.sleep(intervalMillis);
+                }
+            } while (watch);
+        } catch (Throwable e) {
+            System.err.println("Error renewing archive timestamps: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private void handleServe() {
+        try {
+            // Los documentos firmados con --augment-later por otros procesos se amplían en este mismo servicio
+            this.serviceWorker = new AugmentationWorker(AugmentationQueue.getDefault());
+            this.serviceWorker.start(SettingsManager.getInstance().getAndCreateSettings().augmentPollInterval);
+        } catch (Throwable e) {
+            System.err.println("Error starting augmentation worker: " + e.getMessage());
+        }
+
+        System.out.println("Signing service ready: POST /sign/{pades|xades|cades|asic|ooxml}, /sign/digest, /extend/{format}, /timestamp, /validate");
+    }
+
+    @PreDestroy
+    public void stopService() {
+        if (this.serviceWorker != null) {
+            this.serviceWorker.close();
+        }
+    }
+
     private void handleSignWord(String[] args) {
         try (FirmadorWord signer = new FirmadorWord()) {
             // Get PIN from second argument
@@ -206,6 +877,7 @@ public class FirmadorPocApplication {
 
             String inputPath = null;
             String outputPath = null;
+            boolean append = false;
 
             // Parse arguments
             for (int i = 2; i < args.length; i += 2) {
@@ -218,11 +890,14 @@ public class FirmadorPocApplication {
                     case "--output":
                         outputPath = args[i + 1];
                         break;
+                    case "--append":
+                        append = Boolean.parseBoolean(args[i + 1]);
+                        break;
                 }
             }
 
             // Validate required arguments
-            if (inputPath == null || outputPath == null) {
+            if (inputPath == null || (outputPath == null && !append)) {
                 System.out.println("Missing required input/output paths");
                 return;
             }
@@ -234,12 +909,10 @@ public class FirmadorPocApplication {
                     System.err.println("Input file does not exist: " + inputPath);
                     return;
                 }
-
-                // Create output directory if it doesn't exist
-                File outputFile = new File(outputPath);
-                File outputDir = outputFile.getParentFile();
-                if (outputDir != null && !outputDir.exists()) {
-                    outputDir.mkdirs();
+                // El paquete original se lee mientras se escribe el firmado
+                if (!append && new File(outputPath).exists() && Files.isSameFile(inputFile.toPath(), Path.of(outputPath))) {
+                    System.err.println("Output file can not be the input file, use --append true to sign it in place");
+                    return;
                 }
 
                 // Get available cards
@@ -253,6 +926,24 @@ public class FirmadorPocApplication {
                 // Use the first available card
                 CardSignInfo card = cards.get(0);
 
+                if (append) {
+                    // Sólo se escriben las partes de la firma al final del paquete
+                    if (!signer.signInPlace(inputFile, card)) {
+                        System.err.println("Failed to sign document");
+                        return;
+                    }
+                    System.out.println("Document signed successfully");
+                    System.out.println("Output: " + inputFile.getAbsolutePath());
+                    return;
+                }
+
+                // Create output directory if it doesn't exist
+                File outputFile = new File(outputPath);
+                File outputDir = outputFile.getParentFile();
+                if (outputDir != null && !outputDir.exists()) {
+                    outputDir.mkdirs();
+                }
+
                 // Sign document
                 DSSDocument toSignDocument = new FileDocument(inputFile);
                 DSSDocument signedDocument = signer.sign(toSignDocument, card);
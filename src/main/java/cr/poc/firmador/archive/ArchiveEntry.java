@@ -0,0 +1,48 @@
+package cr.poc.firmador.archive;
+
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * A signed file of the archive as last seen by the {@link ArchiveIndex}.
+ *
+ * @param expiryMillis time at which the latest timestamp of the file stops being verifiable, that is the earliest
+ *                     expiry of the TSA certificate and its issuers; {@link Long#MAX_VALUE} for files with no signature
+ * @param renewable    false for files that can not be renewed as they are, such as detached signatures whose signed
+ *                     content is not in the archive; they are left alone until they change
+ */
+public record ArchiveEntry(Path document, Format format, long size, long modifiedMillis, long expiryMillis, boolean renewable) {
+
+    public enum Format {
+        PADES,
+        XADES,
+        CADES,
+        OPENDOCUMENT;
+
+        /**
+         * Format of a signed file by its extension, {@code null} if it is not one the archive keeps alive.
+         */
+        public static Format of(Path file) {
+            String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+            String extension = name.substring(name.lastIndexOf('.') + 1);
+            return switch (extension) {
+                case "pdf" -> PADES;
+                case "xml" -> XADES;
+                case "p7s", "p7m" -> CADES;
+                case "odt", "ods", "odp", "odg" -> OPENDOCUMENT;
+                default -> null;
+            };
+        }
+    }
+
+    public boolean isSigned() {
+        return this.expiryMillis != Long.MAX_VALUE;
+    }
+
+    /**
+     * Whether the file still has the size and modification time it had when it was indexed.
+     */
+    boolean matches(long size, long modifiedMillis) {
+        return this.size == size && this.modifiedMillis == modifiedMillis;
+    }
+}
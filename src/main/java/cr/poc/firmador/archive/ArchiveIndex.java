@@ -0,0 +1,280 @@
+package cr.poc.firmador.archive;
+
+import cr.poc.firmador.settings.SettingsManager;
+import eu.europa.esig.dss.enumerations.DigestAlgorithm;
+import eu.europa.esig.dss.model.FileDocument;
+import eu.europa.esig.dss.model.ReferenceValidation;
+import eu.europa.esig.dss.model.x509.CertificateToken;
+import eu.europa.esig.dss.spi.DSSUtils;
+import eu.europa.esig.dss.spi.signature.AdvancedSignature;
+import eu.europa.esig.dss.spi.validation.CommonCertificateVerifier;
+import eu.europa.esig.dss.spi.x509.CertificateValidity;
+import eu.europa.esig.dss.spi.x509.tsp.TimestampToken;
+import eu.europa.esig.dss.utils.Utils;
+import eu.europa.esig.dss.validation.SignedDocumentValidator;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Stream;
+
+/**
+ * Index of the signed files of an archive with the expiry of their latest timestamp, stored as one tab-separated
+ * line per file.
+ * <p>
+ * Refreshing the index only parses the files that are new or whose size or modification time changed since they
+ * were indexed, and parsing only reads the timestamps and certificates embedded in the signatures: no chain is
+ * built and no revocation data is fetched. The index is written to a temporary file and moved over the old one, so
+ * a crash leaves the previous index, and files changed in the meantime are simply parsed again on the next refresh.
+ */
+public class ArchiveIndex {
+    private static final Logger LOG = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final String INDEX_DIR = "archive-index";
+    private static final int MAX_CHAIN_LENGTH = 8;
+
+    private final Path file;
+    private final Map<Path, ArchiveEntry> entries = new ConcurrentHashMap<>();
+
+    private ArchiveIndex(Path file) {
+        this.file = file;
+    }
+
+    public static ArchiveIndex load(Path file) throws IOException {
+        ArchiveIndex index = new ArchiveIndex(file);
+        if (!Files.isRegularFile(file)) {
+            return index;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    ArchiveEntry entry = parse(line);
+                    index.entries.put(entry.document(), entry);
+                } catch (RuntimeException e) {
+                    LOG.warn("Línea ilegible en el índice de archivo {}: {}", file, e.getMessage());
+                }
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * Index of the archive at {@code root}, stored in the configuration directory.
+     */
+    public static ArchiveIndex forArchive(Path root) throws IOException {
+        String key = Utils.toHex(DSSUtils.digest(DigestAlgorithm.SHA256, root.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8)));
+        Path directory = Files.createDirectories(SettingsManager.getInstance().getConfigDir().resolve(INDEX_DIR));
+        return load(directory.resolve(key.substring(0, 16) + ".tsv"));
+    }
+
+    public Path getFile() {
+        return this.file;
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    public ArchiveEntry get(Path document) {
+        return this.entries.get(document);
+    }
+
+    /**
+     * Brings the index up to date with the files under {@code root}, parsing the new and changed ones on
+     * {@code executor} and dropping the ones that no longer exist.
+     *
+     * @return number of files parsed
+     */
+    public int refresh(Path root, ExecutorService executor) throws IOException {
+        Path base = root.toAbsolutePath().normalize();
+        Set<Path> present = new HashSet<>();
+        List<CompletableFuture<Void>> inspections = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(base)) {
+            for (Path document : files.filter(Files::isRegularFile).toList()) {
+                ArchiveEntry.Format format = ArchiveEntry.Format.of(document);
+                if (format == null) {
+                    continue;
+                }
+
+                present.add(document);
+                BasicFileAttributes attributes = Files.readAttributes(document, BasicFileAttributes.class);
+                long size = attributes.size();
+                long modified = attributes.lastModifiedTime().toMillis();
+                ArchiveEntry entry = this.entries.get(document);
+                if (entry == null || !entry.matches(size, modified)) {
+                    inspections.add(CompletableFuture.runAsync(() -> this.put(inspect(document, format, size, modified)), executor));
+                }
+            }
+        }
+
+        CompletableFuture.allOf(inspections.toArray(CompletableFuture[]::new)).join();
+        int removed = this.entries.size();
+        this.entries.keySet().removeIf(document -> document.startsWith(base) && !present.contains(document));
+        removed -= this.entries.size();
+        LOG.info("Índice de {} actualizado: {} archivos analizados, {} eliminados, {} en total", base, inspections.size(), removed, this.entries.size());
+        return inspections.size();
+    }
+
+    /**
+     * Parses {@code document} again, typically after it has been renewed.
+     */
+    public ArchiveEntry reindex(Path document, ArchiveEntry.Format format) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(document, BasicFileAttributes.class);
+        ArchiveEntry entry = inspect(document, format, attributes.size(), attributes.lastModifiedTime().toMillis());
+        this.put(entry);
+        return entry;
+    }
+
+    public void put(ArchiveEntry entry) {
+        this.entries.put(entry.document(), entry);
+    }
+
+    /**
+     * Renewable signed files whose latest timestamp expires before {@code untilMillis}, the closest to expiry first.
+     */
+    public List<ArchiveEntry> expiringBefore(long untilMillis) {
+        return this.entries.values().stream()
+                .filter(entry -> entry.isSigned() && entry.renewable() && entry.expiryMillis() < untilMillis)
+                .sorted(Comparator.comparingLong(ArchiveEntry::expiryMillis))
+                .toList();
+    }
+
+    public synchronized void save() throws IOException {
+        Files.createDirectories(this.file.toAbsolutePath().getParent());
+        Path tmp = Files.createTempFile(this.file.toAbsolutePath().getParent(), "index", ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                writer.write("# Firmador - índice de sellos de archivo: vencimiento, formato, tamaño, modificación, renovable, documento");
+                writer.newLine();
+                for (ArchiveEntry entry : this.entries.values()) {
+                    writer.write(entry.expiryMillis() + "\t" + entry.format().name() + "\t" + entry.size() + "\t"
+                            + entry.modifiedMillis() + "\t" + entry.renewable() + "\t" + entry.document());
+                    writer.newLine();
+                }
+            }
+            Files.move(tmp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static ArchiveEntry parse(String line) {
+        String[] fields = line.split("\t", 6);
+        return new ArchiveEntry(Path.of(fields[5]), ArchiveEntry.Format.valueOf(fields[1]), Long.parseLong(fields[2]),
+                Long.parseLong(fields[3]), Long.parseLong(fields[0]), Boolean.parseBoolean(fields[4]));
+    }
+
+    private static ArchiveEntry inspect(Path document, ArchiveEntry.Format format, long size, long modified) {
+        long expiry;
+        boolean renewable = true;
+        try {
+            SignedDocumentValidator validator = SignedDocumentValidator.fromDocument(new FileDocument(document.toFile()));
+            validator.setCertificateVerifier(new CommonCertificateVerifier());
+            expiry = latestTimestampExpiry(validator);
+            renewable = hasAllSignedContent(validator);
+            if (!renewable) {
+                LOG.warn("{} tiene firmas cuyo contenido no está en el documento, no se renovará mientras no cambie", document);
+            }
+        } catch (Exception e) {
+            // Se deja como no firmado hasta que el archivo cambie, para no analizarlo en cada pasada
+            LOG.warn("No se pudieron leer las firmas de {}: {}", document, e.getMessage());
+            expiry = Long.MAX_VALUE;
+        }
+
+        return new ArchiveEntry(document, format, size, modified, expiry, renewable);
+    }
+
+    /**
+     * Whether every reference of every signature resolves within the document itself. Detached signatures do not,
+     * and can not be extended without their content.
+     */
+    private static boolean hasAllSignedContent(SignedDocumentValidator validator) {
+        return validator.getSignatures().stream()
+                .flatMap(signature -> signature.getReferenceValidations().stream())
+                .allMatch(ReferenceValidation::isFound);
+    }
+
+    /**
+     * Expiry of the latest timestamp of the validated document: the earliest expiry of the TSA certificate and the
+     * issuers embedded in the document. Signatures without timestamps expire with their signing certificate, and a
+     * timestamp whose TSA certificate is not embedded is taken as already expired so the next renewal adds one that
+     * has it.
+     */
+    static long latestTimestampExpiry(SignedDocumentValidator validator) {
+        List<AdvancedSignature> signatures = validator.getSignatures();
+        List<TimestampToken> timestamps = new ArrayList<>(validator.getDetachedTimestamps());
+        List<CertificateToken> certificates = new ArrayList<>();
+        for (AdvancedSignature signature : signatures) {
+            timestamps.addAll(signature.getAllTimestamps());
+            certificates.addAll(signature.getCertificates());
+        }
+
+        if (timestamps.isEmpty()) {
+            if (signatures.isEmpty()) {
+                return Long.MAX_VALUE;
+            }
+            return signatures.stream()
+                    .map(AdvancedSignature::getSigningCertificateToken)
+                    .mapToLong(certificate -> certificate == null ? 0 : certificate.getNotAfter().getTime())
+                    .min().orElse(0);
+        }
+
+        TimestampToken latest = timestamps.stream().max(Comparator.comparing(TimestampToken::getGenerationTime)).orElseThrow();
+        return timestampExpiry(latest, certificates);
+    }
+
+    /**
+     * Earliest expiry of the certificate that signed {@code timestamp} and of its issuers found among
+     * {@code certificates} and the certificates of the timestamp itself, 0 if the signer is not found.
+     */
+    static long timestampExpiry(TimestampToken timestamp, List<CertificateToken> embedded) {
+        List<CertificateToken> certificates = new ArrayList<>(embedded);
+        certificates.addAll(timestamp.getCertificates());
+        CertificateValidity candidate = timestamp.getCandidatesForSigningCertificate().getTheBestCandidate();
+        CertificateToken signer = candidate != null ? candidate.getCertificateToken() : null;
+        if (signer == null) {
+            signer = certificates.stream().filter(timestamp::isSignedBy).findFirst().orElse(null);
+        }
+        if (signer == null) {
+            return 0;
+        }
+
+        long expiry = signer.getNotAfter().getTime();
+        CertificateToken current = signer;
+        for (int i = 0; i < MAX_CHAIN_LENGTH && !current.isSelfSigned(); i++) {
+            CertificateToken child = current;
+            current = certificates.stream()
+                    .filter(issuer -> !issuer.equals(child) && issuer.getSubject().getPrincipal().equals(child.getIssuerX500Principal()) && child.isSignedBy(issuer))
+                    .findFirst().orElse(null);
+            if (current == null) {
+                break;
+            }
+            expiry = Math.min(expiry, current.getNotAfter().getTime());
+        }
+
+        return expiry;
+    }
+}
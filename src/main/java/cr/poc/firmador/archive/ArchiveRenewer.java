@@ -0,0 +1,256 @@
+package cr.poc.firmador.archive;
+
+import cr.poc.firmador.http.BoundedTSPSource;
+import cr.poc.firmador.http.DataLoaderManager;
+import cr.poc.firmador.settings.SettingsManager;
+import cr.poc.firmador.sign.CRSigner;
+import cr.poc.firmador.sign.FirmadorCAdES;
+import cr.poc.firmador.sign.FirmadorOpenDocument;
+import cr.poc.firmador.sign.FirmadorPAdES;
+import cr.poc.firmador.sign.FirmadorXAdES;
+import eu.europa.esig.dss.enumerations.SignatureLevel;
+import eu.europa.esig.dss.model.DSSDocument;
+import eu.europa.esig.dss.model.FileDocument;
+import eu.europa.esig.dss.spi.DSSUtils;
+import eu.europa.esig.dss.validation.SignedDocumentValidator;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the signatures of an archive verifiable by adding a new archive timestamp to the documents whose latest
+ * timestamp expires within the renewal margin, using the {@code extend} methods of the signers at LTA level.
+ * <p>
+ * Every run refreshes the {@link ArchiveIndex} incrementally and renews the due documents on a pool of worker
+ * threads, the closest to expiry first, with the TSA requests bounded as in the batch commands. A renewed document
+ * replaces the original atomically and is indexed again with the expiry of its new timestamp. Documents are skipped
+ * while the certificate the TSA currently signs with would not outlive their timestamp, and documents the index marks
+ * as not renewable are never tried. Only one renewer per archive runs at a time, guarded by a file lock next to the
+ * index.
+ */
+public class ArchiveRenewer implements AutoCloseable {
+    private static final Logger LOG = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+    // La TSA cambia de certificado rara vez, pero un vencimiento visto hace más de un día ya no impide renovar
+    private static final long TSA_EXPIRY_TTL_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final Path root;
+    private final ArchiveIndex index;
+    private final long marginMillis;
+    private final ExecutorService workers;
+    private final BoundedTSPSource tspSource;
+    private FileChannel lockChannel;
+    private FileLock lock;
+    private volatile long tsaExpiry;
+    private volatile long tsaExpiryCheckedAt;
+
+    public ArchiveRenewer(Path root, int threads, int marginDays) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        this.index = ArchiveIndex.forArchive(this.root);
+        this.marginMillis = TimeUnit.DAYS.toMillis(marginDays);
+        AtomicInteger workerId = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.max(1, threads), r -> new Thread(r, "archive-worker-" + workerId.incrementAndGet()));
+        this.tspSource = new BoundedTSPSource(DataLoaderManager.getInstance().getTSPSource(),
+                SettingsManager.getInstance().getAndCreateSettings().tsaConcurrency);
+    }
+
+    public ArchiveIndex getIndex() {
+        return this.index;
+    }
+
+    /**
+     * Refreshes the index and renews every document whose latest timestamp expires within the margin.
+     */
+    public synchronized RenewalRun renewDue() throws IOException {
+        if (!this.acquireLock()) {
+            LOG.info("Otra instancia está renovando el archivo {}", this.root);
+            return new RenewalRun(this.index.size(), 0, 0, 0);
+        }
+
+        this.index.refresh(this.root, this.workers);
+        this.index.save();
+
+        List<ArchiveEntry> due = this.index.expiringBefore(System.currentTimeMillis() + this.marginMillis);
+        List<ArchiveEntry> renewable = due;
+        if (!due.isEmpty()) {
+            LOG.info("{} documentos de {} vencen antes de {}, el primero el {}", due.size(), this.root,
+                    Instant.ofEpochMilli(System.currentTimeMillis() + this.marginMillis), Instant.ofEpochMilli(due.get(0).expiryMillis()));
+
+            // Un sello nuevo que vence antes que el actual no alarga nada, sólo gasta una petición a la TSA
+            long tsaExpiry = this.currentTsaExpiry();
+            renewable = due.stream().filter(entry -> entry.expiryMillis() < tsaExpiry).toList();
+            if (renewable.size() < due.size()) {
+                LOG.warn("El certificado actual de la TSA vence el {}, no después que el sello de {} documentos; no se renovarán hasta que la TSA lo cambie",
+                        Instant.ofEpochMilli(tsaExpiry), due.size() - renewable.size());
+            }
+        }
+
+        // La cola del pool es FIFO, así que los documentos más próximos a vencer se renuevan primero
+        List<CompletableFuture<Boolean>> renewals = renewable.stream()
+                .map(entry -> CompletableFuture.supplyAsync(() -> this.renew(entry), this.workers))
+                .toList();
+        int renewed = (int) renewals.stream().map(CompletableFuture::join).filter(Boolean::booleanValue).count();
+        this.index.save();
+
+        return new RenewalRun(this.index.size(), due.size(), renewed, due.size() - renewable.size());
+    }
+
+    /**
+     * Expiry of the certificate the TSA signs with now, so that documents whose current timestamp outlives it are not
+     * renewed for nothing. It is read from {@code tsaCertificate} when configured; otherwise it is the expiry of the
+     * newest timestamp obtained by a renewal, which is trusted for a day so that a new TSA certificate is noticed.
+     * {@link Long#MAX_VALUE} while neither is known, in which case every due document is tried.
+     */
+    private long currentTsaExpiry() {
+        String certificate = SettingsManager.getInstance().getAndCreateSettings().tsaCertificate;
+        if (certificate != null && !certificate.isEmpty()) {
+            try {
+                return DSSUtils.loadCertificate(new File(certificate)).getNotAfter().getTime();
+            } catch (Exception e) {
+                LOG.warn("No se pudo leer el certificado de la TSA {}: {}", certificate, e.getMessage());
+            }
+        }
+
+        return this.observedTsaExpiry();
+    }
+
+    private long observedTsaExpiry() {
+        long now = System.currentTimeMillis();
+        if (this.tsaExpiry > now && now - this.tsaExpiryCheckedAt < TSA_EXPIRY_TTL_MILLIS) {
+            return this.tsaExpiry;
+        }
+
+        return Long.MAX_VALUE;
+    }
+
+    private boolean renew(ArchiveEntry entry) {
+        Path document = entry.document();
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(document, BasicFileAttributes.class);
+            if (!entry.matches(attributes.size(), attributes.lastModifiedTime().toMillis())) {
+                LOG.info("{} cambió desde que se indexó, se renovará en la próxima pasada si aún lo necesita", document);
+                return false;
+            }
+            // Otro documento de esta pasada pudo haber mostrado ya que el certificado de la TSA no lo alargaría
+            if (entry.expiryMillis() >= this.observedTsaExpiry()) {
+                LOG.info("El sello de {} no vence antes que el certificado actual de la TSA, no se renovará", document);
+                return false;
+            }
+
+            // Los PDF grandes se amplían sobre archivos temporales que se borran al cerrar el firmador
+            try (FirmadorPAdES pades = new FirmadorPAdES()) {
+                DSSDocument extended = this.extend(entry, pades);
+                if (extended == null) {
+                    LOG.error("No se pudo renovar el sello de archivo de {} (sello de tiempo o servicios de revocación no disponibles)", document);
+                    return false;
+                }
+
+                Path tmp = Files.createTempFile(document.getParent(), "renew", ".tmp");
+                try {
+                    extended.save(tmp.toString());
+                    Files.move(tmp, document, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    Files.deleteIfExists(tmp);
+                }
+            }
+
+            ArchiveEntry renewed = this.index.reindex(document, entry.format());
+            this.observeTsaExpiry(renewed.expiryMillis());
+            LOG.info("Sello de archivo de {} renovado, el nuevo vence el {}", document, Instant.ofEpochMilli(renewed.expiryMillis()));
+            return true;
+        } catch (Exception e) {
+            LOG.error("Error renovando el sello de archivo de {}", document, e);
+            return false;
+        }
+    }
+
+    /**
+     * Records the expiry of a timestamp just obtained, which the TSA signed with its current certificate.
+     */
+    private void observeTsaExpiry(long expiry) {
+        if (expiry > 0) {
+            this.tsaExpiry = expiry;
+            this.tsaExpiryCheckedAt = System.currentTimeMillis();
+        }
+    }
+
+    private DSSDocument extend(ArchiveEntry entry, FirmadorPAdES pades) {
+        DSSDocument document = new FileDocument(entry.document().toFile());
+
+        // Las firmas separadas no se pueden renovar sin su contenido, el índice las marca y no llegan hasta aquí
+        return switch (entry.format()) {
+            // Un PDF que sólo tiene sellos de documento no tiene firmas que ampliar, se renueva con otro sello
+            case PADES -> SignedDocumentValidator.fromDocument(document).getSignatures().isEmpty()
+                    ? this.withTsa(pades).timestamp(document, false)
+                    : this.withTsa(pades).extend(document, SignatureLevel.PAdES_BASELINE_LTA);
+            case XADES -> this.withTsa(new FirmadorXAdES()).extend(document, SignatureLevel.XAdES_BASELINE_LTA, null);
+            case CADES -> this.withTsa(new FirmadorCAdES()).extend(document, SignatureLevel.CAdES_BASELINE_LTA, null);
+            case OPENDOCUMENT -> this.withTsa(new FirmadorOpenDocument()).extend(document);
+        };
+    }
+
+    private <T extends CRSigner> T withTsa(T signer) {
+        signer.setTSPSource(this.tspSource);
+        return signer;
+    }
+
+    private boolean acquireLock() throws IOException {
+        if (this.lock == null) {
+            Path lockFile = this.index.getFile().resolveSibling(this.index.getFile().getFileName() + ".lock");
+            this.lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                this.lock = this.lockChannel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                // Otro renovador de este mismo proceso ya tiene el archivo
+                this.lock = null;
+            }
+            if (this.lock == null) {
+                this.lockChannel.close();
+                this.lockChannel = null;
+            }
+        }
+
+        return this.lock != null;
+    }
+
+    @Override
+    public synchronized void close() {
+        this.workers.shutdown();
+        try {
+            if (this.lock != null) {
+                this.lock.release();
+            }
+            if (this.lockChannel != null) {
+                this.lockChannel.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("Error liberando el bloqueo del índice de archivo", e);
+        }
+        this.lock = null;
+        this.lockChannel = null;
+    }
+
+    /**
+     * Outcome of a run: files in the index, documents due for renewal, documents renewed and due documents skipped
+     * because the current TSA certificate would not outlive their timestamp.
+     */
+    public record RenewalRun(int indexed, int due, int renewed, int skipped) {
+    }
+}
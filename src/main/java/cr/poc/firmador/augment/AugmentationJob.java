@@ -0,0 +1,23 @@
+package cr.poc.firmador.augment;
+
+import java.nio.file.Path;
+
+/**
+ * A signed document waiting to be raised from BASELINE-B to the configured signature level.
+ *
+ * @param detachedContent signed document of a detached XAdES or CAdES signature, {@code null} otherwise
+ */
+public record AugmentationJob(String id, Path document, Format format, Path detachedContent, int attempts,
+                              long nextAttemptMillis, String lastError, long createdMillis) {
+
+    public enum Format {
+        PADES,
+        XADES,
+        CADES
+    }
+
+    AugmentationJob retryAt(long nextAttemptMillis, String error) {
+        return new AugmentationJob(this.id, this.document, this.format, this.detachedContent, this.attempts + 1,
+                nextAttemptMillis, error, this.createdMillis);
+    }
+}
@@ -0,0 +1,142 @@
+package cr.poc.firmador.augment;
+
+import cr.poc.firmador.settings.SettingsManager;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Durable queue of documents signed in sign-now mode, stored as one properties file per job.
+ * <p>
+ * Every change is written to a temporary file and moved over the job file, so a crash leaves either the old or
+ * the new state of a job. Jobs that run out of attempts are renamed to {@code .failed} and kept for inspection.
+ */
+public class AugmentationQueue {
+    private static final Logger LOG = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final String QUEUE_DIR = "augment-queue";
+    private static final String JOB_EXTENSION = ".job";
+    private static final String FAILED_EXTENSION = ".failed";
+
+    private final Path directory;
+
+    public AugmentationQueue(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    /**
+     * Queue stored in the configuration directory.
+     */
+    public static AugmentationQueue getDefault() throws IOException {
+        return new AugmentationQueue(SettingsManager.getInstance().getConfigDir().resolve(QUEUE_DIR));
+    }
+
+    public Path getDirectory() {
+        return this.directory;
+    }
+
+    public AugmentationJob enqueue(Path document, AugmentationJob.Format format) throws IOException {
+        return this.enqueue(document, format, null);
+    }
+
+    public AugmentationJob enqueue(Path document, AugmentationJob.Format format, Path detachedContent) throws IOException {
+        long now = System.currentTimeMillis();
+        AugmentationJob job = new AugmentationJob(UUID.randomUUID().toString(), document.toAbsolutePath().normalize(), format,
+                detachedContent == null ? null : detachedContent.toAbsolutePath().normalize(), 0, now, null, now);
+        this.update(job);
+        LOG.info("Documento {} encolado para ampliar el nivel de firma", job.document());
+        return job;
+    }
+
+    /**
+     * Pending jobs ordered by their next attempt.
+     */
+    public List<AugmentationJob> pending() throws IOException {
+        List<AugmentationJob> jobs = new ArrayList<>();
+        try (Stream<Path> files = Files.list(this.directory)) {
+            for (Path file : files.filter(p -> p.getFileName().toString().endsWith(JOB_EXTENSION)).toList()) {
+                try {
+                    jobs.add(read(file));
+                } catch (IOException | RuntimeException e) {
+                    LOG.warn("Trabajo de ampliación ilegible {}: {}", file, e.getMessage());
+                }
+            }
+        }
+
+        jobs.sort(Comparator.comparingLong(AugmentationJob::nextAttemptMillis));
+        return jobs;
+    }
+
+    public List<AugmentationJob> due(long nowMillis) throws IOException {
+        return this.pending().stream().filter(job -> job.nextAttemptMillis() <= nowMillis).toList();
+    }
+
+    public void update(AugmentationJob job) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("id", job.id());
+        props.setProperty("document", job.document().toString());
+        props.setProperty("format", job.format().name());
+        if (job.detachedContent() != null) {
+            props.setProperty("detachedcontent", job.detachedContent().toString());
+        }
+        props.setProperty("attempts", String.valueOf(job.attempts()));
+        props.setProperty("nextattempt", String.valueOf(job.nextAttemptMillis()));
+        props.setProperty("created", String.valueOf(job.createdMillis()));
+        if (job.lastError() != null) {
+            props.setProperty("lasterror", job.lastError());
+        }
+
+        Path tmp = Files.createTempFile(this.directory, "job", ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            props.store(out, "Firmador - ampliación pendiente de nivel de firma");
+        }
+        Files.move(tmp, this.jobFile(job), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public void complete(AugmentationJob job) throws IOException {
+        Files.deleteIfExists(this.jobFile(job));
+    }
+
+    /**
+     * Gives up on a job, keeping its file with a {@code .failed} extension.
+     */
+    public void fail(AugmentationJob job) throws IOException {
+        this.update(job);
+        Files.move(this.jobFile(job), this.directory.resolve(job.id() + FAILED_EXTENSION), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path jobFile(AugmentationJob job) {
+        return this.directory.resolve(job.id() + JOB_EXTENSION);
+    }
+
+    private static AugmentationJob read(Path file) throws IOException {
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            props.load(in);
+        }
+
+        String detachedContent = props.getProperty("detachedcontent");
+        return new AugmentationJob(
+                props.getProperty("id"),
+                Path.of(props.getProperty("document")),
+                AugmentationJob.Format.valueOf(props.getProperty("format")),
+                detachedContent == null ? null : Path.of(detachedContent),
+                Integer.parseInt(props.getProperty("attempts", "0")),
+                Long.parseLong(props.getProperty("nextattempt", "0")),
+                props.getProperty("lasterror"),
+                Long.parseLong(props.getProperty("created", "0")));
+    }
+}
@@ -0,0 +1,186 @@
+package cr.poc.firmador.augment;
+
+import cr.poc.firmador.settings.Settings;
+import cr.poc.firmador.settings.SettingsManager;
+import cr.poc.firmador.sign.FirmadorCAdES;
+import cr.poc.firmador.sign.FirmadorPAdES;
+import cr.poc.firmador.sign.FirmadorXAdES;
+import cr.poc.firmador.utils.FirmadorUtils;
+import eu.europa.esig.dss.model.DSSDocument;
+import eu.europa.esig.dss.model.FileDocument;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Raises the documents of an {@link AugmentationQueue} to the signature level configured in {@link Settings},
+ * using the {@code extend} methods of the signers.
+ * <p>
+ * A failed attempt is retried after {@link FirmadorUtils#retryDelay}, starting from the configured retry delay and
+ * up to six hours, until the maximum number of attempts is reached. Only one worker per queue directory runs at a time, guarded by a file lock.
+ */
+public class AugmentationWorker implements AutoCloseable {
+    private static final Logger LOG = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+    private static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.HOURS.toMillis(6);
+
+    private final AugmentationQueue queue;
+    private final Settings settings;
+    private final ScheduledExecutorService scheduler;
+    private FileChannel lockChannel;
+    private FileLock lock;
+
+    public AugmentationWorker(AugmentationQueue queue) {
+        this.queue = queue;
+        this.settings = SettingsManager.getInstance().getAndCreateSettings();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "augment-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Polls the queue in the background every {@code pollSeconds}.
+     */
+    public void start(long pollSeconds) {
+        this.scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                this.processDue();
+            } catch (Exception e) {
+                LOG.error("Error procesando la cola de ampliación de firmas", e);
+            }
+        }, 0, pollSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Processes every job whose next attempt is due.
+     *
+     * @return number of documents raised to the configured level
+     */
+    public synchronized int processDue() throws IOException {
+        if (!this.acquireLock()) {
+            LOG.debug("Otra instancia está procesando la cola {}", this.queue.getDirectory());
+            return 0;
+        }
+
+        int augmented = 0;
+        for (AugmentationJob job : this.queue.due(System.currentTimeMillis())) {
+            if (this.process(job)) {
+                augmented++;
+            }
+        }
+
+        return augmented;
+    }
+
+    private boolean process(AugmentationJob job) throws IOException {
+        if (!Files.isRegularFile(job.document())) {
+            LOG.warn("El documento {} ya no existe, se descarta la ampliación", job.document());
+            this.queue.fail(job.retryAt(System.currentTimeMillis(), "El documento ya no existe"));
+            return false;
+        }
+
+        // Los PDF grandes se amplían sobre archivos temporales que se borran al cerrar el firmador
+        try (FirmadorPAdES pades = new FirmadorPAdES()) {
+            DSSDocument extended = null;
+            String error = null;
+            try {
+                extended = this.extend(job, pades);
+            } catch (Exception e) {
+                error = e.getMessage();
+            }
+
+            if (extended == null) {
+                this.retry(job, error != null ? error : "No se pudo ampliar la firma (sello de tiempo o servicios de revocación no disponibles)");
+                return false;
+            }
+
+            Path tmp = Files.createTempFile(job.document().toAbsolutePath().getParent(), "augment", ".tmp");
+            try {
+                extended.save(tmp.toString());
+                Files.move(tmp, job.document(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+
+        this.queue.complete(job);
+        LOG.info("Firma de {} ampliada tras {} intentos", job.document(), job.attempts() + 1);
+        return true;
+    }
+
+    private DSSDocument extend(AugmentationJob job, FirmadorPAdES pades) {
+        DSSDocument document = new FileDocument(job.document().toFile());
+        List<DSSDocument> detachedContents = job.detachedContent() == null ? null : List.of(new FileDocument(job.detachedContent().toFile()));
+
+        return switch (job.format()) {
+            case PADES -> pades.extend(document, this.settings.getPAdESLevel());
+            case XADES -> new FirmadorXAdES().extend(document, this.settings.getXAdESLevel(), detachedContents);
+            case CADES -> new FirmadorCAdES().extend(document, this.settings.getCAdESLevel(), detachedContents);
+        };
+    }
+
+    private void retry(AugmentationJob job, String error) throws IOException {
+        int attempts = job.attempts() + 1;
+        if (attempts >= this.settings.augmentMaxAttempts) {
+            LOG.error("Se agotaron los {} intentos de ampliar la firma de {}: {}", attempts, job.document(), error);
+            this.queue.fail(job.retryAt(System.currentTimeMillis(), error));
+            return;
+        }
+
+        long baseDelay = TimeUnit.SECONDS.toMillis(this.settings.augmentRetryDelay);
+        long delay = FirmadorUtils.retryDelay(baseDelay, job.attempts(), MAX_RETRY_DELAY_MILLIS);
+        long nextAttempt = System.currentTimeMillis() + delay;
+        this.queue.update(job.retryAt(nextAttempt, error));
+        LOG.warn("No se pudo ampliar la firma de {} (intento {}), se reintentará en {} s: {}", job.document(), attempts,
+                TimeUnit.MILLISECONDS.toSeconds(delay), error);
+    }
+
+    private boolean acquireLock() throws IOException {
+        if (this.lock == null) {
+            this.lockChannel = FileChannel.open(this.queue.getDirectory().resolve(".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                this.lock = this.lockChannel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                // Otro worker de este mismo proceso ya tiene la cola
+                this.lock = null;
+            }
+            if (this.lock == null) {
+                this.lockChannel.close();
+                this.lockChannel = null;
+            }
+        }
+
+        return this.lock != null;
+    }
+
+    @Override
+    public synchronized void close() {
+        this.scheduler.shutdownNow();
+        try {
+            if (this.lock != null) {
+                this.lock.release();
+            }
+            if (this.lockChannel != null) {
+                this.lockChannel.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("Error liberando el bloqueo de la cola de ampliación", e);
+        }
+        this.lock = null;
+        this.lockChannel = null;
+    }
+}
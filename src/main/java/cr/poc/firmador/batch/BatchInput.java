@@ -0,0 +1,142 @@
+package cr.poc.firmador.batch;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Resolves the {@code --input} of the batch commands into a list of files. The input can be:
+ * <ul>
+ *     <li>a directory: every file in it with the requested extension (not recursive),</li>
+ *     <li>a glob such as {@code contratos/**}{@code /*.pdf}: every regular file matching it, where {@code **}{@code /}
+ *     also matches no directory at all, as in a shell,</li>
+ *     <li>a manifest: a text file with one path per line; blank lines and lines starting with {@code #} are
+ *     ignored and relative paths are resolved against the manifest's directory.</li>
+ * </ul>
+ */
+public final class BatchInput {
+
+    private BatchInput() {
+    }
+
+    public static List<Path> resolve(String input, String extension) throws IOException {
+        if (isGlob(input)) {
+            return resolveGlob(input);
+        }
+
+        Path path = Path.of(input);
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> files = Files.list(path)) {
+                return files.filter(Files::isRegularFile)
+                        .filter(p -> p.getFileName().toString().toLowerCase().endsWith(extension))
+                        .sorted()
+                        .toList();
+            }
+        }
+
+        if (Files.isRegularFile(path)) {
+            return resolveManifest(path);
+        }
+
+        throw new IOException("No existe el directorio, patrón o manifiesto de entrada: " + input);
+    }
+
+    private static boolean isGlob(String input) {
+        return input.indexOf('*') >= 0 || input.indexOf('?') >= 0 || input.indexOf('[') >= 0 || input.indexOf('{') >= 0;
+    }
+
+    private static List<Path> resolveGlob(String pattern) throws IOException {
+        // Se recorre desde el directorio más profundo que no contiene comodines
+        String normalized = pattern.replace('\\', '/');
+        int firstWildcard = firstWildcard(normalized);
+        int lastSeparator = normalized.lastIndexOf('/', firstWildcard);
+        Path base = lastSeparator < 0 ? Path.of(".") : Path.of(normalized.substring(0, Math.max(lastSeparator, 1)));
+        String relativePattern = lastSeparator < 0 ? normalized : normalized.substring(lastSeparator + 1);
+        List<PathMatcher> matchers = new ArrayList<>();
+        for (String variant : withoutRecursiveSegments(relativePattern)) {
+            matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + variant));
+        }
+
+        if (!Files.isDirectory(base)) {
+            return List.of();
+        }
+
+        try (Stream<Path> files = Files.walk(base)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(p -> matchers.stream().anyMatch(matcher -> matcher.matches(base.relativize(p))))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    /**
+     * {@code pattern} and its variants with any of its {@code **}{@code /} segments removed. In a Java glob
+     * {@code **}{@code /} matches one or more directories, while a shell matches zero or more, so
+     * {@code dir/**}{@code /*.pdf} would otherwise leave out the PDFs directly in {@code dir}.
+     */
+    private static List<String> withoutRecursiveSegments(String pattern) {
+        int segment = pattern.indexOf("**/");
+        while (segment > 0 && pattern.charAt(segment - 1) != '/') {
+            segment = pattern.indexOf("**/", segment + 1);
+        }
+        if (segment < 0) {
+            return List.of(pattern);
+        }
+
+        List<String> variants = new ArrayList<>();
+        for (String rest : withoutRecursiveSegments(pattern.substring(segment + 3))) {
+            variants.add(pattern.substring(0, segment + 3) + rest);
+            variants.add(pattern.substring(0, segment) + rest);
+        }
+
+        return variants;
+    }
+
+    private static int firstWildcard(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if ("*?[{".indexOf(pattern.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+
+        return pattern.length();
+    }
+
+    /**
+     * Output file for {@code input} in {@code outputDir}, with {@code suffix} added to the name when it would
+     * overwrite the input itself.
+     */
+    public static Path outputPath(Path input, Path outputDir, String suffix) {
+        Path output = outputDir.resolve(input.getFileName());
+        if (output.toAbsolutePath().normalize().equals(input.toAbsolutePath().normalize())) {
+            String name = input.getFileName().toString();
+            int dot = name.lastIndexOf('.');
+            String outputName = dot < 0 ? name + suffix : name.substring(0, dot) + suffix + name.substring(dot);
+            output = outputDir.resolve(outputName);
+        }
+
+        return output;
+    }
+
+    private static List<Path> resolveManifest(Path manifest) throws IOException {
+        Path baseDir = manifest.toAbsolutePath().getParent();
+        List<Path> files = new ArrayList<>();
+        for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+            String entry = line.trim();
+            if (entry.isEmpty() || entry.startsWith("#")) {
+                continue;
+            }
+
+            Path file = Path.of(entry);
+            files.add(file.isAbsolute() ? file : baseDir.resolve(file));
+        }
+
+        return files;
+    }
+}
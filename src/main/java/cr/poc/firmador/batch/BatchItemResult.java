@@ -0,0 +1,17 @@
+package cr.poc.firmador.batch;
+
+import java.nio.file.Path;
+
+/**
+ * Outcome of one document of a batch run.
+ */
+public record BatchItemResult(Path input, Path output, boolean success, String error, long elapsedMillis) {
+
+    public static BatchItemResult ok(Path input, Path output, long elapsedMillis) {
+        return new BatchItemResult(input, output, true, null, elapsedMillis);
+    }
+
+    public static BatchItemResult failed(Path input, String error, long elapsedMillis) {
+        return new BatchItemResult(input, null, false, error, elapsedMillis);
+    }
+}
@@ -0,0 +1,148 @@
+package cr.poc.firmador.batch;
+
+import cr.poc.firmador.augment.AugmentationQueue;
+import cr.poc.firmador.card.CardSignInfo;
+import cr.poc.firmador.card.TokenSession;
+import cr.poc.firmador.sign.FirmadorPAdES;
+import cr.poc.firmador.sign.PreparedPAdESSignature;
+import cr.poc.firmador.utils.FirmadorUtils;
+import eu.europa.esig.dss.model.DSSDocument;
+import eu.europa.esig.dss.model.DSSException;
+import eu.europa.esig.dss.model.FileDocument;
+import eu.europa.esig.dss.model.SignatureValue;
+import eu.europa.esig.dss.model.x509.CertificateToken;
+import eu.europa.esig.dss.token.DSSPrivateKeyEntry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Signs many PDFs with one card as a three stage pipeline:
+ * <ol>
+ *     <li>{@link FirmadorPAdES#prepare} (PDF parsing and digest) on a pool of worker threads,</li>
+ *     <li>the card signature on a single serialized lane, the only stage that touches the token,</li>
+ *     <li>{@link FirmadorPAdES#complete} (TSA, revocation data, writing the output) back on the workers.</li>
+ * </ol>
+ * Up to twice as many documents as workers are kept in flight so the card lane always has work queued and never
+ * waits on parsing or network I/O, while memory stays bounded for large batches.
+ * <p>
+ * With an {@link AugmentationQueue} set, documents are signed at BASELINE-B without network access and queued to
+ * be raised to the configured level later. With a signature field set, the documents are signed into that field of
+ * the template they were generated from (see {@link cr.poc.firmador.sign.PAdESTemplates}).
+ */
+public class PAdESBatchSigner implements AutoCloseable {
+    private static final Logger LOG = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+
+    private final ExecutorService workers;
+    private final ExecutorService cardLane;
+    private final Semaphore inFlight;
+    private AugmentationQueue augmentationQueue;
+    private String signatureFieldId;
+
+    public PAdESBatchSigner(int threads) {
+        int workerCount = Math.max(1, threads);
+        AtomicInteger workerId = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, r -> new Thread(r, "batch-worker-" + workerId.incrementAndGet()));
+        this.cardLane = Executors.newSingleThreadExecutor(r -> new Thread(r, "batch-card-lane"));
+        this.inFlight = new Semaphore(workerCount * 2);
+    }
+
+    public void setAugmentationQueue(AugmentationQueue augmentationQueue) {
+        this.augmentationQueue = augmentationQueue;
+    }
+
+    public void setSignatureFieldId(String signatureFieldId) {
+        this.signatureFieldId = signatureFieldId;
+    }
+
+    public List<BatchItemResult> sign(List<Path> inputs, Path outputDir, CardSignInfo card, String reason, String location) throws IOException {
+        Files.createDirectories(outputDir);
+
+        // Una sola sesión y una sola búsqueda de llave para todo el lote
+        FirmadorPAdES keyLookup = new FirmadorPAdES();
+        TokenSession session = keyLookup.getTokenSession(card);
+        if (session == null) {
+            throw new DSSException("No se pudo abrir la sesión con el dispositivo de firma");
+        }
+        DSSPrivateKeyEntry privateKey = keyLookup.getPrivateKey(session);
+        if (privateKey == null) {
+            throw new DSSException("El dispositivo no tiene una llave de firma (no repudio) disponible");
+        }
+        CertificateToken certificate = privateKey.getCertificate();
+
+        List<CompletableFuture<BatchItemResult>> futures = new ArrayList<>(inputs.size());
+        for (Path input : inputs) {
+            this.inFlight.acquireUninterruptibly();
+            futures.add(this.submit(input, BatchInput.outputPath(input, outputDir, "-firmado"), session, certificate, reason, location));
+        }
+
+        return futures.stream().map(CompletableFuture::join).toList();
+    }
+
+    private CompletableFuture<BatchItemResult> submit(Path input, Path output, TokenSession session, CertificateToken certificate, String reason, String location) {
+        long start = System.nanoTime();
+        FirmadorPAdES signer = new FirmadorPAdES();
+        signer.setAugmentLater(this.augmentationQueue != null);
+        if (this.signatureFieldId != null) {
+            signer.useTemplateField(this.signatureFieldId);
+        }
+
+        return CompletableFuture
+                .supplyAsync(() -> signer.prepare(new FileDocument(input.toFile()), certificate, reason, location, null, null, false), this.workers)
+                .thenApplyAsync(prepared -> new CardSigned(prepared, signer.signPrepared(session, prepared)), this.cardLane)
+                .thenApplyAsync(signed -> {
+                    DSSDocument signedDocument = signer.complete(signed.prepared(), signed.signatureValue(),
+                            resized -> CompletableFuture.supplyAsync(() -> signer.signPrepared(session, resized), this.cardLane).join());
+                    if (signedDocument == null) {
+                        throw new DSSException("No se pudo completar la firma del documento");
+                    }
+                    try {
+                        signedDocument.save(output.toString());
+                    } catch (IOException e) {
+                        throw new DSSException("No se pudo guardar " + output, e);
+                    }
+                    if (this.augmentationQueue != null) {
+                        try {
+                            signer.queueAugmentation(this.augmentationQueue, output, null);
+                        } catch (IOException e) {
+                            throw new DSSException("No se pudo encolar la ampliación de " + output, e);
+                        }
+                    }
+                    return BatchItemResult.ok(input, output, elapsedMillis(start));
+                }, this.workers)
+                .exceptionally(e -> {
+                    Throwable cause = FirmadorUtils.getRootCause(e);
+                    LOG.error("Error firmando {}: {}", input, cause.getLocalizedMessage());
+                    return BatchItemResult.failed(input, String.valueOf(cause.getLocalizedMessage()), elapsedMillis(start));
+                })
+                .whenComplete((result, e) -> {
+                    signer.close();
+                    this.inFlight.release();
+                });
+    }
+
+    private static long elapsedMillis(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Override
+    public void close() {
+        this.workers.shutdown();
+        this.cardLane.shutdown();
+    }
+
+    private record CardSigned(PreparedPAdESSignature prepared, SignatureValue signatureValue) {
+    }
+}
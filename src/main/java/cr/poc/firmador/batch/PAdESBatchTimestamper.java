@@ -0,0 +1,124 @@
+package cr.poc.firmador.batch;
+
+import cr.poc.firmador.http.BoundedTSPSource;
+import cr.poc.firmador.http.DataLoaderManager;
+import cr.poc.firmador.sign.FirmadorPAdES;
+import cr.poc.firmador.utils.FirmadorUtils;
+import eu.europa.esig.dss.model.DSSDocument;
+import eu.europa.esig.dss.model.DSSException;
+import eu.europa.esig.dss.model.FileDocument;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adds a PAdES document timestamp to many PDFs in parallel.
+ * <p>
+ * Parsing, digesting and writing the documents run on a pool of worker threads, while the requests to the TSA go
+ * through a {@link BoundedTSPSource} so no more than the configured number reach it at the same time. A document
+ * that fails is retried after {@link FirmadorUtils#retryDelay}, so the retries of a TSA outage do not hit it again
+ * together. As in {@link PAdESBatchSigner}, at most twice as many documents as workers are in flight, counting the
+ * ones waiting for a retry.
+ */
+public class PAdESBatchTimestamper implements AutoCloseable {
+    private static final Logger LOG = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+    private static final long BASE_RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(2);
+    private static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final ExecutorService workers;
+    private final Semaphore inFlight;
+    private final BoundedTSPSource tspSource;
+    private final int maxAttempts;
+    private final AtomicInteger retries = new AtomicInteger();
+
+    public PAdESBatchTimestamper(int threads, int tsaConcurrency, int maxAttempts) {
+        int workerCount = Math.max(1, threads);
+        AtomicInteger workerId = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, r -> new Thread(r, "timestamp-worker-" + workerId.incrementAndGet()));
+        this.inFlight = new Semaphore(workerCount * 2);
+        this.tspSource = new BoundedTSPSource(DataLoaderManager.getInstance().getTSPSource(), tsaConcurrency);
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    public List<BatchItemResult> timestamp(List<Path> inputs, Path outputDir) throws IOException {
+        Files.createDirectories(outputDir);
+
+        List<CompletableFuture<BatchItemResult>> futures = new ArrayList<>(inputs.size());
+        for (Path input : inputs) {
+            this.inFlight.acquireUninterruptibly();
+            futures.add(this.attempt(input, BatchInput.outputPath(input, outputDir, "-sellado"), 1, System.nanoTime())
+                    .whenComplete((result, e) -> this.inFlight.release()));
+        }
+
+        return futures.stream().map(CompletableFuture::join).toList();
+    }
+
+    /**
+     * Number of retries made so far, not counting the first attempt of each document.
+     */
+    public int getRetries() {
+        return this.retries.get();
+    }
+
+    /**
+     * Latencies of the TSA requests made so far, in milliseconds and sorted.
+     */
+    public double[] getTsaLatenciesMillis() {
+        return this.tspSource.getLatenciesMillis();
+    }
+
+    private CompletableFuture<BatchItemResult> attempt(Path input, Path output, int attempt, long start) {
+        return CompletableFuture
+                .supplyAsync(() -> {
+                    this.timestampDocument(input, output);
+                    return BatchItemResult.ok(input, output, elapsedMillis(start));
+                }, this.workers)
+                .exceptionallyCompose(e -> {
+                    String error = String.valueOf(FirmadorUtils.getRootCause(e).getLocalizedMessage());
+                    if (attempt >= this.maxAttempts) {
+                        LOG.error("Se agotaron los {} intentos de sellar {}: {}", attempt, input, error);
+                        return CompletableFuture.completedFuture(BatchItemResult.failed(input, error, elapsedMillis(start)));
+                    }
+
+                    long delay = FirmadorUtils.retryDelay(BASE_RETRY_DELAY_MILLIS, attempt - 1, MAX_RETRY_DELAY_MILLIS);
+                    this.retries.incrementAndGet();
+                    LOG.warn("No se pudo sellar {} (intento {}), se reintentará en {} ms: {}", input, attempt, delay, error);
+                    return CompletableFuture.supplyAsync(() -> null, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, this.workers))
+                            .thenCompose(ignored -> this.attempt(input, output, attempt + 1, start));
+                });
+    }
+
+    private void timestampDocument(Path input, Path output) {
+        try (FirmadorPAdES pades = new FirmadorPAdES()) {
+            pades.setTSPSource(this.tspSource);
+            DSSDocument timestamped = pades.timestamp(new FileDocument(input.toFile()), false);
+            if (timestamped == null) {
+                throw new DSSException("No se pudo agregar el sello de tiempo al documento");
+            }
+            timestamped.save(output.toString());
+        } catch (IOException e) {
+            throw new DSSException("No se pudo guardar " + output, e);
+        }
+    }
+
+    private static long elapsedMillis(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Override
+    public void close() {
+        this.workers.shutdown();
+    }
+}
@@ -0,0 +1,231 @@
+package cr.poc.firmador.card;
+
+import cr.poc.firmador.utils.FirmadorUtils;
+import eu.europa.esig.dss.enumerations.DigestAlgorithm;
+import eu.europa.esig.dss.model.DSSException;
+import eu.europa.esig.dss.model.Digest;
+import eu.europa.esig.dss.model.SignatureValue;
+import eu.europa.esig.dss.model.ToBeSigned;
+import eu.europa.esig.dss.token.DSSPrivateKeyEntry;
+import eu.europa.esig.dss.token.SignatureTokenConnection;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.invoke.MethodHandles;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A logged-in connection to one signing token (a PKCS#11 slot or a PKCS#12 file) that is kept open between
+ * signatures together with the selected private key entry.
+ * <p>
+ * All operations are serialized on the session: a card can only do one thing at a time anyway, and the SunPKCS11
+ * key store underneath is not meant to be used concurrently. The session is guarded by a fair lock rather than a
+ * monitor, so callers queue in arrival order and virtual threads waiting for the card do not pin their carrier.
+ */
+public class TokenSession implements AutoCloseable {
+    private static final Logger LOG = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+
+    // Errores PKCS#11 que indican que la tarjeta fue retirada o que la sesión ya no es válida
+    private static final List<String> LOST_SESSION_ERRORS = List.of(
+            "CKR_DEVICE_REMOVED",
+            "CKR_DEVICE_ERROR",
+            "CKR_TOKEN_NOT_PRESENT",
+            "CKR_SESSION_HANDLE_INVALID",
+            "CKR_SESSION_CLOSED",
+            "CKR_USER_NOT_LOGGED_IN");
+
+    private final String key;
+    private final byte[] pinFingerprint;
+    private final Supplier<SignatureTokenConnection> connector;
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private SignatureTokenConnection token;
+    private DSSPrivateKeyEntry privateKey;
+    private Function<SignatureTokenConnection, DSSPrivateKeyEntry> keySelector;
+    private volatile long lastUsed = System.currentTimeMillis();
+    private volatile boolean closed = false;
+    private volatile boolean pinVerified = false;
+
+    TokenSession(String key, byte[] pinFingerprint, Supplier<SignatureTokenConnection> connector) {
+        this.key = key;
+        this.pinFingerprint = pinFingerprint;
+        this.connector = connector;
+    }
+
+    public String getKey() {
+        return this.key;
+    }
+
+    byte[] getPinFingerprint() {
+        return this.pinFingerprint;
+    }
+
+    public long getLastUsed() {
+        return this.lastUsed;
+    }
+
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Whether the private key was found with this session's PIN, which is then known to be the card's.
+     */
+    boolean isPinVerified() {
+        return this.pinVerified;
+    }
+
+    /**
+     * The connection to the token, opened and logged in on first use.
+     *
+     * @throws DSSException if the session was closed: a closed session never reconnects, get a new one from
+     *                      {@link TokenSessionManager} instead
+     */
+    public SignatureTokenConnection getToken() {
+        this.lock.lock();
+        try {
+            this.ensureOpen();
+            this.touch();
+            if (this.token == null) {
+                this.token = this.connector.get();
+            }
+
+            return this.token;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the cached private key, looking it up with {@code keySelector} the first time. A failed lookup (wrong
+     * PIN, missing card) closes the session so the next caller starts from scratch. Like {@link #getToken()}, fails
+     * once the session is closed.
+     */
+    public DSSPrivateKeyEntry getPrivateKey(Function<SignatureTokenConnection, DSSPrivateKeyEntry> keySelector) {
+        this.lock.lock();
+        try {
+            this.ensureOpen();
+            this.keySelector = keySelector;
+            if (this.privateKey != null) {
+                this.touch();
+                return this.privateKey;
+            }
+
+            try {
+                this.privateKey = keySelector.apply(this.getToken());
+            } catch (RuntimeException | Error e) {
+                this.close();
+                throw e;
+            }
+            if (this.privateKey != null) {
+                this.pinVerified = true;
+            }
+
+            return this.privateKey;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Signs with the cached private key. If the card reports a lost session (removed and re-inserted, reset, etc.)
+     * the token is reopened, the key is looked up again and the operation is retried once.
+     */
+    public SignatureValue sign(ToBeSigned dataToSign, DigestAlgorithm digestAlgorithm) {
+        return this.withPrivateKey((token, privateKey) -> token.sign(dataToSign, digestAlgorithm, privateKey));
+    }
+
+    /**
+     * Like {@link #sign}, for data already digested elsewhere, as in the external signatures prepared by another host.
+     */
+    public SignatureValue signDigest(Digest digest) {
+        return this.withPrivateKey((token, privateKey) -> token.signDigest(digest, privateKey));
+    }
+
+    private SignatureValue withPrivateKey(BiFunction<SignatureTokenConnection, DSSPrivateKeyEntry, SignatureValue> operation) {
+        this.lock.lock();
+        try {
+            this.ensureOpen();
+            if (this.privateKey == null) {
+                throw new DSSException("No hay una llave privada seleccionada en la sesión " + this.key);
+            }
+
+            try {
+                this.touch();
+                return operation.apply(this.getToken(), this.privateKey);
+            } catch (RuntimeException e) {
+                if (!isLostSession(e) || this.keySelector == null) {
+                    throw e;
+                }
+
+                LOG.warn("Sesión con el dispositivo {} perdida ({}), reconectando", this.key, FirmadorUtils.getRootCause(e).getLocalizedMessage());
+                this.disconnect();
+                try {
+                    this.privateKey = this.keySelector.apply(this.getToken());
+                } finally {
+                    // Sin llave seleccionada la sesión nueva no sirve, no se deja abierta
+                    if (this.privateKey == null) {
+                        this.disconnect();
+                    }
+                }
+                if (this.privateKey == null) {
+                    throw e;
+                }
+
+                return operation.apply(this.token, this.privateKey);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Logs out and releases the token. A closed session is discarded by {@link TokenSessionManager}.
+     */
+    @Override
+    public void close() {
+        this.lock.lock();
+        try {
+            this.closed = true;
+            this.disconnect();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void disconnect() {
+        this.privateKey = null;
+        if (this.token != null) {
+            try {
+                this.token.close();
+            } catch (Exception e) {
+                LOG.warn("Error cerrando la conexión con el dispositivo {}", this.key, e);
+            }
+            this.token = null;
+        }
+    }
+
+    private void ensureOpen() {
+        if (this.closed) {
+            throw new DSSException("La sesión con el dispositivo " + this.key + " ya se cerró");
+        }
+    }
+
+    private void touch() {
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    static boolean isLostSession(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            String message = t.getMessage();
+            if (message != null && LOST_SESSION_ERRORS.stream().anyMatch(message::contains)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
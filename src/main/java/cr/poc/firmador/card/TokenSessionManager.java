@@ -0,0 +1,144 @@
+package cr.poc.firmador.card;
+
+import cr.poc.firmador.settings.Settings;
+import cr.poc.firmador.settings.SettingsManager;
+import cr.poc.firmador.sign.CRSigner;
+import eu.europa.esig.dss.model.DSSException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps one {@link TokenSession} per signing device, keyed by slot ID and token serial for PKCS#11 cards and by
+ * file path for PKCS#12 key stores, so that a run of signatures costs a single module load and C_Login.
+ * <p>
+ * Sessions idle for longer than {@link Settings#tokenIdleTimeout} seconds are logged out by a background reaper.
+ */
+public class TokenSessionManager {
+    private static final Logger LOG = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+    private static final TokenSessionManager tsm = new TokenSessionManager();
+    private static final long REAPER_PERIOD_SECONDS = 30;
+
+    private final Map<String, TokenSession> sessions = new ConcurrentHashMap<>();
+    private final byte[] pinSalt = new byte[16];
+    private final ScheduledExecutorService reaper;
+
+    private TokenSessionManager() {
+        new SecureRandom().nextBytes(this.pinSalt);
+        this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "token-session-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.reaper.scheduleWithFixedDelay(this::closeIdleSessions, REAPER_PERIOD_SECONDS, REAPER_PERIOD_SECONDS, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::logoutAll, "token-session-logout"));
+    }
+
+    public static TokenSessionManager getInstance() {
+        return tsm;
+    }
+
+    /**
+     * Returns the open session for the card, opening a new one when there is none or the previous one was closed.
+     * <p>
+     * A card presented with a PIN other than its open session's is rejected if that session already found its key,
+     * since its PIN is then the right one and other callers may be using it; otherwise the unproven session is replaced.
+     *
+     * @throws DSSException if the card has an open session whose PIN is known to be right and differs from this one
+     */
+    public TokenSession getSession(CardSignInfo card) {
+        String key = sessionKey(card);
+        byte[] pinFingerprint = this.fingerprint(card);
+
+        return this.sessions.compute(key, (k, current) -> {
+            if (current != null && !current.isClosed() && Arrays.equals(current.getPinFingerprint(), pinFingerprint)) {
+                return current;
+            }
+
+            if (current != null && !current.isClosed() && current.isPinVerified()) {
+                // Quien trae otro PIN se rechaza sin cerrar la sesión que otros pueden estar usando
+                throw new DSSException("El PIN no corresponde al de la sesión abierta con el dispositivo de firma " + k);
+            }
+            if (current != null) {
+                current.close();
+            }
+
+            LOG.debug("Abriendo sesión con el dispositivo de firma {}", k);
+            return new TokenSession(k, pinFingerprint, () -> CRSigner.openSignatureToken(card));
+        });
+    }
+
+    /**
+     * Explicit logout of the card's session, e.g. after the user removes the card or at the end of a batch.
+     */
+    public void logout(CardSignInfo card) {
+        TokenSession session = this.sessions.remove(sessionKey(card));
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    public void logoutAll() {
+        for (String key : this.sessions.keySet()) {
+            TokenSession session = this.sessions.remove(key);
+            if (session != null) {
+                session.close();
+            }
+        }
+    }
+
+    public static String sessionKey(CardSignInfo card) {
+        if (card.getCardType() == CardSignInfo.PKCS12TYPE) {
+            return "pkcs12:" + card.getTokenSerialNumber();
+        }
+
+        return "pkcs11:" + card.getSlotID() + ":" + card.getTokenSerialNumber();
+    }
+
+    private void closeIdleSessions() {
+        Settings settings = SettingsManager.getInstance().getAndCreateSettings();
+        if (settings.tokenIdleTimeout <= 0) {
+            return;
+        }
+
+        long limit = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(settings.tokenIdleTimeout);
+        this.sessions.forEach((key, session) -> {
+            if (session.isClosed() || session.getLastUsed() < limit) {
+                if (this.sessions.remove(key, session)) {
+                    LOG.info("Cerrando sesión inactiva con el dispositivo de firma {}", key);
+                    session.close();
+                }
+            }
+        });
+    }
+
+    private byte[] fingerprint(CardSignInfo card) {
+        if (card.getPin() == null || card.getPin().getPassword() == null) {
+            return new byte[0];
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(this.pinSalt);
+            ByteBuffer pinBytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(card.getPin().getPassword()));
+            digest.update(pinBytes);
+            Arrays.fill(pinBytes.array(), (byte) 0);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
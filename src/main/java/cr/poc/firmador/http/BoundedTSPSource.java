@@ -0,0 +1,53 @@
+package cr.poc.firmador.http;
+
+import eu.europa.esig.dss.enumerations.DigestAlgorithm;
+import eu.europa.esig.dss.model.TimestampBinary;
+import eu.europa.esig.dss.service.tsp.OnlineTSPSource;
+
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TSA client that lets at most {@code maxConcurrency} requests reach the TSA at once, however many documents are
+ * being processed in parallel, and keeps the latency of every request for the final report of bulk commands.
+ * <p>
+ * Requests are delegated to the shared client of {@link DataLoaderManager}, so they still use its connection pool.
+ */
+public class BoundedTSPSource extends OnlineTSPSource {
+    private final OnlineTSPSource delegate;
+    private final Semaphore permits;
+    private long[] latencies = new long[1024];
+    private int count;
+
+    public BoundedTSPSource(OnlineTSPSource delegate, int maxConcurrency) {
+        this.delegate = delegate;
+        this.permits = new Semaphore(Math.max(1, maxConcurrency), true);
+    }
+
+    @Override
+    public TimestampBinary getTimeStampResponse(DigestAlgorithm digestAlgorithm, byte[] digest) {
+        this.permits.acquireUninterruptibly();
+        long start = System.nanoTime();
+        try {
+            return this.delegate.getTimeStampResponse(digestAlgorithm, digest);
+        } finally {
+            this.record(System.nanoTime() - start);
+            this.permits.release();
+        }
+    }
+
+    /**
+     * Latencies of the requests made so far, failed ones included, in milliseconds and sorted.
+     */
+    public synchronized double[] getLatenciesMillis() {
+        return Arrays.stream(this.latencies, 0, this.count).sorted().mapToDouble(nanos -> nanos / (double) TimeUnit.MILLISECONDS.toNanos(1)).toArray();
+    }
+
+    private synchronized void record(long nanos) {
+        if (this.count == this.latencies.length) {
+            this.latencies = Arrays.copyOf(this.latencies, this.count * 2);
+        }
+        this.latencies[this.count++] = nanos;
+    }
+}
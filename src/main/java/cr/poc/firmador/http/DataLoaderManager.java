@@ -0,0 +1,82 @@
+package cr.poc.firmador.http;
+
+import cr.poc.firmador.settings.Settings;
+import cr.poc.firmador.settings.SettingsManager;
+import cr.poc.firmador.sign.CRSigner;
+import cr.poc.firmador.sign.PAdESContentSizeEstimator;
+import eu.europa.esig.dss.enumerations.DigestAlgorithm;
+import eu.europa.esig.dss.model.TimestampBinary;
+import eu.europa.esig.dss.service.tsp.OnlineTSPSource;
+import eu.europa.esig.dss.spi.client.http.DataLoader;
+
+/**
+ * Process-wide HTTP clients for the TSA, OCSP, CRL and AIA services of the SINPE infrastructure.
+ * <p>
+ * All loaders share one keep-alive connection pool configured from {@link Settings}: connect and read timeouts,
+ * total connections and a per-host limit that also bounds how many requests run concurrently against one server
+ * (callers beyond the limit wait for a free connection up to the read timeout).
+ */
+public class DataLoaderManager {
+    private static final DataLoaderManager dm = new DataLoaderManager();
+
+    public static final String OCSP_CONTENT_TYPE = "application/ocsp-request";
+    public static final String TIMESTAMP_CONTENT_TYPE = "application/timestamp-query";
+
+    private final PooledDataLoader dataLoader;
+    private final PooledDataLoader ocspDataLoader;
+    private final PooledDataLoader timestampDataLoader;
+    private final OnlineTSPSource tspSource;
+
+    private DataLoaderManager() {
+        Settings settings = SettingsManager.getInstance().getAndCreateSettings();
+        this.dataLoader = new PooledDataLoader();
+        this.dataLoader.setTimeoutConnection(settings.httpConnectTimeout);
+        this.dataLoader.setTimeoutConnectionRequest(settings.httpReadTimeout);
+        this.dataLoader.setTimeoutResponse(settings.httpReadTimeout);
+        this.dataLoader.setTimeoutSocket(settings.httpReadTimeout);
+        this.dataLoader.setConnectionKeepAlive(settings.httpKeepAlive);
+        this.dataLoader.setConnectionTimeToLive(settings.httpKeepAlive);
+        this.dataLoader.setConnectionsMaxTotal(settings.httpMaxConnections);
+        this.dataLoader.setConnectionsMaxPerRoute(settings.httpMaxConnectionsPerHost);
+
+        this.ocspDataLoader = new PooledDataLoader(OCSP_CONTENT_TYPE, this.dataLoader);
+        this.timestampDataLoader = new PooledDataLoader(TIMESTAMP_CONTENT_TYPE, this.dataLoader);
+        this.tspSource = new OnlineTSPSource(CRSigner.TSA_URL, this.timestampDataLoader) {
+            @Override
+            public TimestampBinary getTimeStampResponse(DigestAlgorithm digestAlgorithm, byte[] digest) {
+                // El tamaño real de los sellos ajusta el espacio reservado de las siguientes firmas PAdES
+                TimestampBinary token = super.getTimeStampResponse(digestAlgorithm, digest);
+                PAdESContentSizeEstimator.getInstance().recordTimestampToken(token.getBytes().length);
+                return token;
+            }
+        };
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this.dataLoader::shutdown, "http-pool-shutdown"));
+    }
+
+    public static DataLoaderManager getInstance() {
+        return dm;
+    }
+
+    /**
+     * Loader for plain GET downloads: CRLs and AIA issuer certificates.
+     */
+    public DataLoader getDataLoader() {
+        return this.dataLoader;
+    }
+
+    public DataLoader getOcspDataLoader() {
+        return this.ocspDataLoader;
+    }
+
+    public DataLoader getTimestampDataLoader() {
+        return this.timestampDataLoader;
+    }
+
+    /**
+     * Shared client for the SINPE time-stamping authority at {@link CRSigner#TSA_URL}.
+     */
+    public OnlineTSPSource getTSPSource() {
+        return this.tspSource;
+    }
+}
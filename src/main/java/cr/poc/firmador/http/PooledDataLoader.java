@@ -0,0 +1,86 @@
+package cr.poc.firmador.http;
+
+import cr.poc.firmador.metrics.SigningMetrics;
+import eu.europa.esig.dss.service.http.commons.CommonsDataLoader;
+import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
+import org.apache.hc.client5.http.io.HttpClientConnectionManager;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+
+/**
+ * {@link CommonsDataLoader} that keeps its connection pool between requests.
+ * <p>
+ * The stock loader builds a new HTTP client and connection manager for every call and closes both afterwards, so
+ * each TSA, OCSP, CRL and AIA request pays a fresh TCP (and TLS) handshake. This loader creates the pooling
+ * connection manager once and marks it as shared, so closing the per-request client leaves kept-alive connections
+ * in the pool. Loaders built with {@link #PooledDataLoader(String, PooledDataLoader)} only differ in the request
+ * content type and share the same pool, timeouts and per-host limits.
+ * <p>
+ * Requests are timed in {@link SigningMetrics}: timestamp queries as TSA requests, everything else (OCSP, CRL and
+ * AIA downloads) as revocation fetches, tagged with the format of the signature being built on the calling thread.
+ */
+public class PooledDataLoader extends CommonsDataLoader {
+    private static final Logger LOG = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+
+    private HttpClientConnectionManager connectionManager;
+
+    public PooledDataLoader() {
+        super();
+    }
+
+    public PooledDataLoader(String contentType, PooledDataLoader shared) {
+        super(contentType);
+        this.setTimeoutConnection(shared.getTimeoutConnection());
+        this.setTimeoutConnectionRequest(shared.getTimeoutConnectionRequest());
+        this.setTimeoutResponse(shared.getTimeoutResponse());
+        this.setTimeoutSocket(shared.getTimeoutSocket());
+        this.setConnectionKeepAlive(shared.getConnectionKeepAlive());
+        this.setConnectionsMaxTotal(shared.getConnectionsMaxTotal());
+        this.setConnectionsMaxPerRoute(shared.getConnectionsMaxPerRoute());
+        this.setConnectionTimeToLive(shared.getConnectionTimeToLive());
+        this.connectionManager = shared.getConnectionManager();
+    }
+
+    @Override
+    public byte[] get(String url) {
+        return SigningMetrics.getInstance().timeNested(SigningMetrics.Phase.REVOCATION_FETCH, () -> super.get(url));
+    }
+
+    @Override
+    public byte[] post(String url, byte[] content) {
+        SigningMetrics.Phase phase = DataLoaderManager.TIMESTAMP_CONTENT_TYPE.equals(this.getContentType()) ? SigningMetrics.Phase.TSA_REQUEST : SigningMetrics.Phase.REVOCATION_FETCH;
+        return SigningMetrics.getInstance().timeNested(phase, () -> super.post(url, content));
+    }
+
+    @Override
+    protected synchronized HttpClientConnectionManager getConnectionManager() {
+        if (this.connectionManager == null) {
+            this.connectionManager = super.getConnectionManager();
+        }
+
+        return this.connectionManager;
+    }
+
+    @Override
+    protected synchronized HttpClientBuilder getHttpClientBuilder(String url) {
+        // El pool es compartido: cerrar el cliente de cada solicitud no debe cerrar las conexiones abiertas
+        return super.getHttpClientBuilder(url).setConnectionManagerShared(true);
+    }
+
+    /**
+     * Closes the pooled connections. Every loader sharing the pool becomes unusable afterwards.
+     */
+    public synchronized void shutdown() {
+        if (this.connectionManager != null) {
+            try {
+                this.connectionManager.close();
+            } catch (IOException e) {
+                LOG.warn("Error cerrando el pool de conexiones HTTP", e);
+            }
+            this.connectionManager = null;
+        }
+    }
+}
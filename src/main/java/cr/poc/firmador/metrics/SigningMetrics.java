@@ -0,0 +1,271 @@
+package cr.poc.firmador.metrics;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Latency timers and event counters for the phases of a signature, tagged by signature format.
+ * <p>
+ * Meters are registered in a {@link CompositeMeterRegistry} that always contains an in-memory
+ * {@link SimpleMeterRegistry}, used for the text and JSON dumps printed by the CLI. Further registries (Prometheus,
+ * JMX, ...) can be plugged in with {@link #addRegistry(MeterRegistry)} and receive the same measurements. The
+ * percentiles and maximum of the in-memory registry cover the whole run instead of the last couple of minutes that
+ * Micrometer keeps by default, so the dump at the end of a long batch describes all of it.
+ * <p>
+ * Phases nested inside a timed phase and running on the same thread, such as the TSA and revocation requests made
+ * by {@code signDocument}, inherit the format of the enclosing phase.
+ */
+public class SigningMetrics {
+    private static final SigningMetrics sm = new SigningMetrics();
+
+    public static final String PADES = "pades";
+    public static final String XADES = "xades";
+    public static final String CADES = "cades";
+    public static final String ASIC = "asic";
+    public static final String OOXML = "ooxml";
+    public static final String NO_FORMAT = "none";
+
+    private static final String PHASE_METRIC = "firmador.sign.phase";
+    private static final String EVENT_METRIC = "firmador.sign.events";
+    private static final Duration RUN_STATISTICS_EXPIRY = Duration.ofDays(365);
+
+    private final CompositeMeterRegistry registry = new CompositeMeterRegistry();
+    private final ThreadLocal<String> currentFormat = new ThreadLocal<>();
+
+    public enum Phase {
+        TOKEN_CONNECT("token.connect"),
+        KEY_LOOKUP("key.lookup"),
+        DATA_TO_SIGN("data.to.sign"),
+        TOKEN_SIGN("token.sign"),
+        TSA_REQUEST("tsa.request"),
+        REVOCATION_FETCH("revocation.fetch"),
+        SIGN_DOCUMENT("sign.document");
+
+        private final String tag;
+
+        Phase(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    public enum Event {
+        FALLBACK_BASELINE_B("fallback.baseline.b"),
+        FALLBACK_BASELINE_T("fallback.baseline.t"),
+        PIN_ERROR("pin.error"),
+        OVERLAP_ERROR("overlap.error");
+
+        private final String tag;
+
+        Event(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    private SigningMetrics() {
+        SimpleMeterRegistry dumpRegistry = new SimpleMeterRegistry();
+        // Una sola ventana que no vence durante la ejecución, en lugar de las que rotan cada dos minutos
+        dumpRegistry.config().meterFilter(new MeterFilter() {
+            @Override
+            public DistributionStatisticConfig configure(Meter.Id id, DistributionStatisticConfig config) {
+                return DistributionStatisticConfig.builder().expiry(RUN_STATISTICS_EXPIRY).bufferLength(1).build().merge(config);
+            }
+        });
+        this.registry.add(dumpRegistry);
+    }
+
+    public static SigningMetrics getInstance() {
+        return sm;
+    }
+
+    public MeterRegistry getRegistry() {
+        return this.registry;
+    }
+
+    public void addRegistry(MeterRegistry meterRegistry) {
+        this.registry.add(meterRegistry);
+    }
+
+    /**
+     * Starts timing {@code phase} of a {@code format} signature; the measurement is recorded when the returned timer
+     * is closed, so it is meant for try-with-resources blocks.
+     */
+    public PhaseTimer start(Phase phase, String format) {
+        return new PhaseTimer(phase, format);
+    }
+
+    /**
+     * Runs {@code action} timing it as {@code phase} of a {@code format} signature.
+     */
+    public <T> T time(Phase phase, String format, Supplier<T> action) {
+        try (PhaseTimer timer = this.start(phase, format)) {
+            return action.get();
+        }
+    }
+
+    /**
+     * Like {@link #time(Phase, String, Supplier)}, tagged with the format of the enclosing phase on this thread.
+     */
+    public <T> T timeNested(Phase phase, Supplier<T> action) {
+        return this.time(phase, this.getCurrentFormat(), action);
+    }
+
+    public void record(Phase phase, String format, long nanos) {
+        Timer.builder(PHASE_METRIC)
+                .tag("phase", phase.tag)
+                .tag("format", format)
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .publishPercentileHistogram()
+                .register(this.registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void increment(Event event, String format) {
+        Counter.builder(EVENT_METRIC)
+                .tag("event", event.tag)
+                .tag("format", format)
+                .register(this.registry)
+                .increment();
+    }
+
+    public String getCurrentFormat() {
+        String format = this.currentFormat.get();
+        return format == null ? NO_FORMAT : format;
+    }
+
+    public boolean isEmpty() {
+        return this.registry.getMeters().isEmpty();
+    }
+
+    /**
+     * Fixed-width table with count, mean, p50/p95/p99 and max per timer, followed by the counters.
+     */
+    public String dumpText() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%-18s %-7s %7s %10s %10s %10s %10s %10s%n", "phase", "format", "count", "mean ms", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+        for (Timer timer : this.timers()) {
+            Map<String, Double> percentiles = percentiles(timer.takeSnapshot());
+            out.append(String.format("%-18s %-7s %7d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    timer.getId().getTag("phase"), timer.getId().getTag("format"), timer.count(),
+                    timer.mean(TimeUnit.MILLISECONDS), percentiles.getOrDefault("p50", 0.0),
+                    percentiles.getOrDefault("p95", 0.0), percentiles.getOrDefault("p99", 0.0),
+                    timer.max(TimeUnit.MILLISECONDS)));
+        }
+
+        List<Counter> counters = this.counters();
+        if (!counters.isEmpty()) {
+            out.append(String.format("%-18s %-7s %7s%n", "event", "format", "count"));
+        }
+        for (Counter counter : counters) {
+            out.append(String.format("%-18s %-7s %7.0f%n", counter.getId().getTag("event"), counter.getId().getTag("format"), counter.count()));
+        }
+
+        return out.toString();
+    }
+
+    public String dumpJson() {
+        List<Map<String, Object>> timers = new ArrayList<>();
+        for (Timer timer : this.timers()) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("phase", timer.getId().getTag("phase"));
+            entry.put("format", timer.getId().getTag("format"));
+            entry.put("count", timer.count());
+            entry.put("totalMs", timer.totalTime(TimeUnit.MILLISECONDS));
+            entry.put("meanMs", timer.mean(TimeUnit.MILLISECONDS));
+            entry.put("maxMs", timer.max(TimeUnit.MILLISECONDS));
+            entry.put("percentilesMs", percentiles(timer.takeSnapshot()));
+            timers.add(entry);
+        }
+
+        List<Map<String, Object>> counters = new ArrayList<>();
+        for (Counter counter : this.counters()) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("event", counter.getId().getTag("event"));
+            entry.put("format", counter.getId().getTag("format"));
+            entry.put("count", (long) counter.count());
+            counters.add(entry);
+        }
+
+        Map<String, Object> dump = new LinkedHashMap<>();
+        dump.put("timers", timers);
+        dump.put("counters", counters);
+        try {
+            return new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValueAsString(dump);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public final class PhaseTimer implements AutoCloseable {
+        private final Phase phase;
+        private final String format;
+        private final String previousFormat;
+        private final long start;
+
+        private PhaseTimer(Phase phase, String format) {
+            this.phase = phase;
+            this.format = format;
+            this.previousFormat = currentFormat.get();
+            currentFormat.set(format);
+            this.start = System.nanoTime();
+        }
+
+        @Override
+        public void close() {
+            record(this.phase, this.format, System.nanoTime() - this.start);
+            if (this.previousFormat == null) {
+                currentFormat.remove();
+            } else {
+                currentFormat.set(this.previousFormat);
+            }
+        }
+    }
+
+    private List<Timer> timers() {
+        return this.registry.getMeters().stream()
+                .filter(meter -> meter instanceof Timer && PHASE_METRIC.equals(meter.getId().getName()))
+                .map(Timer.class::cast)
+                .sorted(Comparator.comparing((Meter meter) -> meter.getId().getTag("format")).thenComparing(meter -> Phase.valueOf(toEnumName(meter.getId().getTag("phase")))))
+                .toList();
+    }
+
+    private List<Counter> counters() {
+        return this.registry.getMeters().stream()
+                .filter(meter -> meter instanceof Counter && EVENT_METRIC.equals(meter.getId().getName()))
+                .map(Counter.class::cast)
+                .sorted(Comparator.comparing((Meter meter) -> meter.getId().getTag("event")).thenComparing(meter -> meter.getId().getTag("format")))
+                .toList();
+    }
+
+    private static String toEnumName(String tag) {
+        return tag.replace('.', '_').toUpperCase();
+    }
+
+    private static Map<String, Double> percentiles(HistogramSnapshot snapshot) {
+        Map<String, Double> values = new LinkedHashMap<>();
+        for (ValueAtPercentile percentile : snapshot.percentileValues()) {
+            values.put("p" + Math.round(percentile.percentile() * 100), percentile.value(TimeUnit.MILLISECONDS));
+        }
+
+        return values;
+    }
+}
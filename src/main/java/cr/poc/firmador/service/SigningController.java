@@ -0,0 +1,467 @@
+package cr.poc.firmador.service;
+
+import cr.poc.firmador.card.CardSignInfo;
+import cr.poc.firmador.card.SmartCardManager;
+import cr.poc.firmador.settings.Settings;
+import cr.poc.firmador.settings.SettingsManager;
+import cr.poc.firmador.sign.ExternalPAdESSessions;
+import cr.poc.firmador.sign.FirmadorCAdES;
+import cr.poc.firmador.sign.FirmadorOpenDocument;
+import cr.poc.firmador.sign.FirmadorPAdES;
+import cr.poc.firmador.sign.FirmadorWord;
+import cr.poc.firmador.sign.FirmadorXAdES;
+import cr.poc.firmador.sign.PAdESTemplates;
+import cr.poc.firmador.utils.FirmadorUtils;
+import cr.poc.firmador.validate.Report;
+import cr.poc.firmador.validate.Validator;
+import eu.europa.esig.dss.enumerations.DigestAlgorithm;
+import eu.europa.esig.dss.model.DSSDocument;
+import eu.europa.esig.dss.model.FileDocument;
+import eu.europa.esig.dss.model.x509.CertificateToken;
+import eu.europa.esig.dss.spi.DSSUtils;
+import eu.europa.esig.dss.utils.Utils;
+import eu.europa.esig.dss.validation.reports.Reports;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * HTTP front end of the signers for the {@code serve} command, so upstream systems can submit documents to a
+ * running process instead of starting one per file.
+ * <p>
+ * Request bodies are the raw documents (any content type but form data) and are spooled to a temporary file instead
+ * of being buffered in memory; responses are streamed back from the signed document and the temporary files are
+ * removed once written. Requests run on virtual threads (see {@code application-service.properties}) and only meet
+ * at the card: every device has a single {@link cr.poc.firmador.card.TokenSession} whose fair lock turns it into a
+ * serialized lane.
+ * <p>
+ * The card PIN travels in the {@value #PIN_HEADER} header; {@value #CARD_HEADER} selects a card by identification
+ * or token serial when several are connected. The service has no authentication of its own, so it listens on the
+ * loopback interface by default ({@link Settings#serviceAddress}) and rate limits wrong PINs.
+ */
+@RestController
+@Profile(SigningController.PROFILE)
+public class SigningController {
+    private static final Logger LOG = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final String PROFILE = "service";
+    public static final String PIN_HEADER = "X-Firmador-Pin";
+    public static final String CARD_HEADER = "X-Firmador-Card";
+
+    // Un cuerpo de formulario lo consumiría el contenedor al leer los parámetros de la URL
+    private static final String RAW_BODY = "!" + MediaType.APPLICATION_FORM_URLENCODED_VALUE;
+
+    private static final String PADES = "pades";
+    private static final String XADES = "xades";
+    private static final String CADES = "cades";
+    private static final String ASIC = "asic";
+    private static final String OOXML = "ooxml";
+    private static final List<String> FORMATS = List.of(PADES, XADES, CADES, ASIC, OOXML);
+    private static final String HTML_REPORT_STYLESHEET = "/xslt/html/simple-report.xslt";
+
+    private final SmartCardManager smartCardManager;
+    private final Settings settings;
+    private final Map<String, DetectedCards> detectedCards = new ConcurrentHashMap<>();
+    // Las tarjetas detectadas se guardan por un hash del PIN con sal, que no sirve para adivinarlo fuera del proceso
+    private final byte[] pinSalt = new byte[16];
+    private final ReentrantLock loginLock = new ReentrantLock();
+    // Los PIN rechazados se cuentan por dispositivo, protegidos por loginLock
+    private final Map<String, PinFailures> pinFailures = new HashMap<>();
+    private final Map<String, String> cardSerials = new HashMap<>();
+
+    @Autowired
+    public SigningController(SmartCardManager smartCardManager) {
+        this.smartCardManager = smartCardManager;
+        this.settings = SettingsManager.getInstance().getAndCreateSettings();
+        new SecureRandom().nextBytes(this.pinSalt);
+    }
+
+    @PostMapping(value = "/sign/{format}", consumes = RAW_BODY)
+    public ResponseEntity<StreamingResponseBody> sign(@PathVariable String format,
+                                                      @RequestHeader(PIN_HEADER) String pin,
+                                                      @RequestHeader(value = CARD_HEADER, required = false) String cardId,
+                                                      @RequestParam(required = false) String reason,
+                                                      @RequestParam(required = false) String location,
+                                                      @RequestParam(required = false) String name,
+                                                      @RequestParam(required = false) String field,
+                                                      InputStream body) throws IOException {
+        checkFormat(format);
+        Path input = spool(body, name, format);
+        try {
+            CardSignInfo card = this.findCard(pin, cardId);
+            DSSDocument document = new FileDocument(input.toFile());
+            return switch (format) {
+                case PADES -> {
+                    FirmadorPAdES signer = new FirmadorPAdES();
+                    if (field != null) {
+                        signer.useTemplateField(field);
+                    }
+                    yield respond(signer.sign(document, card, reason, location, null, null, false), input, signer);
+                }
+                case XADES -> respond(new FirmadorXAdES().sign(document, card), input, null);
+                case CADES -> respond(new FirmadorCAdES().sign(document, card), input, null);
+                case ASIC -> respond(new FirmadorOpenDocument().sign(document, card), input, null);
+                case OOXML -> {
+                    FirmadorWord signer = new FirmadorWord();
+                    yield respond(signer.sign(document, card), input, signer);
+                }
+                default -> throw new IllegalStateException(format);
+            };
+        } catch (RuntimeException e) {
+            Files.deleteIfExists(input);
+            throw e;
+        }
+    }
+
+    /**
+     * Detached CAdES signature of a document sent only as its SHA-256 digest (hex or base64).
+     */
+    @PostMapping("/sign/digest")
+    public ResponseEntity<StreamingResponseBody> signDigest(@RequestHeader(PIN_HEADER) String pin,
+                                                            @RequestHeader(value = CARD_HEADER, required = false) String cardId,
+                                                            @RequestParam String digest,
+                                                            @RequestParam(required = false) String name) throws IOException {
+        byte[] digestValue;
+        try {
+            digestValue = FirmadorCAdES.parseDigest(digest);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+
+        CardSignInfo card = this.findCard(pin, cardId);
+        return respond(new FirmadorCAdES().signDigest(digestValue, name, card), null, null);
+    }
+
+    @PostMapping(value = "/extend/{format}", consumes = RAW_BODY)
+    public ResponseEntity<StreamingResponseBody> extend(@PathVariable String format,
+                                                        @RequestParam(required = false) String name,
+                                                        InputStream body) throws IOException {
+        checkFormat(format);
+        Path input = spool(body, name, format);
+        try {
+            DSSDocument document = new FileDocument(input.toFile());
+            return switch (format) {
+                case PADES -> {
+                    FirmadorPAdES signer = new FirmadorPAdES();
+                    yield respond(signer.extend(document, this.settings.getPAdESLevel()), input, signer);
+                }
+                case XADES -> respond(new FirmadorXAdES().extend(document, this.settings.getXAdESLevel(), null), input, null);
+                case CADES -> respond(new FirmadorCAdES().extend(document, this.settings.getCAdESLevel(), null), input, null);
+                case ASIC -> respond(new FirmadorOpenDocument().extend(document), input, null);
+                case OOXML -> throw new ResponseStatusException(HttpStatus.NOT_IMPLEMENTED, "Las firmas OOXML no se pueden ampliar");
+                default -> throw new IllegalStateException(format);
+            };
+        } catch (RuntimeException e) {
+            Files.deleteIfExists(input);
+            throw e;
+        }
+    }
+
+    /**
+     * First step of a PAdES signature made by a card on another host: prepares the PDF for the base64 DER
+     * {@code certificate} and answers with the session ID and the digest to sign. The PDF stays on this host.
+     */
+    @PostMapping(value = "/external/prepare", consumes = RAW_BODY)
+    public ExternalPAdESSessions.ExternalSignatureRequest prepareExternal(@RequestParam String certificate,
+                                                                          @RequestParam(required = false) String reason,
+                                                                          @RequestParam(required = false) String location,
+                                                                          @RequestParam(required = false) String name,
+                                                                          @RequestParam(required = false) String field,
+                                                                          InputStream body) throws IOException {
+        CertificateToken signingCertificate;
+        try {
+            signingCertificate = DSSUtils.loadCertificateFromBase64EncodedString(certificate);
+        } catch (RuntimeException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "El certificado no es un X.509 en base64", e);
+        }
+
+        Path input = spool(body, name, PADES);
+        ExternalPAdESSessions.ExternalSignatureRequest request;
+        try {
+            request = ExternalPAdESSessions.getInstance().prepare(new FileDocument(input.toFile()), signingCertificate, reason, location, field,
+                    () -> Files.deleteIfExists(input));
+        } catch (RuntimeException e) {
+            Files.deleteIfExists(input);
+            throw e;
+        }
+
+        if (request == null) {
+            Files.deleteIfExists(input);
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Hay demasiadas firmas externas pendientes, intente más tarde");
+        }
+
+        return request;
+    }
+
+    /**
+     * Second step of an external signature: embeds the base64 raw {@code signature} of the digest and answers with
+     * the signed PDF.
+     */
+    @PostMapping("/external/complete/{session}")
+    public ResponseEntity<StreamingResponseBody> completeExternal(@PathVariable String session,
+                                                                  @RequestParam String signature) throws IOException {
+        ExternalPAdESSessions.PendingSignature pending = ExternalPAdESSessions.getInstance().take(session);
+        if (pending == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "La sesión de firma externa no existe o venció");
+        }
+
+        try {
+            return respond(pending.complete(Utils.fromBase64(signature)), null, pending);
+        } catch (IllegalArgumentException e) {
+            close(pending);
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        } catch (RuntimeException e) {
+            close(pending);
+            throw e;
+        }
+    }
+
+    /**
+     * Adds an empty signature field to a PDF template at the configured visible signature position, so the documents
+     * generated from it can be signed with {@code /sign/pades?field=}. Prepared templates are cached.
+     */
+    @PostMapping(value = "/template", consumes = RAW_BODY)
+    public ResponseEntity<StreamingResponseBody> template(@RequestParam(defaultValue = PAdESTemplates.DEFAULT_FIELD_ID) String field,
+                                                          @RequestParam(required = false) String name,
+                                                          InputStream body) throws IOException {
+        Path input = spool(body, name, PADES);
+        try {
+            return respond(PAdESTemplates.getInstance().prepare(new FileDocument(input.toFile()), field, this.settings), input, null);
+        } catch (RuntimeException e) {
+            Files.deleteIfExists(input);
+            throw e;
+        }
+    }
+
+    /**
+     * Adds a document timestamp to a PDF, the only format with standalone timestamps in the signers.
+     */
+    @PostMapping(value = "/timestamp", consumes = RAW_BODY)
+    public ResponseEntity<StreamingResponseBody> timestamp(@RequestParam(defaultValue = "false") boolean visible,
+                                                           @RequestParam(required = false) String name,
+                                                           InputStream body) throws IOException {
+        Path input = spool(body, name, PADES);
+        try {
+            FirmadorPAdES signer = new FirmadorPAdES();
+            return respond(signer.timestamp(new FileDocument(input.toFile()), visible), input, signer);
+        } catch (RuntimeException e) {
+            Files.deleteIfExists(input);
+            throw e;
+        }
+    }
+
+    /**
+     * Validates the signatures of a document of any format, answering with the DSS simple report or, with
+     * {@code report=html}, the HTML report when its stylesheet is available.
+     */
+    @PostMapping(value = "/validate", consumes = RAW_BODY)
+    public ResponseEntity<String> validate(@RequestParam(defaultValue = "xml") String report,
+                                           @RequestParam(required = false) String name,
+                                           InputStream body) throws Exception {
+        if ("html".equalsIgnoreCase(report) && Report.class.getResource(HTML_REPORT_STYLESHEET) == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_IMPLEMENTED, "El reporte HTML no está disponible en esta instalación");
+        }
+
+        Path input = spool(body, name, null);
+        try {
+            Validator validator = new Validator(input.toString());
+            Reports reports = validator.getReports();
+            if ("html".equalsIgnoreCase(report)) {
+                return ResponseEntity.ok().contentType(new MediaType(MediaType.TEXT_HTML, StandardCharsets.UTF_8)).body(new Report(reports).getReport());
+            }
+
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_XML).body(reports.getXmlSimpleReport());
+        } finally {
+            Files.deleteIfExists(input);
+        }
+    }
+
+    private static void checkFormat(String format) {
+        if (!FORMATS.contains(format)) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Formato de firma desconocido: " + format);
+        }
+    }
+
+    private CardSignInfo findCard(String pin, String cardId) {
+        List<CardSignInfo> cards = this.detectCards(pin, cardId);
+        for (CardSignInfo card : cards) {
+            if (cardId == null || cardId.equals(card.getIdentification()) || cardId.equals(card.getTokenSerialNumber())) {
+                return card;
+            }
+        }
+
+        throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, cardId == null ? "No se detectaron dispositivos de firma" : "No se encontró el dispositivo de firma " + cardId);
+    }
+
+    /**
+     * Detecting the cards loads the PKCS#11 module and logs in, so the result is kept per PIN for as long as the
+     * token sessions themselves are kept open.
+     * <p>
+     * Logins are serialized and rate limited per card, the one named by {@code cardId} or the default card: every
+     * wrong PIN counts against that card's own retry counter, so after one the service waits
+     * {@link Settings#pinRetryDelay} seconds before trying another PIN on it, and after {@link Settings#pinMaxFailures}
+     * in a row it stops logging in to it until restarted instead of letting the card lock. Other cards are not
+     * affected. A card's identification and token serial share the same counter once a login has seen the card.
+     */
+    private List<CardSignInfo> detectCards(String pin, String cardId) {
+        String key = Utils.toHex(DSSUtils.digest(DigestAlgorithm.SHA256, this.pinSalt, pin.getBytes(StandardCharsets.UTF_8)));
+        long maxAge = TimeUnit.SECONDS.toMillis(this.settings.tokenIdleTimeout);
+        DetectedCards detected = this.detectedCards.get(key);
+        if (detected != null && System.currentTimeMillis() - detected.detectedMillis() < maxAge) {
+            return detected.cards();
+        }
+
+        this.loginLock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            detected = this.detectedCards.get(key);
+            if (detected != null && now - detected.detectedMillis() < maxAge) {
+                return detected.cards();
+            }
+
+            String device = cardId == null ? "" : this.cardSerials.getOrDefault(cardId, cardId);
+            PinFailures failures = this.pinFailures.computeIfAbsent(device, k -> new PinFailures());
+            if (failures.count >= this.settings.pinMaxFailures) {
+                throw new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS, "Se rechazaron " + failures.count + " PIN seguidos, reinicie el servicio para volver a intentarlo");
+            }
+            if (now < failures.retryAfterMillis) {
+                throw new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS, "PIN incorrecto, espere " + TimeUnit.MILLISECONDS.toSeconds(failures.retryAfterMillis - now + 999) + " segundos antes de volver a intentarlo");
+            }
+
+            try {
+                List<CardSignInfo> cards = this.smartCardManager.readCertificatesInfo(Optional.of(new KeyStore.PasswordProtection(pin.toCharArray())));
+                this.pinFailures.remove(device);
+                for (CardSignInfo card : cards) {
+                    if (card.getIdentification() != null && card.getTokenSerialNumber() != null) {
+                        this.cardSerials.put(card.getIdentification(), card.getTokenSerialNumber());
+                    }
+                }
+                if (!cards.isEmpty() && maxAge > 0) {
+                    this.detectedCards.put(key, new DetectedCards(cards, now));
+                }
+                return cards;
+            } catch (Exception e) {
+                LOG.error("Error al detectar los dispositivos de firma", e);
+                this.detectedCards.remove(key);
+                if ("CKR_PIN_INCORRECT".equals(FirmadorUtils.getRootCause(e).getMessage())) {
+                    failures.count++;
+                    failures.retryAfterMillis = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(this.settings.pinRetryDelay);
+                    LOG.warn("PIN incorrecto para {} ({} de {} intentos permitidos)", cardId == null ? "el dispositivo predeterminado" : cardId, failures.count, this.settings.pinMaxFailures);
+                }
+                throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "No se pudo acceder al dispositivo de firma", e);
+            }
+        } finally {
+            this.loginLock.unlock();
+        }
+    }
+
+    private static ResponseEntity<StreamingResponseBody> respond(DSSDocument document, Path input, AutoCloseable resource) throws IOException {
+        if (document == null) {
+            deleteIfExists(input);
+            close(resource);
+            throw new ResponseStatusException(HttpStatus.BAD_GATEWAY, "No se pudo procesar el documento, revise el registro del servicio");
+        }
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(document.getMimeType() != null ? MediaType.parseMediaType(document.getMimeType().getMimeTypeString()) : MediaType.APPLICATION_OCTET_STREAM);
+        if (document.getName() != null) {
+            headers.setContentDisposition(ContentDisposition.attachment().filename(Path.of(document.getName()).getFileName().toString(), StandardCharsets.UTF_8).build());
+        }
+
+        StreamingResponseBody body = out -> {
+            try {
+                document.writeTo(out);
+            } finally {
+                deleteIfExists(input);
+                close(resource);
+            }
+        };
+        return new ResponseEntity<>(body, headers, HttpStatus.OK);
+    }
+
+    private static Path spool(InputStream body, String name, String format) throws IOException {
+        Path input = Files.createTempFile("firmador-service", suffix(name, format));
+        try {
+            Files.copy(body, input, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(input);
+            throw e;
+        }
+
+        return input;
+    }
+
+    // DSS detecta el tipo MIME de un FileDocument por la extensión del archivo
+    private static String suffix(String name, String format) {
+        if (name != null && name.lastIndexOf('.') >= 0) {
+            return name.substring(name.lastIndexOf('.')).replaceAll("[^A-Za-z0-9.]", "");
+        }
+        if (format == null) {
+            return ".bin";
+        }
+
+        return switch (format) {
+            case PADES -> ".pdf";
+            case XADES -> ".xml";
+            case ASIC -> ".odt";
+            case OOXML -> ".docx";
+            default -> ".bin";
+        };
+    }
+
+    private static void deleteIfExists(Path input) throws IOException {
+        if (input != null) {
+            Files.deleteIfExists(input);
+        }
+    }
+
+    private static void close(AutoCloseable resource) {
+        if (resource == null) {
+            return;
+        }
+
+        try {
+            resource.close();
+        } catch (Exception e) {
+            LOG.warn("Error liberando los archivos temporales de la firma", e);
+        }
+    }
+
+    private record DetectedCards(List<CardSignInfo> cards, long detectedMillis) {
+    }
+
+    private static final class PinFailures {
+        private int count;
+        private long retryAfterMillis;
+    }
+}
@@ -49,6 +49,28 @@ public class Settings {
     public List<String> activePlugins = new ArrayList();
     public List<String> availablePlugins = new ArrayList();
     public float pDFImgScaleFactor = 1.0F;
+    public Integer tokenIdleTimeout = 300;
+    public Integer httpConnectTimeout = 10000;
+    public Integer httpReadTimeout = 30000;
+    public Integer httpKeepAlive = 60000;
+    public Integer httpMaxConnections = 32;
+    public Integer httpMaxConnectionsPerHost = 4;
+    public Integer ocspCacheMaxAge = 86400;
+    public Integer crlCacheMaxAge = 604800;
+    public Integer augmentMaxAttempts = 10;
+    public Integer augmentRetryDelay = 60;
+    public Integer augmentPollInterval = 30;
+    public Integer largePdfThreshold = 64;
+    public Integer pdfMemoryLimit = 32;
+    public Integer tsaConcurrency = 4;
+    public String tsaCertificate = null;
+    public Integer archiveRenewalMargin = 90;
+    public Integer archiveRenewalInterval = 24;
+    public Integer externalSigningTimeout = 300;
+    public Integer externalSigningMaxSessions = 64;
+    public String serviceAddress = "127.0.0.1";
+    public Integer pinMaxFailures = 2;
+    public Integer pinRetryDelay = 30;
 
     public Settings() {
         this.activePlugins.add("cr.libre.firmador.plugins.DummyPlugin");
@@ -89,6 +89,28 @@ public class SettingsManager {
             conf.pKCS12File = this.getListFromString(this.props.getProperty("pkcs12file", ""), conf.pKCS12File);
             conf.activePlugins = this.getListFromString(this.props.getProperty("plugins", ""), conf.activePlugins);
             conf.pDFImgScaleFactor = this.getFloatFromString(this.props.getProperty("pdfimgscalefactor", String.format("%.2f", conf.pDFImgScaleFactor)));
+            conf.tokenIdleTimeout = Integer.parseInt(this.props.getProperty("tokenidletimeout", conf.tokenIdleTimeout.toString()));
+            conf.httpConnectTimeout = Integer.parseInt(this.props.getProperty("httpconnecttimeout", conf.httpConnectTimeout.toString()));
+            conf.httpReadTimeout = Integer.parseInt(this.props.getProperty("httpreadtimeout", conf.httpReadTimeout.toString()));
+            conf.httpKeepAlive = Integer.parseInt(this.props.getProperty("httpkeepalive", conf.httpKeepAlive.toString()));
+            conf.httpMaxConnections = Integer.parseInt(this.props.getProperty("httpmaxconnections", conf.httpMaxConnections.toString()));
+            conf.httpMaxConnectionsPerHost = Integer.parseInt(this.props.getProperty("httpmaxconnectionsperhost", conf.httpMaxConnectionsPerHost.toString()));
+            conf.ocspCacheMaxAge = Integer.parseInt(this.props.getProperty("ocspcachemaxage", conf.ocspCacheMaxAge.toString()));
+            conf.crlCacheMaxAge = Integer.parseInt(this.props.getProperty("crlcachemaxage", conf.crlCacheMaxAge.toString()));
+            conf.augmentMaxAttempts = Integer.parseInt(this.props.getProperty("augmentmaxattempts", conf.augmentMaxAttempts.toString()));
+            conf.augmentRetryDelay = Integer.parseInt(this.props.getProperty("augmentretrydelay", conf.augmentRetryDelay.toString()));
+            conf.augmentPollInterval = Integer.parseInt(this.props.getProperty("augmentpollinterval", conf.augmentPollInterval.toString()));
+            conf.largePdfThreshold = Integer.parseInt(this.props.getProperty("largepdfthreshold", conf.largePdfThreshold.toString()));
+            conf.pdfMemoryLimit = Integer.parseInt(this.props.getProperty("pdfmemorylimit", conf.pdfMemoryLimit.toString()));
+            conf.tsaConcurrency = Integer.parseInt(this.props.getProperty("tsaconcurrency", conf.tsaConcurrency.toString()));
+            conf.tsaCertificate = this.props.getProperty("tsacertificate");
+            conf.archiveRenewalMargin = Integer.parseInt(this.props.getProperty("archiverenewalmargin", conf.archiveRenewalMargin.toString()));
+            conf.archiveRenewalInterval = Integer.parseInt(this.props.getProperty("archiverenewalinterval", conf.archiveRenewalInterval.toString()));
+            conf.externalSigningTimeout = Integer.parseInt(this.props.getProperty("externalsigningtimeout", conf.externalSigningTimeout.toString()));
+            conf.externalSigningMaxSessions = Integer.parseInt(this.props.getProperty("externalsigningmaxsessions", conf.externalSigningMaxSessions.toString()));
+            conf.serviceAddress = this.props.getProperty("serviceaddress", conf.serviceAddress);
+            conf.pinMaxFailures = Integer.parseInt(this.props.getProperty("pinmaxfailures", conf.pinMaxFailures.toString()));
+            conf.pinRetryDelay = Integer.parseInt(this.props.getProperty("pinretrydelay", conf.pinRetryDelay.toString()));
         }
 
         return conf;
@@ -143,6 +165,27 @@ public class SettingsManager {
         this.setProperty("xadesLevel", conf.xAdESLevel);
         this.setProperty("cadesLevel", conf.cAdESLevel);
         this.setProperty("plugins", this.getListRepr(conf.activePlugins));
+        this.setProperty("tokenidletimeout", conf.tokenIdleTimeout.toString());
+        this.setProperty("httpconnecttimeout", conf.httpConnectTimeout.toString());
+        this.setProperty("httpreadtimeout", conf.httpReadTimeout.toString());
+        this.setProperty("httpkeepalive", conf.httpKeepAlive.toString());
+        this.setProperty("httpmaxconnections", conf.httpMaxConnections.toString());
+        this.setProperty("httpmaxconnectionsperhost", conf.httpMaxConnectionsPerHost.toString());
+        this.setProperty("ocspcachemaxage", conf.ocspCacheMaxAge.toString());
+        this.setProperty("crlcachemaxage", conf.crlCacheMaxAge.toString());
+        this.setProperty("augmentmaxattempts", conf.augmentMaxAttempts.toString());
+        this.setProperty("augmentretrydelay", conf.augmentRetryDelay.toString());
+        this.setProperty("augmentpollinterval", conf.augmentPollInterval.toString());
+        this.setProperty("largepdfthreshold", conf.largePdfThreshold.toString());
+        this.setProperty("pdfmemorylimit", conf.pdfMemoryLimit.toString());
+        this.setProperty("tsaconcurrency", conf.tsaConcurrency.toString());
+        this.setProperty("archiverenewalmargin", conf.archiveRenewalMargin.toString());
+        this.setProperty("archiverenewalinterval", conf.archiveRenewalInterval.toString());
+        this.setProperty("externalsigningtimeout", conf.externalSigningTimeout.toString());
+        this.setProperty("externalsigningmaxsessions", conf.externalSigningMaxSessions.toString());
+        this.setProperty("serviceaddress", conf.serviceAddress);
+        this.setProperty("pinmaxfailures", conf.pinMaxFailures.toString());
+        this.setProperty("pinretrydelay", conf.pinRetryDelay.toString());
         if (conf.extraPKCS11Lib != null && conf.extraPKCS11Lib != "") {
             this.setProperty("extrapkcs11Lib", conf.extraPKCS11Lib);
         } else if (this.props.get("extrapkcs11Lib") != null) {
@@ -155,6 +198,11 @@ public class SettingsManager {
         } else if (this.props.get("image") != null) {
             this.props.remove("image");
         }
+        if (conf.tsaCertificate != null) {
+            this.setProperty("tsacertificate", conf.tsaCertificate);
+        } else if (this.props.get("tsacertificate") != null) {
+            this.props.remove("tsacertificate");
+        }
 
         if (save) {
             this.saveConfig();
@@ -1,20 +1,21 @@
 package cr.poc.firmador.sign;
 
+import cr.poc.firmador.augment.AugmentationJob;
+import cr.poc.firmador.augment.AugmentationQueue;
+import cr.poc.firmador.augment.AugmentationWorker;
 import cr.poc.firmador.card.CardSignInfo;
+import cr.poc.firmador.card.TokenSession;
+import cr.poc.firmador.card.TokenSessionManager;
+import cr.poc.firmador.http.DataLoaderManager;
+import cr.poc.firmador.metrics.SigningMetrics;
 import cr.poc.firmador.settings.Settings;
 import cr.poc.firmador.settings.SettingsManager;
+import cr.poc.firmador.trust.TrustStoreManager;
 import cr.poc.firmador.utils.FirmadorUtils;
 import eu.europa.esig.dss.enumerations.KeyUsageBit;
 import eu.europa.esig.dss.model.DSSException;
-import eu.europa.esig.dss.service.crl.OnlineCRLSource;
-import eu.europa.esig.dss.service.ocsp.OnlineOCSPSource;
-import eu.europa.esig.dss.spi.DSSUtils;
+import eu.europa.esig.dss.service.tsp.OnlineTSPSource;
 import eu.europa.esig.dss.spi.validation.CertificateVerifier;
-import eu.europa.esig.dss.spi.validation.CommonCertificateVerifier;
-import eu.europa.esig.dss.spi.x509.CertificateSource;
-import eu.europa.esig.dss.spi.x509.CommonCertificateSource;
-import eu.europa.esig.dss.spi.x509.CommonTrustedCertificateSource;
-import eu.europa.esig.dss.spi.x509.aia.DefaultAIASource;
 import eu.europa.esig.dss.token.DSSPrivateKeyEntry;
 import eu.europa.esig.dss.token.Pkcs11SignatureToken;
 import eu.europa.esig.dss.token.Pkcs12SignatureToken;
@@ -24,7 +25,6 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.lang.invoke.MethodHandles;
 import java.net.URI;
 import java.nio.file.FileSystem;
@@ -39,7 +39,58 @@ import java.util.List;
 public class CRSigner {
     final Logger LOG = LogManager.getLogger(MethodHandles.lookup().lookupClass());
     public static final String TSA_URL = "http://tsa.sinpe.fi.cr/tsaHttp/";
+    protected boolean augmentLater = false;
+    private OnlineTSPSource tspSource;
+
+    /**
+     * Sign-now mode: sign at BASELINE-B without contacting the TSA or the revocation services. Once the signed
+     * document is saved, the caller queues it with {@link #queueAugmentation} so it is raised to the configured level
+     * later.
+     *
+     * @throws IllegalArgumentException if this signer's format cannot be augmented by the {@link AugmentationWorker}
+     */
+    public void setAugmentLater(boolean augmentLater) {
+        if (augmentLater && this.getAugmentationFormat() == null) {
+            throw new IllegalArgumentException("El formato " + this.getMetricsFormat() + " no admite ampliar la firma más tarde");
+        }
+        this.augmentLater = augmentLater;
+    }
+
+    /**
+     * Queues {@code signedDocument}, saved from a signature made with {@link #setAugmentLater}, to be raised to the
+     * configured level.
+     *
+     * @param detachedContent the signed document of a detached signature, {@code null} otherwise
+     */
+    public AugmentationJob queueAugmentation(AugmentationQueue queue, Path signedDocument, Path detachedContent) throws IOException {
+        if (!this.augmentLater) {
+            throw new IllegalStateException("La firma no se hizo para ampliarla más tarde");
+        }
 
+        return queue.enqueue(signedDocument, this.getAugmentationFormat(), detachedContent);
+    }
+
+    /**
+     * Format of the augmentation jobs of this signer, {@code null} if its signatures cannot be augmented later.
+     */
+    protected AugmentationJob.Format getAugmentationFormat() {
+        return null;
+    }
+
+    public boolean isAugmentLater() {
+        return this.augmentLater;
+    }
+
+    /**
+     * Value of the {@code format} tag of the metrics recorded by this signer.
+     */
+    protected String getMetricsFormat() {
+        return SigningMetrics.NO_FORMAT;
+    }
+
+    protected SigningMetrics.PhaseTimer startTimer(SigningMetrics.Phase phase) {
+        return SigningMetrics.getInstance().start(phase, this.getMetricsFormat());
+    }
 
     protected DSSPrivateKeyEntry getPrivateKey(SignatureTokenConnection signingToken) {
         DSSPrivateKeyEntry privateKey = null;
@@ -52,6 +103,7 @@ public class CRSigner {
             String msg = error.getCause().toString();
             this.LOG.error("Error " + te.getLocalizedMessage() + " obteniendo manejador de llaves privadas de la tarjeta", error);
             if (te.getLocalizedMessage().equals("CKR_PIN_INCORRECT")) {
+                SigningMetrics.getInstance().increment(SigningMetrics.Event.PIN_ERROR, this.getMetricsFormat());
                 throw error;
             }
 
@@ -97,67 +149,81 @@ public class CRSigner {
         }
     }
 
+    /**
+     * Returns the pooled connection for the card. The connection stays logged in between documents and must not be
+     * closed by the caller; see {@link TokenSessionManager#logout(CardSignInfo)}.
+     */
     public SignatureTokenConnection getSignatureConnection(CardSignInfo card) {
-        SignatureTokenConnection signingToken = null;
+        TokenSession session = this.getTokenSession(card);
+        return session != null ? session.getToken() : null;
+    }
 
-        try {
-            if (card.getCardType() == CardSignInfo.PKCS12TYPE) {
-                // In this case the CardSignInfo.getTokenSerialNumber actually has a file absolute path to an PKCS12 key store
-                signingToken = new Pkcs12SignatureToken(card.getTokenSerialNumber(), card.getPin());
-            } else {
-                //TODO: Hacer dinamico el slot #, este mae sigue siendo "quemado" por el high level API
-                // ero se puede lograr con el approach de los public certs usando JNA
-                signingToken = new Pkcs11SignatureToken(getPkcs11Lib(), card.getPin(), (int) card.getSlotID());
-            }
+    /**
+     * Returns the pooled session for the card, with the token already opened so that the connection is measured as
+     * {@link SigningMetrics.Phase#TOKEN_CONNECT} and not as part of the key lookup. Returns null if the token can not
+     * be opened.
+     */
+    public TokenSession getTokenSession(CardSignInfo card) {
+        TokenSession session = null;
+
+        try (SigningMetrics.PhaseTimer timer = this.startTimer(SigningMetrics.Phase.TOKEN_CONNECT)) {
+            session = TokenSessionManager.getInstance().getSession(card);
+            session.getToken();
         } catch (Throwable e) {
             this.LOG.error("Error al obtener la conexión de firma", e);
+            if (session != null) {
+                session.close();
+                session = null;
+            }
         }
 
-        return signingToken;
+        return session;
     }
 
-    private void addCertificateToSource(CertificateSource source, String certPath) {
-        try (InputStream certStream = this.getClass().getClassLoader().getResourceAsStream(certPath)) {
-            if (certStream == null) {
-                LOG.error("Certificate file not found: {}", certPath);
-                return;
+    public DSSPrivateKeyEntry getPrivateKey(TokenSession session) {
+        try (SigningMetrics.PhaseTimer timer = this.startTimer(SigningMetrics.Phase.KEY_LOOKUP)) {
+            return session.getPrivateKey(this::getPrivateKey);
+        }
+    }
+
+    public static SignatureTokenConnection openSignatureToken(CardSignInfo card) {
+        if (card.getCardType() == CardSignInfo.PKCS12TYPE) {
+            // In this case the CardSignInfo.getTokenSerialNumber actually has a file absolute path to an PKCS12 key store
+            try {
+                return new Pkcs12SignatureToken(card.getTokenSerialNumber(), card.getPin());
+            } catch (IOException e) {
+                throw new DSSException("No se pudo abrir el almacén PKCS12 " + card.getTokenSerialNumber(), e);
             }
-            source.addCertificate(DSSUtils.loadCertificate(certStream));
-        } catch (IOException | DSSException e) {
-            LOG.error("Failed to load certificate from {}: {}", certPath, e.getMessage());
         }
+
+        //TODO: Hacer dinamico el slot #, este mae sigue siendo "quemado" por el high level API
+        // ero se puede lograr con el approach de los public certs usando JNA
+        return new Pkcs11SignatureToken(getPkcs11Lib(), card.getPin(), (int) card.getSlotID());
     }
 
+    /**
+     * Returns the process-wide verifier; it is built once from the bundled certificates and shared by every signer.
+     * Use {@link TrustStoreManager#reload()} when the certificate set changes.
+     */
     public CertificateVerifier getCertificateVerifier() {
         //For debugging
 //        listAvailableCertificates();
 
-        CertificateSource trustedCertSource = new CommonTrustedCertificateSource();
-
-        // Add root certificates
-        addCertificateToSource(trustedCertSource, "certs/CA RAIZ NACIONAL - COSTA RICA v2.crt");
-        addCertificateToSource(trustedCertSource, "certs/CA RAIZ NACIONAL COSTA RICA.cer");
-
-        CertificateSource adjunctCertSource = new CommonCertificateSource();
-
-        // Add intermediate certificates
-        addCertificateToSource(adjunctCertSource, "certs/CA POLITICA PERSONA FISICA - COSTA RICA v2.crt");
-        addCertificateToSource(adjunctCertSource, "certs/CA POLITICA PERSONA JURIDICA - COSTA RICA v2.crt");
-        addCertificateToSource(adjunctCertSource, "certs/CA POLITICA SELLADO DE TIEMPO - COSTA RICA v2.crt");
-        addCertificateToSource(adjunctCertSource, "certs/CA SINPE - PERSONA FISICA v2(1).crt");
-        addCertificateToSource(adjunctCertSource, "certs/CA SINPE - PERSONA FISICA v2(2).crt");
-        addCertificateToSource(adjunctCertSource, "certs/CA SINPE - PERSONA JURIDICA v2(1).crt");
-        addCertificateToSource(adjunctCertSource, "certs/CA SINPE - PERSONA JURIDICA v2(2).crt");
-        addCertificateToSource(adjunctCertSource, "certs/TSA SINPE v3.cer");
-
-        CommonCertificateVerifier cv = new CommonCertificateVerifier();
-        cv.setTrustedCertSources(new CertificateSource[]{trustedCertSource});
-        cv.setAdjunctCertSources(new CertificateSource[]{adjunctCertSource});
-        cv.setCrlSource(new OnlineCRLSource());
-        cv.setOcspSource(new OnlineOCSPSource());
-        cv.setAIASource(new DefaultAIASource());
-        cv.setRevocationFallback(true);
-        return cv;
+        return TrustStoreManager.getInstance().getCertificateVerifier();
+    }
+
+    /**
+     * Returns the shared client for the SINPE TSA; it reuses pooled keep-alive connections.
+     */
+    public OnlineTSPSource getTSPSource() {
+        return this.tspSource != null ? this.tspSource : DataLoaderManager.getInstance().getTSPSource();
+    }
+
+    /**
+     * Replaces the shared TSA client for this signer, e.g. with a {@link cr.poc.firmador.http.BoundedTSPSource}.
+     */
+    public void setTSPSource(OnlineTSPSource tspSource) {
+        this.tspSource = tspSource;
     }
 
     private void listAvailableCertificates() {
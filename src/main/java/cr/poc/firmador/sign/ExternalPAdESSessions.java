@@ -0,0 +1,187 @@
+package cr.poc.firmador.sign;
+
+import cr.poc.firmador.settings.Settings;
+import cr.poc.firmador.settings.SettingsManager;
+import eu.europa.esig.dss.enumerations.DigestAlgorithm;
+import eu.europa.esig.dss.model.DSSDocument;
+import eu.europa.esig.dss.model.SignatureValue;
+import eu.europa.esig.dss.model.x509.CertificateToken;
+import eu.europa.esig.dss.spi.DSSUtils;
+import eu.europa.esig.dss.utils.Utils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.invoke.MethodHandles;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PAdES signatures whose card is on another host. {@link #prepare} does all the PDF work and keeps the prepared
+ * revision under a random session ID, handing out only the digest of the data to be signed; the host with the card
+ * signs that digest (see {@link cr.poc.firmador.card.TokenSession#signDigest}) and {@link #take} returns the pending
+ * signature to complete with the raw signature value. The document never leaves this host.
+ * <p>
+ * Sessions not completed within {@code externalSigningTimeout} seconds are discarded, with their temporary files, by a
+ * sweep that runs every {@value #SWEEP_PERIOD_SECONDS} seconds, so abandoned sessions do not wait for the next
+ * request to free their disk. At most {@code externalSigningMaxSessions} sessions are pending at the same time.
+ */
+public class ExternalPAdESSessions {
+    private static final Logger LOG = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+    private static final ExternalPAdESSessions es = new ExternalPAdESSessions();
+    private static final int SESSION_ID_LENGTH = 16;
+    private static final long SWEEP_PERIOD_SECONDS = 30;
+
+    private final Map<String, PendingSignature> pending = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final Settings settings = SettingsManager.getInstance().getAndCreateSettings();
+    // Un permiso por sesión pendiente, se devuelve al completarla o descartarla
+    private final Semaphore slots = new Semaphore(Math.max(1, this.settings.externalSigningMaxSessions));
+    private final ScheduledExecutorService sweeper;
+
+    private ExternalPAdESSessions() {
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "external-signing-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.sweeper.scheduleWithFixedDelay(this::expire, SWEEP_PERIOD_SECONDS, SWEEP_PERIOD_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public static ExternalPAdESSessions getInstance() {
+        return es;
+    }
+
+    /**
+     * Prepares the signature of {@code document} by {@code certificate}, signing into the template field
+     * {@code fieldId} when given.
+     *
+     * @param resource closed when the session is completed or discarded, typically the spooled document
+     * @return the request for the host with the card, {@code null} without preparing anything if
+     * {@code externalSigningMaxSessions} sessions are already pending
+     */
+    public ExternalSignatureRequest prepare(DSSDocument document, CertificateToken certificate, String reason, String location, String fieldId, AutoCloseable resource) {
+        this.expire();
+        if (!this.slots.tryAcquire()) {
+            LOG.warn("Se rechaza la firma externa de {}: ya hay {} sesiones pendientes", document.getName(), this.pending.size());
+            return null;
+        }
+
+        FirmadorPAdES signer = new FirmadorPAdES();
+        if (fieldId != null) {
+            signer.useTemplateField(fieldId);
+        }
+
+        PreparedPAdESSignature prepared;
+        try {
+            prepared = signer.prepare(document, certificate, reason, location, null, null, false);
+        } catch (RuntimeException | Error e) {
+            this.slots.release();
+            close(signer, resource);
+            throw e;
+        }
+
+        byte[] idBytes = new byte[SESSION_ID_LENGTH];
+        this.random.nextBytes(idBytes);
+        String id = Utils.toHex(idBytes);
+        this.pending.put(id, new PendingSignature(id, signer, prepared, resource, System.currentTimeMillis()));
+
+        DigestAlgorithm digestAlgorithm = prepared.getParameters().getDigestAlgorithm();
+        byte[] digest = DSSUtils.digest(digestAlgorithm, prepared.getDataToSign().getBytes());
+        LOG.info("Firma externa {} preparada para {} ({})", id, document.getName(), certificate.getSubject().getRFC2253());
+        return new ExternalSignatureRequest(id, digestAlgorithm.getName(), prepared.getParameters().getSignatureAlgorithm().getJCEId(), Utils.toBase64(digest));
+    }
+
+    /**
+     * Removes and returns the pending signature {@code sessionId}, {@code null} if it does not exist or has expired.
+     */
+    public PendingSignature take(String sessionId) {
+        this.expire();
+        PendingSignature signature = this.pending.remove(sessionId);
+        if (signature != null) {
+            this.slots.release();
+        }
+
+        return signature;
+    }
+
+    public int size() {
+        return this.pending.size();
+    }
+
+    private void expire() {
+        long oldest = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(this.settings.externalSigningTimeout);
+        for (PendingSignature signature : this.pending.values()) {
+            // Sólo quien la quita la cierra, así una firma que take() ya entregó no se cierra ni se libera dos veces
+            if (signature.createdMillis < oldest && this.pending.remove(signature.id, signature)) {
+                LOG.warn("La firma externa {} venció sin recibir el valor de firma", signature.id);
+                signature.close();
+                this.slots.release();
+            }
+        }
+    }
+
+    private static void close(AutoCloseable... resources) {
+        for (AutoCloseable resource : resources) {
+            if (resource == null) {
+                continue;
+            }
+
+            try {
+                resource.close();
+            } catch (Exception e) {
+                LOG.warn("Error liberando los archivos temporales de la firma externa", e);
+            }
+        }
+    }
+
+    /**
+     * What the host with the card needs: the session to complete and the base64 digest to sign.
+     */
+    public record ExternalSignatureRequest(String session, String digestAlgorithm, String signatureAlgorithm, String digest) {
+    }
+
+    /**
+     * A prepared signature waiting for its signature value. Closing it deletes its temporary files, so the signed
+     * document must be written first.
+     */
+    public static class PendingSignature implements AutoCloseable {
+        private final String id;
+        private final FirmadorPAdES signer;
+        private final PreparedPAdESSignature prepared;
+        private final AutoCloseable resource;
+        private final long createdMillis;
+
+        private PendingSignature(String id, FirmadorPAdES signer, PreparedPAdESSignature prepared, AutoCloseable resource, long createdMillis) {
+            this.id = id;
+            this.signer = signer;
+            this.prepared = prepared;
+            this.resource = resource;
+            this.createdMillis = createdMillis;
+        }
+
+        /**
+         * Embeds {@code signatureValue}, the raw signature of the digest, and adds the timestamp and revocation data
+         * of the configured level as {@link FirmadorPAdES#complete} does.
+         *
+         * @throws IllegalArgumentException if the value is not a signature of the digest by the prepared certificate
+         */
+        public DSSDocument complete(byte[] signatureValue) {
+            SignatureValue value = new SignatureValue(this.prepared.getParameters().getSignatureAlgorithm(), signatureValue);
+            if (!this.prepared.getService().isValidSignatureValue(this.prepared.getDataToSign(), value, this.prepared.getParameters().getSigningCertificate())) {
+                throw new IllegalArgumentException("El valor de firma no corresponde al resumen de la sesión " + this.id);
+            }
+
+            return this.signer.complete(this.prepared, value);
+        }
+
+        @Override
+        public void close() {
+            ExternalPAdESSessions.close(this.signer, this.resource);
+        }
+    }
+}
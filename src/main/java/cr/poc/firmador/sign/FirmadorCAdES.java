@@ -1,6 +1,9 @@
 package cr.poc.firmador.sign;
 
+import cr.poc.firmador.augment.AugmentationJob;
 import cr.poc.firmador.card.CardSignInfo;
+import cr.poc.firmador.card.TokenSession;
+import cr.poc.firmador.metrics.SigningMetrics;
 import cr.poc.firmador.settings.Settings;
 import cr.poc.firmador.settings.SettingsManager;
 import cr.poc.firmador.utils.FirmadorUtils;
@@ -12,21 +15,25 @@ import eu.europa.esig.dss.enumerations.SignatureLevel;
 import eu.europa.esig.dss.enumerations.SignaturePackaging;
 import eu.europa.esig.dss.model.DSSDocument;
 import eu.europa.esig.dss.model.DSSException;
+import eu.europa.esig.dss.model.DigestDocument;
 import eu.europa.esig.dss.model.SignatureValue;
 import eu.europa.esig.dss.model.ToBeSigned;
 import eu.europa.esig.dss.model.x509.CertificateToken;
 import eu.europa.esig.dss.service.tsp.OnlineTSPSource;
 import eu.europa.esig.dss.spi.validation.CertificateVerifier;
 import eu.europa.esig.dss.token.DSSPrivateKeyEntry;
-import eu.europa.esig.dss.token.SignatureTokenConnection;
+import eu.europa.esig.dss.utils.Utils;
 import lombok.NoArgsConstructor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.lang.invoke.MethodHandles;
+import java.util.List;
 
 @NoArgsConstructor
 public class FirmadorCAdES extends CRSigner {
+    private static final int DIGEST_LENGTH = 32;
+
     final Logger LOG = LogManager.getLogger(MethodHandles.lookup().lookupClass());
     CAdESSignatureParameters parameters;
     private Settings settings = SettingsManager.getInstance().getAndCreateSettings();
@@ -38,10 +45,10 @@ public class FirmadorCAdES extends CRSigner {
         this.parameters = new CAdESSignatureParameters();
         SignatureValue signatureValue = null;
         DSSDocument signedDocument = null;
-        SignatureTokenConnection token = null;
+        TokenSession session = null;
 
         try {
-            token = this.getSignatureConnection(card);
+            session = this.getTokenSession(card);
         } catch (AlertException | Error | DSSException e) {
             this.LOG.error("Error al conectar con el dispositivo", e);
             return null;
@@ -50,7 +57,7 @@ public class FirmadorCAdES extends CRSigner {
         DSSPrivateKeyEntry privateKey = null;
 
         try {
-            privateKey = this.getPrivateKey(token);
+            privateKey = this.getPrivateKey(session);
 //            this.gui.nextStep("Obteniendo manejador de llaves privadas");
         } catch (Exception e) {
             this.LOG.error("Error al acceder al objeto de llave del dispositivo", e);
@@ -60,21 +67,26 @@ public class FirmadorCAdES extends CRSigner {
         try {
 //            this.gui.nextStep("Obteniendo certificados de la tarjeta");
             CertificateToken certificate = privateKey.getCertificate();
-            this.parameters.setSignatureLevel(this.settings.getCAdESLevel());
+            this.parameters.setSignatureLevel(this.augmentLater ? SignatureLevel.CAdES_BASELINE_B : this.settings.getCAdESLevel());
             this.parameters.setSignaturePackaging(SignaturePackaging.DETACHED);
             this.parameters.setDigestAlgorithm(DigestAlgorithm.SHA256);
             this.parameters.setSigningCertificate(certificate);
-            OnlineTSPSource onlineTSPSource = new OnlineTSPSource("http://tsa.sinpe.fi.cr/tsaHttp/");
+            OnlineTSPSource onlineTSPSource = this.getTSPSource();
 //            this.gui.nextStep("Obteniendo servicios TSP");
             service.setTspSource(onlineTSPSource);
-            ToBeSigned dataToSign = service.getDataToSign(toSignDocument, this.parameters);
+            ToBeSigned dataToSign;
+            try (SigningMetrics.PhaseTimer timer = this.startTimer(SigningMetrics.Phase.DATA_TO_SIGN)) {
+                dataToSign = service.getDataToSign(toSignDocument, this.parameters);
+            }
 //            this.gui.nextStep("Obteniendo estructura de datos a firmar");
-            signatureValue = token.sign(dataToSign, this.parameters.getDigestAlgorithm(), privateKey);
+            try (SigningMetrics.PhaseTimer timer = this.startTimer(SigningMetrics.Phase.TOKEN_SIGN)) {
+                signatureValue = session.sign(dataToSign, this.parameters.getDigestAlgorithm());
+            }
         } catch (Error | DSSException e) {
             this.LOG.error("Error al solicitar firma al dispositivo", e);
         }
 
-        try {
+        try (SigningMetrics.PhaseTimer timer = this.startTimer(SigningMetrics.Phase.SIGN_DOCUMENT)) {
 //            this.gui.nextStep("Firmando estructura de datos");
             signedDocument = service.signDocument(toSignDocument, this.parameters, signatureValue);
 //            this.gui.nextStep("Firmado del documento completo");
@@ -83,8 +95,9 @@ public class FirmadorCAdES extends CRSigner {
             e.printStackTrace();
 //            this.gui.showMessage("Aviso: no se ha podido agregar el sello de tiempo y la información de revocación porque es posible<br>que haya problemas de conexión a Internet o con los servidores del sistema de Firma Digital.<br>Detalle del error: " + FirmadorUtils.getRootCause(e) + "<br><br>Se ha agregado una firma básica solamente. No obstante, si el sello de tiempo resultara importante<br>para este documento, debería agregarse lo antes posible antes de enviarlo al destinatario.<br><br>Si lo prefiere, puede cancelar el guardado del documento firmado e intentar firmarlo más tarde.<br>");
             this.parameters.setSignatureLevel(SignatureLevel.CAdES_BASELINE_B);
+            SigningMetrics.getInstance().increment(SigningMetrics.Event.FALLBACK_BASELINE_B, this.getMetricsFormat());
 
-            try {
+            try (SigningMetrics.PhaseTimer timer = this.startTimer(SigningMetrics.Phase.SIGN_DOCUMENT)) {
                 signedDocument = service.signDocument(toSignDocument, this.parameters, signatureValue);
             } catch (Exception var12) {
                 this.LOG.error("Error al procesar información de firma avanzada en nivel fallback (sin Internet) a AdES-B", e);
@@ -94,12 +107,50 @@ public class FirmadorCAdES extends CRSigner {
         return signedDocument;
     }
 
+    /**
+     * Detached signature of a document known only by its SHA-256 digest: the signed attributes carry the digest,
+     * so the content itself never has to reach the signing host. The signature validates against the original file.
+     *
+     * @param digest   SHA-256 digest of the document
+     * @param fileName name of the document, recorded in the returned signature's name
+     */
+    public DSSDocument signDigest(byte[] digest, String fileName, CardSignInfo card) {
+        if (digest == null || digest.length != DIGEST_LENGTH) {
+            throw new IllegalArgumentException("El resumen SHA-256 debe tener " + DIGEST_LENGTH + " bytes");
+        }
+
+        return this.sign(new DigestDocument(DigestAlgorithm.SHA256, digest, fileName), card);
+    }
+
+    /**
+     * Decodes a SHA-256 digest given in hexadecimal or base64.
+     */
+    public static byte[] parseDigest(String digest) {
+        String value = digest.trim();
+        if (value.length() == DIGEST_LENGTH * 2 && Utils.isHexEncoded(value)) {
+            return Utils.fromHex(value);
+        }
+        if (Utils.isBase64Encoded(value)) {
+            return Utils.fromBase64(value);
+        }
+
+        throw new IllegalArgumentException("El resumen no está en hexadecimal ni en base64");
+    }
+
     public DSSDocument extend(DSSDocument document) {
+        return this.extend(document, SignatureLevel.CAdES_BASELINE_LTA, null);
+    }
+
+    /**
+     * @param detachedContents signed documents of a detached signature, {@code null} for attached ones
+     */
+    public DSSDocument extend(DSSDocument document, SignatureLevel level, List<DSSDocument> detachedContents) {
         CAdESSignatureParameters parameters = new CAdESSignatureParameters();
-        parameters.setSignatureLevel(SignatureLevel.CAdES_BASELINE_LTA);
+        parameters.setSignatureLevel(level);
+        parameters.setDetachedContents(detachedContents);
         CertificateVerifier verifier = this.getCertificateVerifier();
         CAdESService service = new CAdESService(verifier);
-        OnlineTSPSource onlineTSPSource = new OnlineTSPSource("http://tsa.sinpe.fi.cr/tsaHttp/");
+        OnlineTSPSource onlineTSPSource = this.getTSPSource();
         service.setTspSource(onlineTSPSource);
         DSSDocument extendedDocument = null;
 
@@ -113,4 +164,14 @@ public class FirmadorCAdES extends CRSigner {
 
         return extendedDocument;
     }
+
+    @Override
+    protected AugmentationJob.Format getAugmentationFormat() {
+        return AugmentationJob.Format.CADES;
+    }
+
+    @Override
+    protected String getMetricsFormat() {
+        return SigningMetrics.CADES;
+    }
 }
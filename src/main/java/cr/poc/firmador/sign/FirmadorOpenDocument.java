@@ -1,6 +1,8 @@
 package cr.poc.firmador.sign;
 
 import cr.poc.firmador.card.CardSignInfo;
+import cr.poc.firmador.card.TokenSession;
+import cr.poc.firmador.metrics.SigningMetrics;
 import cr.poc.firmador.settings.Settings;
 import cr.poc.firmador.settings.SettingsManager;
 import cr.poc.firmador.utils.FirmadorUtils;
@@ -19,7 +21,6 @@ import eu.europa.esig.dss.model.x509.CertificateToken;
 import eu.europa.esig.dss.service.tsp.OnlineTSPSource;
 import eu.europa.esig.dss.spi.validation.CertificateVerifier;
 import eu.europa.esig.dss.token.DSSPrivateKeyEntry;
-import eu.europa.esig.dss.token.SignatureTokenConnection;
 import lombok.NoArgsConstructor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -39,11 +40,11 @@ public class FirmadorOpenDocument extends CRSigner {
         this.parameters = new ASiCWithXAdESSignatureParameters();
         SignatureValue signatureValue = null;
         DSSDocument signedDocument = null;
-        SignatureTokenConnection token = null;
+        TokenSession session = null;
 //        this.gui.nextStep("Obteniendo servicios de verificación de certificados");
 
         try {
-            token = this.getSignatureConnection(card);
+            session = this.getTokenSession(card);
         } catch (AlertException | Error | DSSException e) {
             this.LOG.error("Error al conectar con el dispositivo", e);
             return null;
@@ -52,7 +53,7 @@ public class FirmadorOpenDocument extends CRSigner {
         DSSPrivateKeyEntry privateKey = null;
 
         try {
-            privateKey = this.getPrivateKey(token);
+            privateKey = this.getPrivateKey(session);
 //            this.gui.nextStep("Obteniendo manejador de llaves privadas");
         } catch (Exception e) {
             this.LOG.error("Error al acceder al objeto de llave del dispositivo", e);
@@ -67,19 +68,24 @@ public class FirmadorOpenDocument extends CRSigner {
             this.parameters.setDigestAlgorithm(DigestAlgorithm.SHA256);
             this.parameters.setSigningCertificate(certificate);
             this.parameters.setPrettyPrint(true);
-            OnlineTSPSource onlineTSPSource = new OnlineTSPSource("http://tsa.sinpe.fi.cr/tsaHttp/");
+            OnlineTSPSource onlineTSPSource = this.getTSPSource();
 //            this.gui.nextStep("Obteniendo servicios TSP");
             service.setTspSource(onlineTSPSource);
             this.parameters.aSiC().setContainerType(ASiCContainerType.ASiC_E);
             this.parameters.setEn319132(false);
-            ToBeSigned dataToSign = service.getDataToSign(toSignDocument, this.parameters);
+            ToBeSigned dataToSign;
+            try (SigningMetrics.PhaseTimer timer = this.startTimer(SigningMetrics.Phase.DATA_TO_SIGN)) {
+                dataToSign = service.getDataToSign(toSignDocument, this.parameters);
+            }
 //            this.gui.nextStep("Obteniendo estructura de datos a firmar");
-            signatureValue = token.sign(dataToSign, this.parameters.getDigestAlgorithm(), privateKey);
+            try (SigningMetrics.PhaseTimer timer = this.startTimer(SigningMetrics.Phase.TOKEN_SIGN)) {
+                signatureValue = session.sign(dataToSign, this.parameters.getDigestAlgorithm());
+            }
         } catch (Error | DSSException e) {
             this.LOG.error("Error al solicitar firma al dispositivo", e);
         }
 
-        try {
+        try (SigningMetrics.PhaseTimer timer = this.startTimer(SigningMetrics.Phase.SIGN_DOCUMENT)) {
 //            this.gui.nextStep("Firmando estructura de datos");
             signedDocument = service.signDocument(toSignDocument, this.parameters, signatureValue);
 //            this.gui.nextStep("Firmado del documento completo");
@@ -88,8 +94,9 @@ public class FirmadorOpenDocument extends CRSigner {
             e.printStackTrace();
 //            this.gui.showMessage("Aviso: no se ha podido agregar el sello de tiempo y la información de revocación porque es posible<br>que haya problemas de conexión a Internet o con los servidores del sistema de Firma Digital.<br>Detalle del error: " + FirmadorUtils.getRootCause(e) + "<br><br>Se ha agregado una firma básica solamente. No obstante, si el sello de tiempo resultara importante<br>para este documento, debería agregarse lo antes posible antes de enviarlo al destinatario.<br><br>Si lo prefiere, puede cancelar el guardado del documento firmado e intentar firmarlo más tarde.<br>");
             this.parameters.setSignatureLevel(SignatureLevel.XAdES_BASELINE_B);
+            SigningMetrics.getInstance().increment(SigningMetrics.Event.FALLBACK_BASELINE_B, this.getMetricsFormat());
 
-            try {
+            try (SigningMetrics.PhaseTimer timer = this.startTimer(SigningMetrics.Phase.SIGN_DOCUMENT)) {
                 signedDocument = service.signDocument(toSignDocument, this.parameters, signatureValue);
             } catch (Exception var12) {
                 this.LOG.error("Error al procesar información de firma avanzada en nivel fallback (sin Internet) a AdES-B", e);
@@ -106,7 +113,7 @@ public class FirmadorOpenDocument extends CRSigner {
         parameters.aSiC().setContainerType(ASiCContainerType.ASiC_E);
         CertificateVerifier verifier = this.getCertificateVerifier();
         ASiCWithXAdESService service = new ASiCWithXAdESService(verifier);
-        OnlineTSPSource onlineTSPSource = new OnlineTSPSource("http://tsa.sinpe.fi.cr/tsaHttp/");
+        OnlineTSPSource onlineTSPSource = this.getTSPSource();
         service.setTspSource(onlineTSPSource);
         DSSDocument extendedDocument = null;
 
@@ -120,4 +127,9 @@ public class FirmadorOpenDocument extends CRSigner {
 
         return extendedDocument;
     }
+
+    @Override
+    protected String getMetricsFormat() {
+        return SigningMetrics.ASIC;
+    }
 }
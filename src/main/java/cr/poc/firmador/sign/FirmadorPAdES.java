@@ -1,6 +1,9 @@
 package cr.poc.firmador.sign;
 
+import cr.poc.firmador.augment.AugmentationJob;
 import cr.poc.firmador.card.CardSignInfo;
+import cr.poc.firmador.card.TokenSession;
+import cr.poc.firmador.metrics.SigningMetrics;
 import cr.poc.firmador.settings.Settings;
 import cr.poc.firmador.settings.SettingsManager;
 import cr.poc.firmador.utils.FirmadorUtils;
@@ -8,43 +11,49 @@ import eu.europa.esig.dss.alert.exception.AlertException;
 import eu.europa.esig.dss.enumerations.DigestAlgorithm;
 import eu.europa.esig.dss.enumerations.SignatureLevel;
 import eu.europa.esig.dss.enumerations.SignerTextPosition;
+import eu.europa.esig.dss.enumerations.TextWrapping;
 import eu.europa.esig.dss.enumerations.VisualSignatureRotation;
 import eu.europa.esig.dss.model.DSSDocument;
 import eu.europa.esig.dss.model.DSSException;
-import eu.europa.esig.dss.model.InMemoryDocument;
+import eu.europa.esig.dss.model.FileDocument;
 import eu.europa.esig.dss.model.SignatureValue;
 import eu.europa.esig.dss.model.ToBeSigned;
 import eu.europa.esig.dss.model.x509.CertificateToken;
 import eu.europa.esig.dss.model.x509.X500PrincipalHelper;
-import eu.europa.esig.dss.pades.DSSJavaFont;
 import eu.europa.esig.dss.pades.PAdESSignatureParameters;
 import eu.europa.esig.dss.pades.PAdESTimestampParameters;
 import eu.europa.esig.dss.pades.SignatureFieldParameters;
 import eu.europa.esig.dss.pades.SignatureImageParameters;
 import eu.europa.esig.dss.pades.SignatureImageTextParameters;
 import eu.europa.esig.dss.pades.signature.PAdESService;
+import eu.europa.esig.dss.pdf.AnnotationBox;
+import eu.europa.esig.dss.pdf.PdfMemoryUsageSetting;
+import eu.europa.esig.dss.pdf.pdfbox.PdfBoxDocumentReader;
 import eu.europa.esig.dss.pdf.pdfbox.PdfBoxNativeObjectFactory;
+import eu.europa.esig.dss.pdf.pdfbox.visible.nativedrawer.NativePdfBoxVisibleSignatureDrawer;
+import eu.europa.esig.dss.signature.resources.TempFileResourcesHandlerBuilder;
 import eu.europa.esig.dss.service.tsp.OnlineTSPSource;
 import eu.europa.esig.dss.spi.DSSASN1Utils;
 import eu.europa.esig.dss.spi.validation.CertificateVerifier;
 import eu.europa.esig.dss.token.DSSPrivateKeyEntry;
-import eu.europa.esig.dss.token.SignatureTokenConnection;
-import eu.europa.esig.dss.utils.Utils;
 import lombok.NoArgsConstructor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.SignatureOptions;
 import org.bouncycastle.asn1.x500.style.BCStyle;
 
 import java.awt.*;
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
-import java.net.URL;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 import java.util.TimeZone;
+import java.util.function.Function;
 
 @NoArgsConstructor
-public class FirmadorPAdES extends CRSigner {
+public class FirmadorPAdES extends CRSigner implements AutoCloseable {
+    private static final long MEGABYTE = 1024L * 1024L;
     final Logger LOG = LogManager.getLogger(MethodHandles.lookup().lookupClass());
     private int page = 1;
     private int x;
@@ -52,23 +61,19 @@ public class FirmadorPAdES extends CRSigner {
     PAdESSignatureParameters parameters;
     private boolean visibleSignature = false;
     private Settings settings = SettingsManager.getInstance().getAndCreateSettings();
+    private Boolean largeDocumentMode;
+    private TempFileResourcesHandlerBuilder tempFiles;
+    private String signatureFieldId;
 
 
     public DSSDocument sign(DSSDocument toSignDocument, CardSignInfo card, String reason, String location, String contactInfo, String image, Boolean hideSignatureAdvice) {
-        CertificateVerifier verifier = this.getCertificateVerifier();
-        PAdESService service = new PAdESService(verifier);
-        service.setPdfObjFactory(new PdfBoxNativeObjectFactory());
-        this.parameters = new PAdESSignatureParameters();
+        PreparedPAdESSignature prepared = null;
         SignatureValue signatureValue = null;
-        DSSDocument signedDocument = null;
-        SignatureTokenConnection token = null;
+        TokenSession session = null;
 //        this.gui.nextStep("Obteniendo servicios de verificación de certificados");
-        if (image == null) {
-            image = this.settings.getImage();
-        }
 
         try {
-            token = this.getSignatureConnection(card);
+            session = this.getTokenSession(card);
         } catch (AlertException | Error | DSSException e) {
             this.LOG.error("Error al conectar con el dispositivo", e);
 //            this.gui.showError(FirmadorUtils.getRootCause(e));
@@ -78,7 +83,7 @@ public class FirmadorPAdES extends CRSigner {
         DSSPrivateKeyEntry privateKey = null;
 
         try {
-            privateKey = this.getPrivateKey(token);
+            privateKey = this.getPrivateKey(session);
 //            this.gui.nextStep("Obteniendo manejador de llaves privadas");
         } catch (Exception e) {
             this.LOG.error("Error al acceder al objeto de llave del dispositivo", e);
@@ -88,40 +93,13 @@ public class FirmadorPAdES extends CRSigner {
 
         try {
 //            this.gui.nextStep("Obteniendo certificados de la tarjeta");
-            CertificateToken certificate = privateKey.getCertificate();
-            this.parameters.setSignatureLevel(this.settings.getPAdESLevel());
-            this.parameters.setAppName("Firmador " + this.settings.getVersion() + ", https://firmador.libre.cr");
-            this.parameters.setContentSize(13312);
-            this.parameters.setDigestAlgorithm(DigestAlgorithm.SHA256);
-            this.parameters.setSigningCertificate(certificate);
-            if (reason != null && !reason.trim().isEmpty()) {
-                this.parameters.setReason(reason.replaceAll("\t", " "));
-            }
-
-            if (location != null && !location.trim().isEmpty()) {
-                this.parameters.setLocation(location.replaceAll("\t", " "));
-            }
-
-            if (contactInfo != null && !contactInfo.trim().isEmpty()) {
-                this.parameters.setContactInfo(contactInfo.replaceAll("\t", " "));
-            }
-
-            OnlineTSPSource onlineTSPSource = new OnlineTSPSource("http://tsa.sinpe.fi.cr/tsaHttp/");
-//            this.gui.nextStep("Obteniendo servicios TSP");
-            service.setTspSource(onlineTSPSource);
-            Date date = new Date();
-            if (this.visibleSignature) {
-                this.appendVisibleSignature(certificate, date, reason, location, contactInfo, image, hideSignatureAdvice);
-            }
-
-//            this.gui.nextStep("Agregando representación gráfica de la firma");
-            this.parameters.bLevel().setSigningDate(date);
-            ToBeSigned dataToSign = service.getDataToSign(toSignDocument, this.parameters);
+            prepared = this.prepare(toSignDocument, privateKey.getCertificate(), reason, location, contactInfo, image, hideSignatureAdvice);
 //            this.gui.nextStep("Obteniendo estructura de datos a firmar");
-            signatureValue = token.sign(dataToSign, this.parameters.getDigestAlgorithm(), privateKey);
+            signatureValue = this.signPrepared(session, prepared);
         } catch (AlertException | Error | DSSException e) {
-            if (FirmadorUtils.getRootCause(e).getLocalizedMessage().equals("The new signature field position overlaps with an existing annotation!")) {
+            if (isOverlapError(e)) {
                 this.LOG.error("Error al firmar (traslape de firma)", e);
+                SigningMetrics.getInstance().increment(SigningMetrics.Event.OVERLAP_ERROR, this.getMetricsFormat());
                 ((Throwable) e).printStackTrace();
 //                this.gui.showMessage("No se puede firmar: el campo de firma está solapándose sobre otra firma o anotación existente.<br>Debe mover la firma para ubicarla en otra posición que no tape las existentes.<br><br>Si no contiene firmas previas, puede abrir el PDF con un visor de documentos e imprimirlo como fichero PDF.<br>El PDF resultante quedará 'aplanado' y podrá firmarse sin problemas.");
                 return null;
@@ -141,19 +119,170 @@ public class FirmadorPAdES extends CRSigner {
 //            this.gui.showError(FirmadorUtils.getRootCause(e));
         }
 
+        if (prepared == null) {
+            return null;
+        }
+
+        TokenSession activeSession = session;
+        return this.complete(prepared, signatureValue, resized -> this.signPrepared(activeSession, resized));
+    }
+
+    /**
+     * First half of a signature: builds the parameters and the visible appearance for {@code certificate} and
+     * computes the data to be signed. Needs no access to the card, so it can run on any thread.
+     */
+    public PreparedPAdESSignature prepare(DSSDocument toSignDocument, CertificateToken certificate, String reason, String location, String contactInfo, String image, Boolean hideSignatureAdvice) {
+        CertificateVerifier verifier = this.getCertificateVerifier();
+        PAdESService service = new PAdESService(verifier);
+        service.setPdfObjFactory(this.getPdfObjFactory(toSignDocument));
+        PAdESSignatureParameters parameters = new PAdESSignatureParameters();
+        this.parameters = parameters;
+        if (image == null) {
+            image = this.settings.getImage();
+        }
+
+        parameters.setSignatureLevel(this.augmentLater ? SignatureLevel.PAdES_BASELINE_B : this.settings.getPAdESLevel());
+        parameters.setAppName("Firmador " + this.settings.getVersion() + ", https://firmador.libre.cr");
+        parameters.setContentSize(PAdESContentSizeEstimator.getInstance().estimateSignature(parameters.getSignatureLevel(), certificate));
+        parameters.setDigestAlgorithm(DigestAlgorithm.SHA256);
+        parameters.setSigningCertificate(certificate);
+        if (reason != null && !reason.trim().isEmpty()) {
+            parameters.setReason(reason.replaceAll("\t", " "));
+        }
+
+        if (location != null && !location.trim().isEmpty()) {
+            parameters.setLocation(location.replaceAll("\t", " "));
+        }
+
+        if (contactInfo != null && !contactInfo.trim().isEmpty()) {
+            parameters.setContactInfo(contactInfo.replaceAll("\t", " "));
+        }
+
+        OnlineTSPSource onlineTSPSource = this.getTSPSource();
+//            this.gui.nextStep("Obteniendo servicios TSP");
+        service.setTspSource(onlineTSPSource);
+        Date date = new Date();
+        if (this.visibleSignature) {
+            this.appendVisibleSignature(parameters, certificate, date, reason, location, contactInfo, image, hideSignatureAdvice);
+        }
+        if (this.signatureFieldId != null) {
+            parameters.getImageParameters().getFieldParameters().setFieldId(this.signatureFieldId);
+            if (this.visibleSignature) {
+                // El campo existente tiene un tamaño fijo, así que el texto se ajusta a él en lugar de cortarse
+                parameters.getImageParameters().getTextParameters().setTextWrapping(TextWrapping.FILL_BOX);
+            }
+        }
+
+//            this.gui.nextStep("Agregando representación gráfica de la firma");
+        parameters.bLevel().setSigningDate(date);
+        ToBeSigned dataToSign;
+        try (SigningMetrics.PhaseTimer timer = this.startTimer(SigningMetrics.Phase.DATA_TO_SIGN)) {
+            dataToSign = this.getDataToSign(service, toSignDocument, parameters);
+        }
+        return new PreparedPAdESSignature(toSignDocument, service, parameters, dataToSign);
+    }
+
+    /**
+     * Data to sign of {@code document}. DSS keeps the revision it prepares, with the placeholder and the ByteRange,
+     * in the signature cache of {@code parameters}, so {@link #complete} only has to write the CMS into it. A visible
+     * field is moved to a free area only when DSS rejects the configured position, so the document is parsed once
+     * in the usual case. A document without the requested signature field gets a new one, as if no field was given.
+     */
+    private ToBeSigned getDataToSign(PAdESService service, DSSDocument document, PAdESSignatureParameters parameters) {
         try {
+            return service.getDataToSign(document, parameters);
+        } catch (RuntimeException e) {
+            SignatureFieldParameters field = parameters.getImageParameters().getFieldParameters();
+            if (field.getFieldId() != null && isMissingFieldError(e, field.getFieldId())) {
+                this.LOG.warn("El documento {} no tiene el campo de firma {}, se crea uno nuevo", document.getName(), field.getFieldId());
+                field.setFieldId(null);
+                if (this.visibleSignature) {
+                    // El campo nuevo no tiene tamaño fijo, DSS lo calcula según el texto
+                    parameters.getImageParameters().getTextParameters().setTextWrapping(TextWrapping.FONT_BASED);
+                }
+                parameters.reinit();
+                return this.getDataToSign(service, document, parameters);
+            }
+
+            if (!this.visibleSignature || !isOverlapError(e) || !this.placeSignatureField(document, parameters.getImageParameters())) {
+                throw e;
+            }
+
+            parameters.reinit();
+            return service.getDataToSign(document, parameters);
+        }
+    }
+
+    private static boolean isOverlapError(Throwable e) {
+        return "The new signature field position overlaps with an existing annotation!".equals(FirmadorUtils.getRootCause(e).getLocalizedMessage());
+    }
+
+    private static boolean isMissingFieldError(Throwable e, String fieldId) {
+        return String.format("The signature field '%s' does not exist.", fieldId).equals(FirmadorUtils.getRootCause(e).getLocalizedMessage());
+    }
+
+    /**
+     * Signs the data of a prepared signature with the card of {@code session}.
+     */
+    public SignatureValue signPrepared(TokenSession session, PreparedPAdESSignature prepared) {
+        try (SigningMetrics.PhaseTimer timer = this.startTimer(SigningMetrics.Phase.TOKEN_SIGN)) {
+            return session.sign(prepared.getDataToSign(), prepared.getParameters().getDigestAlgorithm());
+        }
+    }
+
+    /**
+     * Second half of a signature: embeds the signature value returned by the card, adding timestamp and revocation
+     * data for the configured level. Falls back to PAdES-BASELINE-B when the TSA fails, and keeps the
+     * PAdES-BASELINE-T signature when only the revocation services fail.
+     */
+    public DSSDocument complete(PreparedPAdESSignature prepared, SignatureValue signatureValue) {
+        return this.complete(prepared, signatureValue, null);
+    }
+
+    /**
+     * Like {@link #complete(PreparedPAdESSignature, SignatureValue)}, but if the CMS does not fit in the reserved
+     * {@code /Contents} the data to sign is recomputed once with a larger placeholder and signed again with
+     * {@code resigner}.
+     */
+    public DSSDocument complete(PreparedPAdESSignature prepared, SignatureValue signatureValue, Function<PreparedPAdESSignature, SignatureValue> resigner) {
+        PAdESService service = prepared.getService();
+        PAdESSignatureParameters parameters = prepared.getParameters();
+        SignatureLevel level = parameters.getSignatureLevel();
+        // La firma se escribe en la revisión preparada como mucho en nivel T y se amplía aparte, así un fallo de los
+        // servicios de revocación no obliga a analizar el PDF de nuevo para firmar en nivel B
+        boolean extendAfterSigning = level == SignatureLevel.PAdES_BASELINE_LT || level == SignatureLevel.PAdES_BASELINE_LTA;
+        if (extendAfterSigning) {
+            parameters.setSignatureLevel(SignatureLevel.PAdES_BASELINE_T);
+        }
+        DSSDocument signedDocument = null;
+
+        try (SigningMetrics.PhaseTimer timer = this.startTimer(SigningMetrics.Phase.SIGN_DOCUMENT)) {
 //            this.gui.nextStep("Firmando estructura de datos");
-            signedDocument = service.signDocument(toSignDocument, this.parameters, signatureValue);
+            signedDocument = service.signDocument(prepared.getDocument(), parameters, signatureValue);
+            if (extendAfterSigning) {
+                signedDocument = this.extendSignedDocument(service, signedDocument, parameters, level);
+            }
 //            this.gui.nextStep("Firmado del documento completo");
         } catch (Exception e) {
+            if (PAdESContentSizeEstimator.isPlaceholderTooSmall(e)) {
+                parameters.setSignatureLevel(level);
+                return this.retryWithLargerPlaceholder(prepared, resigner);
+            }
+
             this.LOG.error("Error al procesar información de firma avanzada", e);
             e.printStackTrace();
 //            this.gui.showMessage("Aviso: no se ha podido agregar el sello de tiempo y la información de revocación porque es posible<br>que haya problemas de conexión a Internet o con los servidores del sistema de Firma Digital.<br>Detalle del error: " + FirmadorUtils.getRootCause(e) + "<br><br>Se ha agregado una firma básica solamente. No obstante, si el sello de tiempo resultara importante<br>para este documento, debería agregarse lo antes posible antes de enviarlo al destinatario.<br><br>Si lo prefiere, puede cancelar el guardado del documento firmado e intentar firmarlo más tarde.<br>");
-            this.parameters.setSignatureLevel(SignatureLevel.PAdES_BASELINE_B);
+            parameters.setSignatureLevel(SignatureLevel.PAdES_BASELINE_B);
+            SigningMetrics.getInstance().increment(SigningMetrics.Event.FALLBACK_BASELINE_B, this.getMetricsFormat());
 
-            try {
-                signedDocument = service.signDocument(toSignDocument, this.parameters, signatureValue);
+            // El sello de tiempo falla antes de escribir la firma, así que la revisión preparada sigue en caché
+            try (SigningMetrics.PhaseTimer timer = this.startTimer(SigningMetrics.Phase.SIGN_DOCUMENT)) {
+                signedDocument = service.signDocument(prepared.getDocument(), parameters, signatureValue);
             } catch (Exception var18) {
+                if (PAdESContentSizeEstimator.isPlaceholderTooSmall(var18)) {
+                    return this.retryWithLargerPlaceholder(prepared, resigner);
+                }
+
                 this.LOG.error("Error al procesar información de firma avanzada en nivel fallback (sin Internet) a AdES-B", e);
 //                this.gui.showError(FirmadorUtils.getRootCause(e));
             }
@@ -162,18 +291,66 @@ public class FirmadorPAdES extends CRSigner {
         return signedDocument;
     }
 
+    /**
+     * Raises a document just signed at PAdES-BASELINE-T to {@code level}, returning it unchanged if the revocation
+     * data or the archive timestamp cannot be obtained.
+     */
+    private DSSDocument extendSignedDocument(PAdESService service, DSSDocument signedDocument, PAdESSignatureParameters parameters, SignatureLevel level) {
+        parameters.setSignatureLevel(level);
+        setTimestampContentSize(parameters);
+        try {
+            return this.extendDocument(service, signedDocument, parameters);
+        } catch (Exception e) {
+            this.LOG.error("Error al ampliar la firma a {}, se conserva con sello de tiempo (nivel T)", level, e);
+            SigningMetrics.getInstance().increment(SigningMetrics.Event.FALLBACK_BASELINE_T, this.getMetricsFormat());
+            parameters.setSignatureLevel(SignatureLevel.PAdES_BASELINE_T);
+            return signedDocument;
+        }
+    }
+
+    private DSSDocument retryWithLargerPlaceholder(PreparedPAdESSignature prepared, Function<PreparedPAdESSignature, SignatureValue> resigner) {
+        PAdESSignatureParameters parameters = prepared.getParameters();
+        int previousSize = parameters.getContentSize();
+        int contentSize = PAdESContentSizeEstimator.getInstance().enlarge(previousSize);
+        if (resigner == null) {
+            this.LOG.error("La firma no cabe en el espacio reservado ({} bytes) y no se puede volver a solicitar al dispositivo", previousSize);
+            return null;
+        }
+
+        this.LOG.warn("La firma no cabe en el espacio reservado ({} bytes), se reintenta con {} bytes", previousSize, contentSize);
+        try {
+            parameters.setContentSize(contentSize);
+            // El PDF preparado en caché depende del espacio reservado
+            parameters.reinit();
+            ToBeSigned dataToSign;
+            try (SigningMetrics.PhaseTimer timer = this.startTimer(SigningMetrics.Phase.DATA_TO_SIGN)) {
+                dataToSign = prepared.getService().getDataToSign(prepared.getDocument(), parameters);
+            }
+            PreparedPAdESSignature resized = new PreparedPAdESSignature(prepared.getDocument(), prepared.getService(), parameters, dataToSign);
+            return this.complete(resized, resigner.apply(resized), null);
+        } catch (RuntimeException | Error e) {
+            this.LOG.error("Error al volver a firmar con un espacio reservado mayor", e);
+            return null;
+        }
+    }
+
     public DSSDocument extend(DSSDocument document) {
+        return this.extend(document, SignatureLevel.PAdES_BASELINE_LTA);
+    }
+
+    public DSSDocument extend(DSSDocument document, SignatureLevel level) {
         PAdESSignatureParameters parameters = new PAdESSignatureParameters();
-        parameters.setSignatureLevel(SignatureLevel.PAdES_BASELINE_LTA);
-        parameters.setContentSize(3072);
+        parameters.setSignatureLevel(level);
+        setTimestampContentSize(parameters);
         CertificateVerifier verifier = this.getCertificateVerifier();
         PAdESService service = new PAdESService(verifier);
-        OnlineTSPSource onlineTSPSource = new OnlineTSPSource("http://tsa.sinpe.fi.cr/tsaHttp/");
+        service.setPdfObjFactory(this.getPdfObjFactory(document));
+        OnlineTSPSource onlineTSPSource = this.getTSPSource();
         service.setTspSource(onlineTSPSource);
         DSSDocument extendedDocument = null;
 
         try {
-            extendedDocument = service.extendDocument(document, parameters);
+            extendedDocument = this.extendDocument(service, document, parameters);
         } catch (Exception e) {
             this.LOG.error("Error al procesar información para al ampliar el nivel de firma avanzada a LTA (sello adicional)", e);
             e.printStackTrace();
@@ -183,13 +360,41 @@ public class FirmadorPAdES extends CRSigner {
         return extendedDocument;
     }
 
+    // Ampliar una firma PAdES agrega sellos de tiempo de documento, cada uno con su propio espacio reservado
+    private static void setTimestampContentSize(PAdESSignatureParameters parameters) {
+        int contentSize = PAdESContentSizeEstimator.getInstance().estimateTimestamp();
+        parameters.getSignatureTimestampParameters().setContentSize(contentSize);
+        parameters.getArchiveTimestampParameters().setContentSize(contentSize);
+    }
+
+    private DSSDocument extendDocument(PAdESService service, DSSDocument document, PAdESSignatureParameters parameters) {
+        try {
+            return service.extendDocument(document, parameters);
+        } catch (RuntimeException e) {
+            if (!PAdESContentSizeEstimator.isPlaceholderTooSmall(e)) {
+                throw e;
+            }
+
+            int previousSize = parameters.getArchiveTimestampParameters().getContentSize();
+            int contentSize = PAdESContentSizeEstimator.getInstance().enlarge(previousSize);
+            this.LOG.warn("El sello de tiempo no cabe en el espacio reservado ({} bytes), se reintenta con {} bytes", previousSize, contentSize);
+            for (PAdESTimestampParameters timestampParameters : List.of(parameters.getSignatureTimestampParameters(), parameters.getArchiveTimestampParameters())) {
+                timestampParameters.setContentSize(contentSize);
+                timestampParameters.reinit();
+            }
+            parameters.reinit();
+            return service.extendDocument(document, parameters);
+        }
+    }
+
     public DSSDocument timestamp(DSSDocument documentToTimestamp, Boolean visibleTimestamp) {
         CertificateVerifier verifier = this.getCertificateVerifier();
         PAdESService service = new PAdESService(verifier);
+        service.setPdfObjFactory(this.getPdfObjFactory(documentToTimestamp));
         DSSDocument timestampedDocument = null;
 
         try {
-            OnlineTSPSource onlineTSPSource = new OnlineTSPSource("http://tsa.sinpe.fi.cr/tsaHttp/");
+            OnlineTSPSource onlineTSPSource = this.getTSPSource();
             service.setTspSource(onlineTSPSource);
         } catch (Error | DSSException e) {
             this.LOG.error("Error al preparar el servicio de sello de tiempo)", e);
@@ -198,13 +403,14 @@ public class FirmadorPAdES extends CRSigner {
 
         try {
             PAdESTimestampParameters timestampParameters = new PAdESTimestampParameters();
+            timestampParameters.setContentSize(PAdESContentSizeEstimator.getInstance().estimateTimestamp());
             if (visibleTimestamp) {
                 SignatureImageParameters imageParameters = new SignatureImageParameters();
                 imageParameters.getFieldParameters().setRotation(VisualSignatureRotation.AUTOMATIC);
                 imageParameters.getFieldParameters().setOriginX(0.0F);
                 imageParameters.getFieldParameters().setOriginY(0.0F);
                 SignatureImageTextParameters textParameters = new SignatureImageTextParameters();
-                textParameters.setFont(new DSSJavaFont(new Font(this.settings.getFontName(this.settings.font, true), this.settings.getFontStyle(this.settings.font), this.settings.fontSize)));
+                textParameters.setFont(VisibleSignatureResources.getInstance().getFont(this.settings));
                 SimpleDateFormat date = new SimpleDateFormat(this.settings.getDateFormat());
                 date.setTimeZone(TimeZone.getTimeZone("America/Costa_Rica"));
                 textParameters.setText("Este documento incluye un sello de tiempo de la\nAutoridad de Sellado de Tiempo (TSA) del SINPE.\nFecha de solicitud a la TSA: " + date.format(new Date()));
@@ -217,7 +423,19 @@ public class FirmadorPAdES extends CRSigner {
                 timestampParameters.setAppName("Firmador " + this.settings.getVersion() + ", https://firmador.libre.cr");
             }
 
-            timestampedDocument = service.timestamp(documentToTimestamp, timestampParameters);
+            try {
+                timestampedDocument = service.timestamp(documentToTimestamp, timestampParameters);
+            } catch (RuntimeException e) {
+                if (!PAdESContentSizeEstimator.isPlaceholderTooSmall(e)) {
+                    throw e;
+                }
+
+                int contentSize = PAdESContentSizeEstimator.getInstance().enlarge(timestampParameters.getContentSize());
+                this.LOG.warn("El sello de tiempo no cabe en el espacio reservado ({} bytes), se reintenta con {} bytes", timestampParameters.getContentSize(), contentSize);
+                timestampParameters.setContentSize(contentSize);
+                timestampParameters.reinit();
+                timestampedDocument = service.timestamp(documentToTimestamp, timestampParameters);
+            }
         } catch (Exception e) {
             this.LOG.error("Error al procesar información para al agregar un sello de tiempo independiente)", e);
 //            this.gui.showError(FirmadorUtils.getRootCause(e));
@@ -226,24 +444,119 @@ public class FirmadorPAdES extends CRSigner {
         return timestampedDocument;
     }
 
+    /**
+     * Object factory for {@code document}. Files above {@code largePdfThreshold} MB, or any document when the
+     * large-document mode is turned on, are read through a PDFBox scratch buffer that keeps at most
+     * {@code pdfMemoryLimit} MB in heap and spills the rest to a temporary file, and the incremental updates are
+     * written to temporary files instead of byte arrays. Those files live until {@link #close()}.
+     */
+    private PdfBoxNativeObjectFactory getPdfObjFactory(DSSDocument document) {
+        PdfBoxNativeObjectFactory factory = new PdfBoxNativeObjectFactory();
+        if (!this.isLargeDocument(document)) {
+            return factory;
+        }
+
+        if (this.tempFiles == null) {
+            this.tempFiles = new TempFileResourcesHandlerBuilder().setFileNamePrefix("firmador-pades-").setFileNameSuffix(".pdf");
+        }
+        factory.setPdfMemoryUsageSetting(this.getPdfMemoryUsageSetting(document));
+        factory.setResourcesHandlerBuilder(this.tempFiles);
+        this.LOG.debug("Documento {} procesado en modo de documento grande (máximo {} MB en memoria)", document.getName(), this.settings.pdfMemoryLimit);
+        return factory;
+    }
+
+    private PdfMemoryUsageSetting getPdfMemoryUsageSetting(DSSDocument document) {
+        return this.isLargeDocument(document) ? PdfMemoryUsageSetting.mixed(this.settings.pdfMemoryLimit * MEGABYTE) : PdfMemoryUsageSetting.memoryFull();
+    }
+
+    private boolean isLargeDocument(DSSDocument document) {
+        if (this.largeDocumentMode != null) {
+            return this.largeDocumentMode;
+        }
+
+        return document instanceof FileDocument fileDocument && fileDocument.getFile().length() > this.settings.largePdfThreshold * MEGABYTE;
+    }
+
+    /**
+     * Turns the bounded-memory processing on or off regardless of the size of the document; {@code null} decides by
+     * size again.
+     */
+    public void setLargeDocumentMode(Boolean largeDocumentMode) {
+        this.largeDocumentMode = largeDocumentMode;
+    }
+
+    /**
+     * Deletes the temporary files of the documents produced in large-document mode, so it must be called once the
+     * signed document has been saved.
+     */
+    @Override
+    public void close() {
+        if (this.tempFiles != null) {
+            this.tempFiles.clear();
+        }
+    }
+
     public void setVisibleSignature(boolean visibleSignature) {
         this.visibleSignature = visibleSignature;
     }
 
+    /**
+     * Signs into the existing empty signature field {@code fieldId}, such as the one of a template prepared by
+     * {@link PAdESTemplates}, instead of adding a new field; {@code null} adds a new field again. The field keeps its
+     * position and size, and gets the signature appearance when the visible signature is on.
+     */
+    public void setSignatureFieldId(String signatureFieldId) {
+        this.signatureFieldId = signatureFieldId;
+    }
+
+    /**
+     * Signs visibly into the field {@code fieldId} of a template prepared by {@link PAdESTemplates} with the current
+     * settings. A document without that field is signed in a new field at the same position.
+     */
+    public void useTemplateField(String fieldId) {
+        this.setSignatureFieldId(fieldId);
+        this.setVisibleSignature(true);
+        this.addVisibleSignature(this.settings.pageNumber, new Rectangle(this.settings.signX, this.settings.signY, this.settings.signWidth, this.settings.signHeight));
+    }
+
     public void addVisibleSignature(int page, Rectangle rect) {
         this.page = page;
         this.x = rect.x;
         this.y = rect.y;
     }
 
-    private void appendVisibleSignature(CertificateToken certificate, Date date, String reason, String location, String contactInfo, String image, Boolean hideAdvice) {
+    /**
+     * Moves the visible signature field to the nearest free area of its page when the configured position overlaps
+     * an existing annotation or signature, which DSS would otherwise reject.
+     *
+     * @return whether the field was moved
+     */
+    private boolean placeSignatureField(DSSDocument document, SignatureImageParameters imageParameters) {
+        SignatureFieldParameters field = imageParameters.getFieldParameters();
+        try (PdfBoxDocumentReader reader = new PdfBoxDocumentReader(document, null, this.getPdfMemoryUsageSetting(document))) {
+            if (field.getPage() < 1 || field.getPage() > reader.getNumberOfPages()) {
+                return false;
+            }
+
+            // El cuadro que DSS calcula para el texto y la imagen; el campo queda sin tamaño para que DSS lo ajuste
+            NativePdfBoxVisibleSignatureDrawer drawer = new NativePdfBoxVisibleSignatureDrawer();
+            drawer.init(imageParameters, reader.getPDDocument(), new SignatureOptions());
+            AnnotationBox fieldBox = drawer.buildSignatureFieldBox().getAnnotationBox();
+            return SignatureFieldPlacer.forPage(reader, field.getPage(), field.getRotation()).place(field, fieldBox);
+        } catch (IOException | RuntimeException e) {
+            this.LOG.warn("No se pudo buscar un espacio libre para la firma visible, se usa la posición configurada", e);
+            return false;
+        }
+    }
+
+    private void appendVisibleSignature(PAdESSignatureParameters parameters, CertificateToken certificate, Date date, String reason, String location, String contactInfo, String image, Boolean hideAdvice) {
         SignatureImageParameters imageParameters = new SignatureImageParameters();
         imageParameters.getFieldParameters().setRotation(VisualSignatureRotation.AUTOMATIC);
         SignatureFieldParameters fparamet = imageParameters.getFieldParameters();
         fparamet.setOriginX((float) this.x);
         fparamet.setOriginY((float) this.y);
         SignatureImageTextParameters textParameters = new SignatureImageTextParameters();
-        textParameters.setFont(new DSSJavaFont(new Font(this.settings.getFontName(this.settings.font, true), this.settings.getFontStyle(this.settings.font), this.settings.fontSize)));
+        textParameters.setFont(VisibleSignatureResources.getInstance().getFont(this.settings));
         String cn = DSSASN1Utils.getSubjectCommonName(certificate);
         X500PrincipalHelper subject = certificate.getSubject();
         String o = DSSASN1Utils.extractAttributeFromX500Principal(BCStyle.O, subject);
@@ -287,7 +600,7 @@ public class FirmadorPAdES extends CRSigner {
 
         try {
             if (image != null && !image.trim().isEmpty()) {
-                imageParameters.setImage(new InMemoryDocument(Utils.toByteArray((new URL(image)).openStream())));
+                imageParameters.setImage(VisibleSignatureResources.getInstance().getImage(image, this.settings.pDFImgScaleFactor));
             }
         } catch (IOException e) {
             this.LOG.error("Error al procesar la imagen para la representación visual de firma)", e);
@@ -295,6 +608,16 @@ public class FirmadorPAdES extends CRSigner {
         }
 
         imageParameters.getFieldParameters().setPage(this.page);
-        this.parameters.setImageParameters(imageParameters);
+        parameters.setImageParameters(imageParameters);
+    }
+
+    @Override
+    protected AugmentationJob.Format getAugmentationFormat() {
+        return AugmentationJob.Format.PADES;
+    }
+
+    @Override
+    protected String getMetricsFormat() {
+        return SigningMetrics.PADES;
     }
 }
@@ -1,15 +1,22 @@
 package cr.poc.firmador.sign;
 
 import cr.poc.firmador.card.CardSignInfo;
+import cr.poc.firmador.card.TokenSession;
+import cr.poc.firmador.metrics.SigningMetrics;
 import cr.poc.firmador.settings.Settings;
 import cr.poc.firmador.settings.SettingsManager;
-import cr.poc.firmador.utils.OfficeDocumentDebugger;
+import cr.poc.firmador.zip.ZipAppender;
+import cr.poc.firmador.zip.ZipEntryWriter;
+import cr.poc.firmador.zip.ZipRewriter;
 import eu.europa.esig.dss.enumerations.DigestAlgorithm;
 import eu.europa.esig.dss.enumerations.SignatureLevel;
+import eu.europa.esig.dss.enumerations.MimeType;
 import eu.europa.esig.dss.enumerations.SignaturePackaging;
+import eu.europa.esig.dss.model.CommonDocument;
 import eu.europa.esig.dss.model.DSSDocument;
-import eu.europa.esig.dss.model.FileDocument;
-import eu.europa.esig.dss.model.InMemoryDocument;
+import eu.europa.esig.dss.model.DSSException;
+import eu.europa.esig.dss.model.SignatureValue;
+import eu.europa.esig.dss.model.ToBeSigned;
 import eu.europa.esig.dss.service.tsp.OnlineTSPSource;
 import eu.europa.esig.dss.spi.validation.CertificateVerifier;
 import eu.europa.esig.dss.xades.XAdESSignatureParameters;
@@ -18,38 +25,23 @@ import eu.europa.esig.dss.xades.signature.XAdESService;
 import lombok.NoArgsConstructor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.lang.invoke.MethodHandles;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.Enumeration;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
 
 @NoArgsConstructor
 public class FirmadorWord extends CRSigner implements AutoCloseable {
@@ -60,50 +52,39 @@ public class FirmadorWord extends CRSigner implements AutoCloseable {
     private static final String WORD_MAIN_DOCUMENT = "word/document.xml";
     private static final String WORD_RELS_FILE = "word/_rels/document.xml.rels";
     private static final String SIGNATURES_DIR = "_xmlsignatures/";
-    private static final String SIGNATURE_FILE = "_xmlsignatures/sig1.xml";
+    private static final Pattern SIGNATURE_FILE =
+            Pattern.compile(Pattern.quote(SIGNATURES_DIR) + "sig(\\d+)\\.xml", Pattern.CASE_INSENSITIVE);
     private static final String SIGNATURE_ORIGIN = "_xmlsignatures/origin.sigs";
     private static final String ORIGIN_RELS_FILE = "_xmlsignatures/_rels/origin.sigs.rels";
     private static final String ROOT_RELS_FILE = "_rels/.rels";
     private static final String CONTENT_TYPES_FILE = "[Content_Types].xml";
+    private static final int PIPE_SIZE = 64 * 1024;
     // Removed SIG_RELS_FILE constant
 
-    private Path tempDir;
-    private File originalDocx;
-    private File signedDocx;
-
+    // Partes que se reescriben en el paquete firmado; las de las firmas anteriores se conservan tal cual
+    private static final Set<String> REPLACED_PARTS =
+            Set.of(ROOT_RELS_FILE, ORIGIN_RELS_FILE, CONTENT_TYPES_FILE, WORD_RELS_FILE);
+
+    private OfficePackage source;
+    private String signatureFile;
+    private DSSDocument signedXml;
+
+    /**
+     * Signs {@code wordDocument}, keeping the signatures it already has. The package is read in place (or once into
+     * memory if it is not a file) and the returned document writes the signed package straight to the stream it is
+     * written to, so no intermediate copy of the package is made; it reads the original package while it is written
+     * and must be written before this signer is closed. It can not be saved over {@code wordDocument}, which
+     * {@link #signInPlace} signs instead.
+     */
     public DSSDocument sign(DSSDocument wordDocument, CardSignInfo card) {
         try {
-            tempDir = Files.createTempDirectory("word_signing_");
-            originalDocx = new File(tempDir.toFile(), "original.docx");
-            wordDocument.save(originalDocx.getPath());
-
-            // Debug: Extract original document contents
-//            OfficeDocumentDebugger.extractAndLogContents(originalDocx, "original");
-
-            // Extract and sign document.xml
-            byte[] mainDocumentXml = extractFileFromZip(originalDocx, WORD_MAIN_DOCUMENT);
-            if (mainDocumentXml == null) {
-                LOG.error("Could not find main document.xml in Word file");
-                return null;
-            }
-
-            // Create signature
-            DSSDocument xmlDocument = new InMemoryDocument(mainDocumentXml);
-            DSSDocument signedXml = signXmlDocument(xmlDocument, card);
-
-            if (signedXml == null) {
-                LOG.error("Failed to sign XML document");
+            this.source = OfficePackage.open(wordDocument);
+            if (!this.signMainDocument(card)) {
+                cleanup();
                 return null;
             }
 
-            // Create new signed docx
-            signedDocx = new File(tempDir.toFile(), "signed.docx");
-            createSignedDocx(originalDocx, signedDocx, signedXml);
-
-            // Debug: Extract signed document contents
-            OfficeDocumentDebugger.extractAndLogContents(signedDocx, "signed");
-
-            return new FileDocument(signedDocx);
+            return new SignedPackageDocument(wordDocument.getName(), wordDocument.getMimeType());
         } catch (Exception e) {
             LOG.error("Error during Word document signing", e);
             cleanup();
@@ -111,55 +92,117 @@ public class FirmadorWord extends CRSigner implements AutoCloseable {
         }
     }
 
-    private byte[] extractFileFromZip(File zipFile, String fileName) throws IOException {
-        try (ZipFile zip = new ZipFile(zipFile)) {
-            ZipEntry entry = zip.getEntry(fileName);
-            if (entry == null) {
-                return null;
+    /**
+     * Signs the Word file {@code wordFile} in place, keeping the signatures it already has: the signature parts are
+     * appended to it with {@link ZipAppender} and the parts they replace are superseded, so the rest of the package
+     * is neither read nor rewritten. The superseded {@code [Content_Types].xml} and relationship parts stay in the
+     * file, where readers that scan the local headers instead of the central directory find them first; packages for
+     * such readers must be signed with {@link #sign} instead.
+     *
+     * @return whether the file was signed; if not, it is left as it was
+     */
+    public boolean signInPlace(File wordFile, CardSignInfo card) {
+        try (ZipAppender appender = ZipAppender.open(wordFile.toPath())) {
+            this.source = OfficePackage.of(appender.getSource());
+            if (!this.signMainDocument(card)) {
+                return false;
             }
 
-            try (InputStream is = zip.getInputStream(entry)) {
-                return is.readAllBytes();
+            this.writeSignatureParts(appender);
+            appender.finish();
+            return true;
+        } catch (Exception e) {
+            LOG.error("Error during in-place Word document signing", e);
+            return false;
+        } finally {
+            cleanup();
+        }
+    }
+
+    private boolean signMainDocument(CardSignInfo card) throws IOException {
+        if (this.source.read(WORD_MAIN_DOCUMENT) == null) {
+            LOG.error("Could not find main document.xml in Word file");
+            return false;
+        }
+
+        this.signatureFile = this.nextSignatureFile();
+
+        // The signature covers every part of the package, not only document.xml
+        this.signedXml = signPackage(card);
+
+        if (this.signedXml == null) {
+            LOG.error("Failed to sign XML document");
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Name of the part for a new signature: {@code _xmlsignatures/sigN.xml}, numbered after the signatures the
+     * package already has.
+     */
+    private String nextSignatureFile() {
+        int last = 0;
+        for (String part : this.source.partNames()) {
+            Matcher matcher = SIGNATURE_FILE.matcher(part);
+            if (matcher.matches()) {
+                last = Math.max(last, Integer.parseInt(matcher.group(1)));
             }
         }
+
+        return SIGNATURES_DIR + "sig" + (last + 1) + ".xml";
     }
 
-    private DSSDocument signXmlDocument(DSSDocument xmlDocument, CardSignInfo card) {
+    /**
+     * Creates the package signature for the new signature part: an enveloping XAdES signature over the
+     * package object built by {@link OfficePackageSignature}.
+     */
+    private DSSDocument signPackage(CardSignInfo card) {
         try {
             CertificateVerifier verifier = this.getCertificateVerifier();
             XAdESService service = new XAdESService(verifier);
 
             // Configure TSP source
-            OnlineTSPSource onlineTSPSource = new OnlineTSPSource("http://tsa.sinpe.fi.cr/tsaHttp/");
+            OnlineTSPSource onlineTSPSource = this.getTSPSource();
             service.setTspSource(onlineTSPSource);
 
-            // Initialize signature parameters
+            // El objeto del paquete se firma en BASELINE-B y se completa antes de agregar el sello de tiempo
             this.parameters = new XAdESSignatureParameters();
-            this.parameters.setSignatureLevel(this.settings.getXAdESLevel());
-            this.parameters.setSignaturePackaging(SignaturePackaging.DETACHED);
+            this.parameters.setSignatureLevel(SignatureLevel.XAdES_BASELINE_B);
+            this.parameters.setSignaturePackaging(SignaturePackaging.ENVELOPING);
             this.parameters.setDigestAlgorithm(DigestAlgorithm.SHA256);
 
-            // Create reference to the main document
-            DSSReference reference = new DSSReference();
-            reference.setId("r-" + this.parameters.getDeterministicId());
-            reference.setUri("../document.xml");
-            reference.setContents(xmlDocument);
-            reference.setDigestMethodAlgorithm(DigestAlgorithm.SHA256);
-            this.parameters.setReferences(Arrays.asList(reference));
-
             // Get signing certificate
-            var token = this.getSignatureConnection(card);
-            var privateKey = this.getPrivateKey(token);
+            var session = this.getTokenSession(card);
+            var privateKey = this.getPrivateKey(session);
             var certificate = privateKey.getCertificate();
 
+            Date signingDate = new Date();
             this.parameters.setSigningCertificate(certificate);
             this.parameters.setSigningCertificateDigestMethod(DigestAlgorithm.SHA256);
-            this.parameters.bLevel().setSigningDate(new Date());
-
-            // Sign the document
-            var dataToSign = service.getDataToSign(xmlDocument, this.parameters);
-            var signatureValue = token.sign(dataToSign, this.parameters.getDigestAlgorithm(), privateKey);
-            return service.signDocument(xmlDocument, this.parameters, signatureValue);
+            this.parameters.bLevel().setSigningDate(signingDate);
+
+            // Sign the package object
+            OfficePackageSignature packageSignature;
+            DSSReference reference;
+            ToBeSigned dataToSign;
+            try (SigningMetrics.PhaseTimer timer = this.startTimer(SigningMetrics.Phase.DATA_TO_SIGN)) {
+                packageSignature = OfficePackageSignature.build(this.source, this.parameters.getDigestAlgorithm(),
+                        this.parameters.getDeterministicId(), signingDate);
+                reference = packageSignature.reference("r-" + this.parameters.getDeterministicId(), this.parameters.getDigestAlgorithm());
+                this.parameters.setReferences(Arrays.asList(reference));
+                dataToSign = service.getDataToSign(reference.getContents(), this.parameters);
+            }
+            LOG.debug("Firma del paquete sobre {} partes", packageSignature.getPartCount());
+            SignatureValue signatureValue;
+            try (SigningMetrics.PhaseTimer timer = this.startTimer(SigningMetrics.Phase.TOKEN_SIGN)) {
+                signatureValue = session.sign(dataToSign, this.parameters.getDigestAlgorithm());
+            }
+            try (SigningMetrics.PhaseTimer timer = this.startTimer(SigningMetrics.Phase.SIGN_DOCUMENT)) {
+                DSSDocument signature = packageSignature.complete(service.signDocument(reference.getContents(), this.parameters, signatureValue));
+                return this.extendSignature(service, signature);
+            }
 
         } catch (Exception e) {
             LOG.error("Error signing XML document", e);
@@ -167,286 +210,177 @@ public class FirmadorWord extends CRSigner implements AutoCloseable {
         }
     }
 
-    private void createSignedDocx(File sourceDocx, File targetDocx, DSSDocument signedXml) throws IOException {
-        // Ensure parent directory exists
-        File parentDir = targetDocx.getParentFile();
-        if (parentDir != null && !parentDir.exists()) {
-            parentDir.mkdirs();
+    private DSSDocument extendSignature(XAdESService service, DSSDocument signature) {
+        SignatureLevel level = this.settings.getXAdESLevel();
+        if (level == SignatureLevel.XAdES_BASELINE_B) {
+            return signature;
         }
 
-        try (ZipFile sourceZip = new ZipFile(sourceDocx);
-             ZipOutputStream targetZip = new ZipOutputStream(new FileOutputStream(targetDocx))) {
+        XAdESSignatureParameters extensionParameters = new XAdESSignatureParameters();
+        extensionParameters.setSignatureLevel(level);
+        try {
+            return service.extendDocument(signature, extensionParameters);
+        } catch (Exception e) {
+            LOG.error("Error al ampliar la firma del paquete a {}, se mantiene en AdES-B", level, e);
+            SigningMetrics.getInstance().increment(SigningMetrics.Event.FALLBACK_BASELINE_B, this.getMetricsFormat());
+            return signature;
+        }
+    }
+
+    private void writeSignedPackage(OutputStream out) throws IOException {
+        if (this.source == null || this.signedXml == null) {
+            throw new IOException("El firmador ya se cerró o el documento no se firmó");
+        }
 
-            // Copy all existing files except those we'll replace
-            copyExistingFiles(sourceZip, targetZip);
+        // El flujo es del llamador, así que sólo se termina el zip sin cerrarlo
+        ZipRewriter targetZip = new ZipRewriter(out);
 
-            // Add signature directories under word/
+        // Copy all existing files except those we'll replace, without recompressing them
+        this.source.copyTo(targetZip, REPLACED_PARTS);
+        this.writeSignatureParts(targetZip);
+        targetZip.finish();
+    }
+
+    private void writeSignatureParts(ZipEntryWriter targetZip) throws IOException {
+        // Los directorios y el origen de las firmas anteriores se copian como están
+        if (!this.source.contains(SIGNATURES_DIR)) {
             addDirectoryEntry(targetZip, SIGNATURES_DIR);
+        }
+        if (!this.source.contains(SIGNATURES_DIR + "_rels/")) {
             addDirectoryEntry(targetZip, SIGNATURES_DIR + "_rels/");
-
-            // Add empty origin.sigs file under word/_xmlsignatures
+        }
+        if (!this.source.contains(SIGNATURE_ORIGIN)) {
             addEntry(targetZip, SIGNATURE_ORIGIN, new ByteArrayInputStream(new byte[0]));
-
-            // Add the signature file
-            addEntry(targetZip, SIGNATURE_FILE, signedXml.openStream());
-
-            // Add or update relationships and content types
-            updateRelationships(targetZip, sourceZip);
-            updateContentTypes(targetZip, sourceZip);
         }
-    }
 
-    private void copyExistingFiles(ZipFile source, ZipOutputStream target) throws IOException {
-        Enumeration<? extends ZipEntry> entries = source.entries();
-        while (entries.hasMoreElements()) {
-            ZipEntry entry = entries.nextElement();
-            String entryName = entry.getName();
-
-            // Skip files we'll replace
-            if (entryName.equals(SIGNATURE_FILE) ||
-                    entryName.equals(ROOT_RELS_FILE) ||
-                    entryName.equals(ORIGIN_RELS_FILE) ||
-                    entryName.equals(CONTENT_TYPES_FILE) ||
-                    entryName.equals(WORD_RELS_FILE)) {
-                continue;
-            }
-
-            // Copy all other files as-is
-            ZipEntry newEntry = new ZipEntry(entryName);
-            target.putNextEntry(newEntry);
-            try (InputStream is = source.getInputStream(entry)) {
-                is.transferTo(target);
-            }
-            target.closeEntry();
+        // Add the signature file
+        try (InputStream signature = this.signedXml.openStream()) {
+            addEntry(targetZip, this.signatureFile, signature);
         }
+
+        // Add or update relationships and content types
+        updateRelationships(targetZip, this.source);
+        updateContentTypes(targetZip, this.source);
     }
 
-    private void addDirectoryEntry(ZipOutputStream zip, String dirName) throws IOException {
-        ZipEntry entry = new ZipEntry(dirName);
-        zip.putNextEntry(entry);
-        zip.closeEntry();
+    private void addDirectoryEntry(ZipEntryWriter zip, String dirName) throws IOException {
+        zip.addDirectory(dirName);
     }
 
-    private void addEntry(ZipOutputStream zip, String name, InputStream content) throws IOException {
-        ZipEntry entry = new ZipEntry(name);
-        zip.putNextEntry(entry);
-        content.transferTo(zip);
-        zip.closeEntry();
+    private void addEntry(ZipEntryWriter zip, String name, InputStream content) throws IOException {
+        zip.add(name, content.readAllBytes());
     }
 
-    private void updateRelationships(ZipOutputStream zip, ZipFile sourceZip) throws IOException {
-        // Add origin.sigs.rels that points to the signature
-        String signatureRels = createSignatureRels();
-        //Este es el que va dentro de _xmlsignatures
-        addEntry(zip, ORIGIN_RELS_FILE, new ByteArrayInputStream(signatureRels.getBytes()));
+    private void updateRelationships(ZipEntryWriter zip, OfficePackage sourceZip) throws IOException {
+        // origin.sigs.rels apunta a todas las firmas, la nueva se agrega después de las anteriores
+        zip.add(ORIGIN_RELS_FILE, OfficePackageParts.addSignatureRelationship(sourceZip.read(ORIGIN_RELS_FILE),
+                this.signatureFile.substring(SIGNATURES_DIR.length())));
 
-        // Update root relationships to point to origin.sigs
-        updateRootRelationships(zip, sourceZip);
+        //este es el root .rels que va en _rels del root, apunta a origin.sigs
+        zip.add(ROOT_RELS_FILE, OfficePackageParts.rewriteRelationships(sourceZip.read(ROOT_RELS_FILE), "/" + SIGNATURE_ORIGIN));
 
         // Update document.xml.rels WITHOUT the signature reference
-        String documentRels = createOrUpdateDocumentRels(sourceZip);
-        addEntry(zip, WORD_RELS_FILE, new ByteArrayInputStream(documentRels.getBytes()));
+        zip.add(WORD_RELS_FILE, OfficePackageParts.rewriteRelationships(sourceZip.read(WORD_RELS_FILE), null));
     }
 
-    private String createOrUpdateDocumentRels(ZipFile sourceZip) throws IOException {
-        StringBuilder xml = new StringBuilder();
-        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
-        xml.append("<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">\n");
-
-        // Copy existing relationships
-        ZipEntry relsEntry = sourceZip.getEntry(WORD_RELS_FILE);
-        if (relsEntry != null) {
-            try (InputStream is = sourceZip.getInputStream(relsEntry)) {
-                String content = new String(is.readAllBytes(), StandardCharsets.UTF_8);
-                // Extract only non-signature relationships
-                Pattern pattern = Pattern.compile("<Relationship\\s+[^>]+>");
-                Matcher matcher = pattern.matcher(content);
-                while (matcher.find()) {
-                    String relationship = matcher.group(0);
-                    // Skip any existing signature relationships and nested Relationships tags
-                    if (!relationship.contains("digital-signature") && !relationship.contains("<Relationships")) {
-                        xml.append("  ").append(relationship).append("\n");
-                    }
-                }
-            }
-        }
-
-        xml.append("</Relationships>");
-        return xml.toString();
+    private void updateContentTypes(ZipEntryWriter zip, OfficePackage sourceZip) throws IOException {
+        // Keeps the content types of the package and adds the ones of the signature parts
+        byte[] contentTypes = sourceZip.read(CONTENT_TYPES_FILE);
+        zip.add(CONTENT_TYPES_FILE, OfficePackageParts.rewriteContentTypes(contentTypes, this.signatureFile));
     }
 
-    //Este es el que va dentro de _xmlsignatures
-    private String createSignatureRels() {
-        return "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n" +
-                "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">\n" +
-                "  <Relationship Id=\"rId1\" " +
-                "Type=\"http://schemas.openxmlformats.org/package/2006/relationships/digital-signature/signature\" " +
-                "Target=\"sig1.xml\"/>\n" +  // Removed leading slash as it's relative to origin.sigs
-                "</Relationships>";
+    public DSSDocument extend(DSSDocument document) {
+        // Implementation for extending the signature level if needed
+        return document;
     }
 
-    private void updateContentTypes(ZipOutputStream zip, ZipFile sourceZip) throws IOException {
-        StringBuilder xml = new StringBuilder();
-        xml.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
-        xml.append("<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">\n");
-
-        // Add required content types
-        xml.append("  <Default Extension=\"rels\" ")
-                .append("ContentType=\"application/vnd.openxmlformats-package.relationships+xml\" />\n");
-        xml.append("  <Default Extension=\"xml\" ")
-                .append("ContentType=\"application/xml\" />\n");
-        xml.append("  <Default Extension=\"sigs\" ")
-                .append("ContentType=\"application/vnd.openxmlformats-package.digital-signature-origin\" />\n");
-
-        // Add signature content type with correct root path
-        xml.append("  <Override PartName=\"/_xmlsignatures/sig1.xml\" ")
-                .append("ContentType=\"application/vnd.openxmlformats-package.digital-signature-xmlsignature+xml\" />\n");
-
-        // Copy existing content types from source
-        ZipEntry contentTypesEntry = sourceZip.getEntry(CONTENT_TYPES_FILE);
-        if (contentTypesEntry != null) {
-            try (InputStream is = sourceZip.getInputStream(contentTypesEntry)) {
-                String content = new String(is.readAllBytes(), StandardCharsets.UTF_8);
-                // Extract existing overrides, excluding signature-related ones
-                Pattern pattern = Pattern.compile("<Override PartName=\"([^\"]+)\"[^>]+>");
-                Matcher matcher = pattern.matcher(content);
-                while (matcher.find()) {
-                    String partName = matcher.group(1);
-                    if (!partName.contains("_xmlsignatures")) {
-                        xml.append("  ").append(matcher.group(0)).append("\n");
-                    }
-                }
+    private void cleanup() {
+        try {
+            if (this.source != null) {
+                this.source.close();
             }
+        } catch (IOException e) {
+            LOG.warn("Error closing the source package", e);
         }
+        this.source = null;
+        this.signatureFile = null;
+        this.signedXml = null;
+    }
 
-        xml.append("</Types>");
-        addEntry(zip, CONTENT_TYPES_FILE, new ByteArrayInputStream(xml.toString().getBytes()));
+    @Override
+    public void close() {
+        cleanup();
     }
 
-    //este es el root .rels que va en _rels del root
-    private void updateRootRelationships(ZipOutputStream zip, ZipFile sourceZip) throws IOException {
-        try {
-            updateRootRelationshipsDom(zip, sourceZip);
-        } catch (Exception e) {
-            LOG.warn("DOM-based relationship update failed, falling back to string-based method", e);
-            updateRootRelationshipsLegacy(zip, sourceZip);
-        }
+    @Override
+    protected String getMetricsFormat() {
+        return SigningMetrics.OOXML;
     }
 
-    private void updateRootRelationshipsDom(ZipOutputStream zip, ZipFile sourceZip) throws IOException {
-        try {
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            DocumentBuilder db = dbf.newDocumentBuilder();
-            Document doc;
-            
-            ZipEntry relsEntry = sourceZip.getEntry(ROOT_RELS_FILE);
-            if (relsEntry != null) {
-                // Parse existing .rels file
-                try (InputStream is = sourceZip.getInputStream(relsEntry)) {
-                    doc = db.parse(is);
-                }
-            } else {
-                // Create new document if .rels doesn't exist
-                doc = db.newDocument();
-                Element relationships = doc.createElement("Relationships");
-                relationships.setAttribute("xmlns", "http://schemas.openxmlformats.org/package/2006/relationships");
-                doc.appendChild(relationships);
-            }
+    /**
+     * The signed package, produced from the source package and the signature whenever it is written.
+     */
+    private class SignedPackageDocument extends CommonDocument {
 
-            // Get root element
-            Element root = doc.getDocumentElement();
-            
-            // Add new signature origin relationship
-            Element newRelationship = doc.createElement("Relationship");
-            newRelationship.setAttribute("Type", "http://schemas.openxmlformats.org/package/2006/relationships/digital-signature/origin");
-            newRelationship.setAttribute("Target", "/_xmlsignatures/origin.sigs");
-            newRelationship.setAttribute("Id", "rId4");
-            root.appendChild(newRelationship);
-
-            // Transform DOM to XML string
-            TransformerFactory tf = TransformerFactory.newInstance();
-            Transformer transformer = tf.newTransformer();
-            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-            transformer.setOutputProperty(OutputKeys.STANDALONE, "yes");
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-
-            StringWriter writer = new StringWriter();
-            transformer.transform(new DOMSource(doc), new StreamResult(writer));
-            String xmlString = writer.toString();
-
-            // Add to zip
-            addEntry(zip, ROOT_RELS_FILE, new ByteArrayInputStream(xmlString.getBytes(StandardCharsets.UTF_8)));
-
-        } catch (ParserConfigurationException | TransformerException | SAXException e) {
-            throw new IOException("Error processing XML relationships", e);
+        private SignedPackageDocument(String name, MimeType mimeType) {
+            this.name = name;
+            this.mimeType = mimeType;
         }
-    }
 
-    //este es el root .rels que va en _rels del root - legacy string-based method
-    private void updateRootRelationshipsLegacy(ZipOutputStream zip, ZipFile sourceZip) throws IOException {
-        StringBuilder xml = new StringBuilder();
-        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
-
-        //aqui obtiene el archivo de los _rels para formarlo nuevamente
-        ZipEntry relsEntry = sourceZip.getEntry(ROOT_RELS_FILE);
-        if (relsEntry != null) {
-            try (InputStream is = sourceZip.getInputStream(relsEntry)) {
-                String content = new String(is.readAllBytes(), StandardCharsets.UTF_8);
-
-                if (content.contains("Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">")) {
-                    //se quita el closure tag para lo que viene.
-                    //TODO Usar estructuras de DOM para hacer esto, con strings es demasiado hacky
-                    content = content.replace("</Relationships>", "");
-                } else {
-                    xml.append("<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">\n");
-                }
+        @Override
+        public void writeTo(OutputStream stream) throws IOException {
+            FirmadorWord.this.writeSignedPackage(stream);
+        }
+
+        /**
+         * Saves the signed package to a temporary file next to {@code filePath} and then moves it into place, so a
+         * failed write leaves no partial file behind.
+         */
+        @Override
+        public void save(String filePath) throws IOException {
+            Path target = Path.of(filePath).toAbsolutePath();
+            OfficePackage source = FirmadorWord.this.source;
+            // El paquete original se lee mientras se escribe, así que no puede reemplazarse
+            if (source != null && source.isReadFrom(target)) {
+                throw new IOException("El documento firmado no puede guardarse sobre el original: " + target);
+            }
 
-                Pattern pattern = Pattern.compile("<Relationship[^>]+>");
-                Matcher matcher = pattern.matcher(content);
-                while (matcher.find()) {
-                    String relationship = matcher.group(0);
-                    // Skip any existing signature origin relationships
-                    if (!relationship.contains("digital-signature/origin")) {
-                        xml.append("  ").append(relationship).append("\n");
-                    }
+            Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(temp)) {
+                    this.writeTo(out);
                 }
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
             }
         }
 
-        // Add signature origin relationship
-        xml.append("  <Relationship ")
-                .append("Type=\"http://schemas.openxmlformats.org/package/2006/relationships/digital-signature/origin\" ")
-                .append("Target=\"/_xmlsignatures/origin.sigs\" ")
-                .append("Id=\"rId4\" />\n");
-        xml.append("</Relationships>");
-
-        addEntry(zip, ROOT_RELS_FILE, new ByteArrayInputStream(xml.toString().getBytes()));
-    }
-
-    public DSSDocument extend(DSSDocument document) {
-        // Implementation for extending the signature level if needed
-        return document;
-    }
-
-    private void cleanup() {
-        try {
-            if (originalDocx != null && originalDocx.exists()) {
-                originalDocx.delete();
-            }
-            if (signedDocx != null && signedDocx.exists()) {
-                signedDocx.delete();
-            }
-            if (tempDir != null && tempDir.toFile().exists()) {
-                tempDir.toFile().delete();
+        /**
+         * The signed package, written by another thread while it is read.
+         */
+        @Override
+        public InputStream openStream() {
+            PipedInputStream in = new PipedInputStream(PIPE_SIZE);
+            PipedOutputStream out;
+            try {
+                out = new PipedOutputStream(in);
+            } catch (IOException e) {
+                throw new DSSException("No se pudo generar el documento Word firmado", e);
             }
-        } catch (Exception e) {
-            LOG.warn("Error cleaning up temporary files", e);
-        }
-    }
 
-    @Override
-    public void close() {
-        cleanup();
+            Thread writer = new Thread(() -> {
+                try {
+                    this.writeTo(out);
+                    out.close();
+                } catch (IOException e) {
+                    // Sin cerrar el extremo de escritura, el lector recibe un error en vez de un fin de archivo
+                    LOG.error("No se pudo generar el documento Word firmado", e);
+                }
+            }, "word-package-writer");
+            writer.setDaemon(true);
+            writer.start();
+            return in;
+        }
     }
 }
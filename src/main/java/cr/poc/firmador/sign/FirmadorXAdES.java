@@ -1,6 +1,9 @@
 package cr.poc.firmador.sign;
 
+import cr.poc.firmador.augment.AugmentationJob;
 import cr.poc.firmador.card.CardSignInfo;
+import cr.poc.firmador.card.TokenSession;
+import cr.poc.firmador.metrics.SigningMetrics;
 import cr.poc.firmador.settings.Settings;
 import cr.poc.firmador.settings.SettingsManager;
 import eu.europa.esig.dss.alert.exception.AlertException;
@@ -17,7 +20,6 @@ import eu.europa.esig.dss.model.x509.CertificateToken;
 import eu.europa.esig.dss.service.tsp.OnlineTSPSource;
 import eu.europa.esig.dss.spi.validation.CertificateVerifier;
 import eu.europa.esig.dss.token.DSSPrivateKeyEntry;
-import eu.europa.esig.dss.token.SignatureTokenConnection;
 import eu.europa.esig.dss.utils.Utils;
 import eu.europa.esig.dss.xades.XAdESSignatureParameters;
 import eu.europa.esig.dss.xades.reference.DSSReference;
@@ -30,6 +32,7 @@ import org.apache.logging.log4j.Logger;
 
 import java.lang.invoke.MethodHandles;
 import java.util.Arrays;
+import java.util.List;
 
 @NoArgsConstructor
 public class FirmadorXAdES extends CRSigner {
@@ -44,11 +47,11 @@ public class FirmadorXAdES extends CRSigner {
         this.parameters = new XAdESSignatureParameters();
         SignatureValue signatureValue = null;
         DSSDocument signedDocument = null;
-        SignatureTokenConnection token = null;
+        TokenSession session = null;
 //        this.gui.nextStep("Obteniendo servicios de verificación de certificados");
 
         try {
-            token = this.getSignatureConnection(card);
+            session = this.getTokenSession(card);
         } catch (AlertException | Error | DSSException e) {
             this.LOG.error("Error al conectar con el dispositivo", e);
             return null;
@@ -57,7 +60,7 @@ public class FirmadorXAdES extends CRSigner {
         DSSPrivateKeyEntry privateKey = null;
 
         try {
-            privateKey = this.getPrivateKey(token);
+            privateKey = this.getPrivateKey(session);
 //            this.gui.nextStep("Obteniendo manejador de llaves privadas");
         } catch (Exception e) {
             this.LOG.error("Error al acceder al objeto de llave del dispositivo", e);
@@ -67,12 +70,12 @@ public class FirmadorXAdES extends CRSigner {
         try {
 //            this.gui.nextStep("Obteniendo certificados de la tarjeta");
             CertificateToken certificate = privateKey.getCertificate();
-            this.parameters.setSignatureLevel(this.settings.getXAdESLevel());
+            this.parameters.setSignatureLevel(this.augmentLater ? SignatureLevel.XAdES_BASELINE_B : this.settings.getXAdESLevel());
             this.parameters.setDigestAlgorithm(DigestAlgorithm.SHA256);
             this.parameters.setSigningCertificate(certificate);
             this.parameters.setSigningCertificateDigestMethod(this.parameters.getDigestAlgorithm());
             this.parameters.setPrettyPrint(true);
-            OnlineTSPSource onlineTSPSource = new OnlineTSPSource("http://tsa.sinpe.fi.cr/tsaHttp/");
+            OnlineTSPSource onlineTSPSource = this.getTSPSource();
 //            this.gui.nextStep("Obteniendo servicios TSP");
             service.setTspSource(onlineTSPSource);
             if (toSignDocument.getMimeType() == MimeTypeEnum.XML) {
@@ -99,15 +102,20 @@ public class FirmadorXAdES extends CRSigner {
             dssReference.setDigestMethodAlgorithm(this.parameters.getDigestAlgorithm());
             this.parameters.setReferences(Arrays.asList(dssReference));
             this.parameters.setEn319132(false);
-            ToBeSigned dataToSign = service.getDataToSign(toSignDocument, this.parameters);
+            ToBeSigned dataToSign;
+            try (SigningMetrics.PhaseTimer timer = this.startTimer(SigningMetrics.Phase.DATA_TO_SIGN)) {
+                dataToSign = service.getDataToSign(toSignDocument, this.parameters);
+            }
 //            this.gui.nextStep("Obteniendo estructura de datos a firmar");
-            signatureValue = token.sign(dataToSign, this.parameters.getDigestAlgorithm(), privateKey);
+            try (SigningMetrics.PhaseTimer timer = this.startTimer(SigningMetrics.Phase.TOKEN_SIGN)) {
+                signatureValue = session.sign(dataToSign, this.parameters.getDigestAlgorithm());
+            }
         } catch (Error | DSSException e) {
             this.LOG.error("Error al solicitar firma al dispositivo", e);
 //            this.gui.showError(FirmadorUtils.getRootCause(e));
         }
 
-        try {
+        try (SigningMetrics.PhaseTimer timer = this.startTimer(SigningMetrics.Phase.SIGN_DOCUMENT)) {
 //            this.gui.nextStep("Firmando estructura de datos");
             signedDocument = service.signDocument(toSignDocument, this.parameters, signatureValue);
 //            this.gui.nextStep("Firmado del documento completo");
@@ -116,8 +124,9 @@ public class FirmadorXAdES extends CRSigner {
             e.printStackTrace();
 //            this.gui.showMessage("Aviso: no se ha podido agregar el sello de tiempo y la información de revocación porque es posible<br>que haya problemas de conexión a Internet o con los servidores del sistema de Firma Digital.<br>Detalle del error: " + FirmadorUtils.getRootCause(e) + "<br><br>Se ha agregado una firma básica solamente. No obstante, si el sello de tiempo resultara importante<br>para este documento, debería agregarse lo antes posible antes de enviarlo al destinatario.<br><br>Si lo prefiere, puede cancelar el guardado del documento firmado e intentar firmarlo más tarde.<br>");
             this.parameters.setSignatureLevel(SignatureLevel.XAdES_BASELINE_B);
+            SigningMetrics.getInstance().increment(SigningMetrics.Event.FALLBACK_BASELINE_B, this.getMetricsFormat());
 
-            try {
+            try (SigningMetrics.PhaseTimer timer = this.startTimer(SigningMetrics.Phase.SIGN_DOCUMENT)) {
                 signedDocument = service.signDocument(toSignDocument, this.parameters, signatureValue);
             } catch (Exception var14) {
                 this.LOG.error("Error al procesar información de firma avanzada en nivel fallback (sin Internet) a AdES-B", e);
@@ -129,12 +138,20 @@ public class FirmadorXAdES extends CRSigner {
     }
 
     public DSSDocument extend(DSSDocument document) {
+        return this.extend(document, SignatureLevel.XAdES_BASELINE_LTA, null);
+    }
+
+    /**
+     * @param detachedContents signed documents of a detached signature, {@code null} for enveloped ones
+     */
+    public DSSDocument extend(DSSDocument document, SignatureLevel level, List<DSSDocument> detachedContents) {
         XAdESSignatureParameters parameters = new XAdESSignatureParameters();
-        parameters.setSignatureLevel(SignatureLevel.XAdES_BASELINE_LTA);
+        parameters.setSignatureLevel(level);
         parameters.setPrettyPrint(true);
+        parameters.setDetachedContents(detachedContents);
         CertificateVerifier verifier = this.getCertificateVerifier();
         XAdESService service = new XAdESService(verifier);
-        OnlineTSPSource onlineTSPSource = new OnlineTSPSource("http://tsa.sinpe.fi.cr/tsaHttp/");
+        OnlineTSPSource onlineTSPSource = this.getTSPSource();
         service.setTspSource(onlineTSPSource);
         DSSDocument extendedDocument = null;
 
@@ -148,4 +165,14 @@ public class FirmadorXAdES extends CRSigner {
 
         return extendedDocument;
     }
+
+    @Override
+    protected AugmentationJob.Format getAugmentationFormat() {
+        return AugmentationJob.Format.XADES;
+    }
+
+    @Override
+    protected String getMetricsFormat() {
+        return SigningMetrics.XADES;
+    }
 }
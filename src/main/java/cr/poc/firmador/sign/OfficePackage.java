@@ -0,0 +1,100 @@
+package cr.poc.firmador.sign;
+
+import cr.poc.firmador.zip.ZipRewriter;
+import cr.poc.firmador.zip.ZipSource;
+import eu.europa.esig.dss.model.DSSDocument;
+import eu.europa.esig.dss.model.FileDocument;
+import eu.europa.esig.dss.spi.DSSUtils;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Read access to the parts of an OOXML package for {@link FirmadorWord}, without extracting or copying it to disk.
+ * <p>
+ * A {@link FileDocument} is mapped in place and any other document is read once into memory, still compressed. Only
+ * the parts requested are inflated; the rest are copied to the signed package as they are by {@link ZipRewriter}.
+ */
+final class OfficePackage implements Closeable {
+    private final ZipSource zip;
+    // El archivo mapeado, o null si el paquete está en memoria
+    private final Path file;
+
+    private OfficePackage(ZipSource zip, Path file) {
+        this.zip = zip;
+        this.file = file;
+    }
+
+    static OfficePackage open(DSSDocument document) throws IOException {
+        if (document instanceof FileDocument fileDocument) {
+            Path file = fileDocument.getFile().toPath();
+            return new OfficePackage(ZipSource.open(file), file);
+        }
+
+        return new OfficePackage(ZipSource.of(DSSUtils.toByteArray(document)), null);
+    }
+
+    static OfficePackage of(ZipSource zip) {
+        return new OfficePackage(zip, null);
+    }
+
+    /**
+     * Whether the package is read from {@code path}, which then must not be written while the package is open.
+     */
+    boolean isReadFrom(Path path) throws IOException {
+        return this.file != null && Files.exists(path) && Files.isSameFile(this.file, path);
+    }
+
+    /**
+     * Content of the part {@code name}, {@code null} if the package does not have it.
+     */
+    byte[] read(String name) throws IOException {
+        ZipSource.Entry entry = this.zip.getEntry(name);
+        return entry == null ? null : this.zip.read(entry);
+    }
+
+    /**
+     * Whether the package has the part or directory entry {@code name}.
+     */
+    boolean contains(String name) {
+        return this.zip.getEntry(name) != null;
+    }
+
+    /**
+     * Names of the parts of the package, in package order, without the directory entries.
+     */
+    List<String> partNames() {
+        return this.zip.entries().stream().filter(entry -> !entry.isDirectory()).map(ZipSource.Entry::name).toList();
+    }
+
+    /**
+     * Writes the content of the part {@code name} to {@code out} without holding it in memory. Safe to call from
+     * several threads at once.
+     */
+    void transferTo(String name, OutputStream out) throws IOException {
+        ZipSource.Entry entry = this.zip.getEntry(name);
+        if (entry == null) {
+            throw new FileNotFoundException(name);
+        }
+        this.zip.transferTo(entry, out);
+    }
+
+    /**
+     * Copies every entry but the {@code skipped} ones to {@code target}, in package order and without recompressing
+     * them.
+     */
+    void copyTo(ZipRewriter target, Set<String> skipped) throws IOException {
+        target.copyAll(this.zip, skipped);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.zip.close();
+    }
+}
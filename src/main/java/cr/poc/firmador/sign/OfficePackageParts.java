@@ -0,0 +1,264 @@
+package cr.poc.firmador.sign;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Streaming rewrites of the OPC parts that a signature changes: the relationship parts and {@code [Content_Types].xml}.
+ * <p>
+ * Each part is read and written in one StAX pass, without building a tree, and written without indentation. Every
+ * element and attribute that the signature does not touch is copied as it is. The StAX factories are created once:
+ * they are only used to create readers and writers, each used by a single thread.
+ */
+final class OfficePackageParts {
+    static final String RELATIONSHIPS_NS = "http://schemas.openxmlformats.org/package/2006/relationships";
+    static final String CONTENT_TYPES_NS = "http://schemas.openxmlformats.org/package/2006/content-types";
+    static final String SIGNATURE_RELATIONSHIP_PREFIX = "http://schemas.openxmlformats.org/package/2006/relationships/digital-signature/";
+    static final String ORIGIN_RELATIONSHIP = SIGNATURE_RELATIONSHIP_PREFIX + "origin";
+    static final String SIGNATURE_RELATIONSHIP = SIGNATURE_RELATIONSHIP_PREFIX + "signature";
+    static final String RELATIONSHIPS_CONTENT_TYPE = "application/vnd.openxmlformats-package.relationships+xml";
+    private static final String ORIGIN_CONTENT_TYPE = "application/vnd.openxmlformats-package.digital-signature-origin";
+    private static final String SIGNATURE_CONTENT_TYPE = "application/vnd.openxmlformats-package.digital-signature-xmlsignature+xml";
+    private static final String XML_CONTENT_TYPE = "application/xml";
+    private static final byte[] XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>".getBytes(StandardCharsets.UTF_8);
+
+    private static final XMLInputFactory XML_INPUT = createInputFactory();
+    private static final XMLOutputFactory XML_OUTPUT = XMLOutputFactory.newFactory();
+
+    private OfficePackageParts() {
+    }
+
+    /**
+     * Copies the relationship part {@code rels} without its digital signature relationships and, if
+     * {@code originTarget} is not {@code null}, with a signature origin relationship to it. The origin relationship
+     * keeps the Id of the one it replaces, or else gets an Id no other relationship uses.
+     *
+     * @param rels the relationship part, {@code null} to create one
+     */
+    static byte[] rewriteRelationships(byte[] rels, String originTarget) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(rels == null ? 512 : rels.length + 256);
+        try {
+            XMLStreamWriter writer = startDocument(out, "Relationships", RELATIONSHIPS_NS);
+            Set<String> ids = new HashSet<>();
+            String originId = null;
+
+            if (rels != null) {
+                XMLStreamReader reader = createReader(rels);
+                try {
+                    while (reader.hasNext()) {
+                        if (reader.next() != XMLStreamConstants.START_ELEMENT || !"Relationship".equals(reader.getLocalName())) {
+                            continue;
+                        }
+
+                        String id = reader.getAttributeValue(null, "Id");
+                        String type = reader.getAttributeValue(null, "Type");
+                        if (type != null && type.startsWith(SIGNATURE_RELATIONSHIP_PREFIX)) {
+                            if (originId == null && ORIGIN_RELATIONSHIP.equals(type)) {
+                                originId = id;
+                            }
+                            continue;
+                        }
+
+                        ids.add(id);
+                        writer.writeEmptyElement("Relationship");
+                        copyAttributes(reader, writer);
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+
+            if (originTarget != null) {
+                if (originId == null || ids.contains(originId)) {
+                    originId = newRelationshipId(ids);
+                }
+                writer.writeEmptyElement("Relationship");
+                writer.writeAttribute("Id", originId);
+                writer.writeAttribute("Type", ORIGIN_RELATIONSHIP);
+                writer.writeAttribute("Target", originTarget);
+            }
+
+            endDocument(writer);
+        } catch (XMLStreamException e) {
+            throw new IOException("No se pudieron reescribir las relaciones del paquete", e);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Copies the relationship part of the signature origin {@code originRels} with a signature relationship to
+     * {@code signatureTarget} added after the existing ones, with an Id no other relationship uses.
+     *
+     * @param originRels the relationship part of the origin, {@code null} to create one
+     */
+    static byte[] addSignatureRelationship(byte[] originRels, String signatureTarget) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(originRels == null ? 512 : originRels.length + 256);
+        try {
+            XMLStreamWriter writer = startDocument(out, "Relationships", RELATIONSHIPS_NS);
+            Set<String> ids = new HashSet<>();
+
+            if (originRels != null) {
+                XMLStreamReader reader = createReader(originRels);
+                try {
+                    while (reader.hasNext()) {
+                        if (reader.next() != XMLStreamConstants.START_ELEMENT || !"Relationship".equals(reader.getLocalName())) {
+                            continue;
+                        }
+
+                        ids.add(reader.getAttributeValue(null, "Id"));
+                        writer.writeEmptyElement("Relationship");
+                        copyAttributes(reader, writer);
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+
+            writer.writeEmptyElement("Relationship");
+            writer.writeAttribute("Id", newRelationshipId(ids));
+            writer.writeAttribute("Type", SIGNATURE_RELATIONSHIP);
+            writer.writeAttribute("Target", signatureTarget);
+
+            endDocument(writer);
+        } catch (XMLStreamException e) {
+            throw new IOException("No se pudieron reescribir las relaciones de las firmas", e);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Copies {@code [Content_Types].xml} with the content types of the signature parts: the Overrides of the
+     * signatures already in the package are kept and the one of {@code signaturePart} is added, the Default for
+     * {@code .sigs} is added and so are the ones for {@code .rels} and {@code .xml} if the package does not have them.
+     *
+     * @param contentTypes the content types part, {@code null} to create one
+     */
+    static byte[] rewriteContentTypes(byte[] contentTypes, String signaturePart) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(contentTypes == null ? 1024 : contentTypes.length + 512);
+        try {
+            XMLStreamWriter writer = startDocument(out, "Types", CONTENT_TYPES_NS);
+            Set<String> extensions = new HashSet<>();
+
+            if (contentTypes != null) {
+                XMLStreamReader reader = createReader(contentTypes);
+                try {
+                    while (reader.hasNext()) {
+                        if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                            continue;
+                        }
+
+                        if ("Default".equals(reader.getLocalName())) {
+                            String extension = reader.getAttributeValue(null, "Extension");
+                            if (extension == null || !extensions.add(extension.toLowerCase(Locale.ROOT)) || "sigs".equalsIgnoreCase(extension)) {
+                                continue;
+                            }
+                            writer.writeEmptyElement("Default");
+                            copyAttributes(reader, writer);
+                        } else if ("Override".equals(reader.getLocalName())) {
+                            String partName = reader.getAttributeValue(null, "PartName");
+                            if (partName == null || partName.equalsIgnoreCase("/" + signaturePart)) {
+                                continue;
+                            }
+                            writer.writeEmptyElement("Override");
+                            copyAttributes(reader, writer);
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+
+            // El esquema permite Default y Override en cualquier orden, así que los de la firma van al final
+            if (!extensions.contains("rels")) {
+                writeDefault(writer, "rels", RELATIONSHIPS_CONTENT_TYPE);
+            }
+            if (!extensions.contains("xml")) {
+                writeDefault(writer, "xml", XML_CONTENT_TYPE);
+            }
+            writeDefault(writer, "sigs", ORIGIN_CONTENT_TYPE);
+            writer.writeEmptyElement("Override");
+            writer.writeAttribute("PartName", "/" + signaturePart);
+            writer.writeAttribute("ContentType", SIGNATURE_CONTENT_TYPE);
+
+            endDocument(writer);
+        } catch (XMLStreamException e) {
+            throw new IOException("No se pudieron reescribir los tipos de contenido del paquete", e);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * A reader of the package part {@code xml}, without DTDs or external entities.
+     */
+    static XMLStreamReader createReader(byte[] xml) throws XMLStreamException {
+        synchronized (XML_INPUT) {
+            return XML_INPUT.createXMLStreamReader(new ByteArrayInputStream(xml));
+        }
+    }
+
+    private static XMLStreamWriter startDocument(ByteArrayOutputStream out, String root, String namespace) throws XMLStreamException {
+        out.writeBytes(XML_DECLARATION);
+        XMLStreamWriter writer;
+        synchronized (XML_OUTPUT) {
+            writer = XML_OUTPUT.createXMLStreamWriter(out, StandardCharsets.UTF_8.name());
+        }
+        writer.setDefaultNamespace(namespace);
+        writer.writeStartElement(root);
+        writer.writeDefaultNamespace(namespace);
+        return writer;
+    }
+
+    private static void endDocument(XMLStreamWriter writer) throws XMLStreamException {
+        writer.writeEndElement();
+        writer.flush();
+        writer.close();
+    }
+
+    private static void copyAttributes(XMLStreamReader reader, XMLStreamWriter writer) throws XMLStreamException {
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String namespace = reader.getAttributeNamespace(i);
+            if (namespace == null || namespace.isEmpty()) {
+                writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            } else {
+                String prefix = reader.getAttributePrefix(i);
+                writer.writeNamespace(prefix, namespace);
+                writer.writeAttribute(prefix, namespace, reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            }
+        }
+    }
+
+    private static void writeDefault(XMLStreamWriter writer, String extension, String contentType) throws XMLStreamException {
+        writer.writeEmptyElement("Default");
+        writer.writeAttribute("Extension", extension);
+        writer.writeAttribute("ContentType", contentType);
+    }
+
+    private static String newRelationshipId(Set<String> ids) {
+        int next = ids.size() + 1;
+        while (ids.contains("rId" + next)) {
+            next++;
+        }
+        return "rId" + next;
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+}
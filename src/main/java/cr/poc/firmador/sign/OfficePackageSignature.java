@@ -0,0 +1,334 @@
+package cr.poc.firmador.sign;
+
+import eu.europa.esig.dss.enumerations.DigestAlgorithm;
+import eu.europa.esig.dss.enumerations.MimeTypeEnum;
+import eu.europa.esig.dss.model.DSSDocument;
+import eu.europa.esig.dss.model.DSSException;
+import eu.europa.esig.dss.model.InMemoryDocument;
+import eu.europa.esig.dss.spi.DSSUtils;
+import eu.europa.esig.dss.utils.Utils;
+import eu.europa.esig.dss.xades.DSSObject;
+import eu.europa.esig.dss.xades.reference.CanonicalizationTransform;
+import eu.europa.esig.dss.xades.reference.DSSReference;
+import eu.europa.esig.dss.xml.utils.DomUtils;
+import eu.europa.esig.dss.xml.utils.XMLCanonicalizer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The package object of an ECMA-376 Part 2 (OPC) digital signature: a {@code ds:Manifest} with a reference to every
+ * part of the package but the signature parts and the content types, each with its content type in the URI, and the
+ * {@code SignatureTime} property. The signature signs this object, so every part of the document is covered and not
+ * only its main part.
+ * <p>
+ * Part digests are computed in parallel on a pool of up to one thread per core that lasts for one signature,
+ * inflating each part straight from the package. Relationship parts are referenced through the relationship
+ * transform, which selects every relationship by {@code SourceId} except the digital signature ones, sorts them and
+ * canonicalizes the result, so adding the signature origin relationship afterwards does not break the signature.
+ * <p>
+ * DSS puts a single element in each {@code ds:Object}. The reference digest is computed from the contents DSS is
+ * given, not from the signature being built, so the object is signed in its final form while only the Manifest is
+ * embedded, and {@link #complete} adds the SignatureProperties to the BASELINE-B signature before any timestamp
+ * covers the object.
+ */
+final class OfficePackageSignature {
+    private static final Logger LOG = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+
+    static final String PACKAGE_OBJECT_ID = "idPackageObject";
+    private static final String XMLDSIG_NS = "http://www.w3.org/2000/09/xmldsig#";
+    private static final String OBJECT_TYPE = XMLDSIG_NS + "Object";
+    private static final String RELATIONSHIP_TRANSFORM = "http://schemas.openxmlformats.org/package/2006/RelationshipTransform";
+    private static final String DIGITAL_SIGNATURE_NS = "http://schemas.openxmlformats.org/package/2006/digital-signature";
+    private static final String CONTENT_TYPES_PART = "[Content_Types].xml";
+    private static final String SIGNATURE_PARTS_PREFIX = "_xmlsignatures/";
+    private static final String RELATIONSHIPS_SUFFIX = ".rels";
+    private static final String INTERNAL_TARGET = "Internal";
+    private static final String SIGNATURE_TIME_FORMAT = "YYYY-MM-DDThh:mm:ssTZD";
+    private static final DateTimeFormatter SIGNATURE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'").withZone(ZoneOffset.UTC);
+
+    private static final AtomicInteger digesterId = new AtomicInteger();
+
+    private final String manifest;
+    private final String signatureProperties;
+    private final int partCount;
+
+    private OfficePackageSignature(String manifest, String signatureProperties, int partCount) {
+        this.manifest = manifest;
+        this.signatureProperties = signatureProperties;
+        this.partCount = partCount;
+    }
+
+    /**
+     * Digests the parts of {@code source} for the signature {@code signatureId}, made at {@code signingTime}.
+     */
+    static OfficePackageSignature build(OfficePackage source, DigestAlgorithm digestAlgorithm, String signatureId, Date signingTime) throws IOException {
+        long start = System.nanoTime();
+        ContentTypes contentTypes = ContentTypes.read(source.read(CONTENT_TYPES_PART));
+        List<String> parts = source.partNames().stream()
+                .filter(name -> !name.equals(CONTENT_TYPES_PART) && !name.startsWith(SIGNATURE_PARTS_PREFIX))
+                .sorted()
+                .toList();
+
+        // Un pool por firma, que termina con ella, en vez de uno compartido por todas las firmas del proceso
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), parts.size()));
+        ExecutorService digesters = Executors.newFixedThreadPool(threads, r -> new Thread(r, "opc-digest-" + digesterId.incrementAndGet()));
+        StringBuilder manifest = new StringBuilder();
+        manifest.append("<ds:Manifest xmlns:ds=\"").append(XMLDSIG_NS).append("\">");
+        try {
+            List<CompletableFuture<String>> references = new ArrayList<>(parts.size());
+            for (String part : parts) {
+                references.add(CompletableFuture.supplyAsync(() -> reference(source, part, contentTypes.of(part), digestAlgorithm), digesters));
+            }
+            for (CompletableFuture<String> reference : references) {
+                manifest.append(reference.join());
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException io) {
+                throw io.getCause();
+            }
+            throw e;
+        } finally {
+            digesters.shutdownNow();
+        }
+        manifest.append("</ds:Manifest>");
+
+        String signatureProperties = "<ds:SignatureProperties xmlns:ds=\"" + XMLDSIG_NS + "\">"
+                + "<ds:SignatureProperty Id=\"idSignatureTime\" Target=\"#" + escape(signatureId) + "\">"
+                + "<mdssi:SignatureTime xmlns:mdssi=\"" + DIGITAL_SIGNATURE_NS + "\">"
+                + "<mdssi:Format>" + SIGNATURE_TIME_FORMAT + "</mdssi:Format>"
+                + "<mdssi:Value>" + SIGNATURE_TIME.format(signingTime.toInstant()) + "</mdssi:Value>"
+                + "</mdssi:SignatureTime></ds:SignatureProperty></ds:SignatureProperties>";
+
+        LOG.debug("Manifiesto del paquete con {} partes calculado en {} ms", parts.size(), (System.nanoTime() - start) / 1_000_000);
+        return new OfficePackageSignature(manifest.toString(), signatureProperties, parts.size());
+    }
+
+    /**
+     * The signature reference to the package object. DSS embeds the Manifest as the object and digests the object
+     * with its SignatureProperties.
+     */
+    DSSReference reference(String id, DigestAlgorithm digestAlgorithm) {
+        DSSObject object = new DSSObject();
+        object.setId(PACKAGE_OBJECT_ID);
+        object.setContent(new InMemoryDocument(this.manifest.getBytes(StandardCharsets.UTF_8), "manifest.xml", MimeTypeEnum.XML));
+
+        String packageObject = "<ds:Object xmlns:ds=\"" + XMLDSIG_NS + "\" Id=\"" + PACKAGE_OBJECT_ID + "\">"
+                + this.manifest + this.signatureProperties + "</ds:Object>";
+        DSSReference reference = new DSSReference();
+        reference.setId(id);
+        reference.setUri("#" + PACKAGE_OBJECT_ID);
+        reference.setType(OBJECT_TYPE);
+        reference.setObject(object);
+        reference.setContents(new InMemoryDocument(packageObject.getBytes(StandardCharsets.UTF_8), "package-object.xml", MimeTypeEnum.XML));
+        reference.setTransforms(List.of(new CanonicalizationTransform(XMLCanonicalizer.DEFAULT_XMLDSIG_C14N_METHOD)));
+        reference.setDigestMethodAlgorithm(digestAlgorithm);
+        return reference;
+    }
+
+    /**
+     * Adds the SignatureProperties to the package object of {@code signature}, signed at BASELINE-B with
+     * {@link #reference}.
+     */
+    DSSDocument complete(DSSDocument signature) {
+        Document dom = DomUtils.buildDOM(signature);
+        Element packageObject = DomUtils.getElementById(dom, PACKAGE_OBJECT_ID);
+        if (packageObject == null) {
+            throw new DSSException("La firma no tiene el objeto del paquete " + PACKAGE_OBJECT_ID);
+        }
+
+        Document properties = DomUtils.buildDOM(this.signatureProperties.getBytes(StandardCharsets.UTF_8));
+        packageObject.appendChild(dom.importNode(properties.getDocumentElement(), true));
+        return new InMemoryDocument(DomUtils.serializeNode(dom), signature.getName(), MimeTypeEnum.XML);
+    }
+
+    int getPartCount() {
+        return this.partCount;
+    }
+
+    private static String reference(OfficePackage source, String part, String contentType, DigestAlgorithm digestAlgorithm) {
+        try {
+            StringBuilder reference = new StringBuilder();
+            reference.append("<ds:Reference URI=\"/").append(escape(part));
+            if (contentType != null) {
+                reference.append("?ContentType=").append(escape(contentType));
+            } else {
+                LOG.warn("La parte {} no tiene tipo de contenido", part);
+            }
+            reference.append("\">");
+
+            byte[] digest;
+            if (part.endsWith(RELATIONSHIPS_SUFFIX)) {
+                List<Relationship> relationships = Relationship.read(partContent(source, part));
+                reference.append("<ds:Transforms><ds:Transform Algorithm=\"").append(RELATIONSHIP_TRANSFORM).append("\">");
+                for (Relationship relationship : relationships) {
+                    reference.append("<mdssi:RelationshipReference xmlns:mdssi=\"").append(DIGITAL_SIGNATURE_NS)
+                            .append("\" SourceId=\"").append(escape(relationship.id())).append("\"/>");
+                }
+                reference.append("</ds:Transform><ds:Transform Algorithm=\"").append(XMLCanonicalizer.DEFAULT_XMLDSIG_C14N_METHOD).append("\"/></ds:Transforms>");
+                digest = DSSUtils.digest(digestAlgorithm, transform(relationships));
+            } else {
+                MessageDigest messageDigest = DSSUtils.getMessageDigest(digestAlgorithm);
+                try (OutputStream out = new DigestOutputStream(OutputStream.nullOutputStream(), messageDigest)) {
+                    source.transferTo(part, out);
+                }
+                digest = messageDigest.digest();
+            }
+
+            reference.append("<ds:DigestMethod Algorithm=\"").append(digestAlgorithm.getUri()).append("\"/>");
+            reference.append("<ds:DigestValue>").append(Utils.toBase64(digest)).append("</ds:DigestValue>");
+            reference.append("</ds:Reference>");
+            return reference.toString();
+        } catch (IOException e) {
+            throw new UncheckedIOException("No se pudo calcular el resumen de la parte " + part, e);
+        }
+    }
+
+    private static byte[] partContent(OfficePackage source, String part) throws IOException {
+        byte[] content = source.read(part);
+        if (content == null) {
+            throw new IOException("No existe la parte " + part);
+        }
+        return content;
+    }
+
+    /**
+     * Output of the relationship transform followed by Canonical XML: the selected relationships sorted by Id, with
+     * only the Id, Type, Target and TargetMode attributes and TargetMode made explicit.
+     */
+    private static byte[] transform(List<Relationship> relationships) {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<Relationships xmlns=\"").append(OfficePackageParts.RELATIONSHIPS_NS).append("\">");
+        for (Relationship relationship : relationships) {
+            xml.append("<Relationship Id=\"").append(escape(relationship.id()))
+                    .append("\" Target=\"").append(escape(relationship.target()))
+                    .append("\" TargetMode=\"").append(escape(relationship.targetMode()))
+                    .append("\" Type=\"").append(escape(relationship.type())).append("\"/>");
+        }
+        xml.append("</Relationships>");
+        return XMLCanonicalizer.createInstance(XMLCanonicalizer.DEFAULT_XMLDSIG_C14N_METHOD).canonicalize(xml.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String escape(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '&' -> escaped.append("&amp;");
+                case '<' -> escaped.append("&lt;");
+                case '>' -> escaped.append("&gt;");
+                case '"' -> escaped.append("&quot;");
+                default -> escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private record Relationship(String id, String type, String target, String targetMode) {
+
+        /**
+         * The relationships of {@code rels} the signature covers, sorted by Id.
+         */
+        static List<Relationship> read(byte[] rels) throws IOException {
+            List<Relationship> relationships = new ArrayList<>();
+            try {
+                XMLStreamReader reader = OfficePackageParts.createReader(rels);
+                try {
+                    while (reader.hasNext()) {
+                        if (reader.next() == XMLStreamConstants.START_ELEMENT && "Relationship".equals(reader.getLocalName())) {
+                            String type = reader.getAttributeValue(null, "Type");
+                            if (type != null && type.startsWith(OfficePackageParts.SIGNATURE_RELATIONSHIP_PREFIX)) {
+                                continue;
+                            }
+                            String targetMode = reader.getAttributeValue(null, "TargetMode");
+                            relationships.add(new Relationship(reader.getAttributeValue(null, "Id"), type,
+                                    reader.getAttributeValue(null, "Target"), targetMode == null ? INTERNAL_TARGET : targetMode));
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (XMLStreamException e) {
+                throw new IOException("Relaciones inválidas", e);
+            }
+
+            relationships.sort(Comparator.comparing(Relationship::id));
+            return relationships;
+        }
+    }
+
+    /**
+     * Content types of the package: the Override of each part, or else the Default of its extension.
+     */
+    private record ContentTypes(Map<String, String> defaults, Map<String, String> overrides) {
+
+        static ContentTypes read(byte[] xml) throws IOException {
+            Map<String, String> defaults = new HashMap<>();
+            Map<String, String> overrides = new HashMap<>();
+            if (xml == null) {
+                throw new IOException("El paquete no tiene " + CONTENT_TYPES_PART);
+            }
+
+            try {
+                XMLStreamReader reader = OfficePackageParts.createReader(xml);
+                try {
+                    while (reader.hasNext()) {
+                        if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                            continue;
+                        }
+                        String contentType = reader.getAttributeValue(null, "ContentType");
+                        if ("Default".equals(reader.getLocalName()) && reader.getAttributeValue(null, "Extension") != null) {
+                            defaults.put(reader.getAttributeValue(null, "Extension").toLowerCase(Locale.ROOT), contentType);
+                        } else if ("Override".equals(reader.getLocalName()) && reader.getAttributeValue(null, "PartName") != null) {
+                            overrides.put(reader.getAttributeValue(null, "PartName").toLowerCase(Locale.ROOT), contentType);
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (XMLStreamException e) {
+                throw new IOException(CONTENT_TYPES_PART + " inválido", e);
+            }
+
+            return new ContentTypes(defaults, overrides);
+        }
+
+        String of(String part) {
+            String override = this.overrides.get(("/" + part).toLowerCase(Locale.ROOT));
+            if (override != null) {
+                return override;
+            }
+            if (part.endsWith(RELATIONSHIPS_SUFFIX) && !this.defaults.containsKey("rels")) {
+                return OfficePackageParts.RELATIONSHIPS_CONTENT_TYPE;
+            }
+
+            int dot = part.lastIndexOf('.');
+            return dot < 0 || dot < part.lastIndexOf('/') ? null : this.defaults.get(part.substring(dot + 1).toLowerCase(Locale.ROOT));
+        }
+    }
+}
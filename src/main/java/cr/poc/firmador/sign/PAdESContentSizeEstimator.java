@@ -0,0 +1,144 @@
+package cr.poc.firmador.sign;
+
+import cr.poc.firmador.trust.TrustStoreManager;
+import eu.europa.esig.dss.enumerations.SignatureLevel;
+import eu.europa.esig.dss.model.x509.CertificateToken;
+import eu.europa.esig.dss.spi.x509.CertificateSource;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.invoke.MethodHandles;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Sizes the {@code /Contents} placeholder of PAdES signatures and document timestamps instead of reserving a fixed
+ * number of bytes.
+ * <p>
+ * The CMS of a signature holds the signed attributes, the signature value and the signer's certificate chain, plus
+ * the signature timestamp token from T level up. Revocation data goes to the DSS dictionary, outside the
+ * placeholder, so it does not count. The chain is resolved from the trusted and adjunct certificate sources and the
+ * timestamp size is learned from the tokens actually returned by the TSA. A margin is added on top of the estimate
+ * and grows every time a placeholder turns out to be too small, so a process that had to retry once does not keep
+ * retrying.
+ */
+public class PAdESContentSizeEstimator {
+    private static final Logger LOG = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+    private static final PAdESContentSizeEstimator ce = new PAdESContentSizeEstimator();
+
+    // CMS sin certificados: atributos firmados, identificadores de algoritmo y un valor de firma RSA de 4096 bits
+    private static final int CMS_OVERHEAD = 2048;
+    // Emisores que no están en los almacenes locales y que DSS descargaría por AIA al firmar
+    private static final int UNKNOWN_CERTIFICATE_SIZE = 2048;
+    private static final int DEFAULT_TIMESTAMP_SIZE = 6144;
+    private static final int MAX_CHAIN_LENGTH = 10;
+    private static final int ROUNDING = 512;
+    private static final double INITIAL_MARGIN = 0.1;
+    private static final double MARGIN_STEP = 0.25;
+    private static final double MAX_MARGIN = 2.0;
+    private static final String NOT_ENOUGH_SPACE = "not enough space";
+
+    private volatile int timestampSize = 0;
+    private volatile double margin = INITIAL_MARGIN;
+
+    private PAdESContentSizeEstimator() {
+    }
+
+    public static PAdESContentSizeEstimator getInstance() {
+        return ce;
+    }
+
+    /**
+     * Placeholder for a signature at {@code level} made with {@code signingCertificate}.
+     */
+    public int estimateSignature(SignatureLevel level, CertificateToken signingCertificate) {
+        int size = CMS_OVERHEAD + chainSize(signingCertificate);
+        if (level != SignatureLevel.PAdES_BASELINE_B) {
+            size += this.getTimestampSize();
+        }
+
+        return this.withMargin(size);
+    }
+
+    /**
+     * Placeholder for a document timestamp, which only holds the TSA token.
+     */
+    public int estimateTimestamp() {
+        return this.withMargin(this.getTimestampSize());
+    }
+
+    /**
+     * Size for the single retry after {@code contentSize} was too small. The margin of later estimates grows too.
+     */
+    public int enlarge(int contentSize) {
+        this.margin = Math.min(MAX_MARGIN, this.margin + MARGIN_STEP);
+        int enlarged = roundUp(contentSize * 2);
+        LOG.info("Espacio para la firma insuficiente ({} bytes), margen de estimación aumentado a {}%", contentSize, Math.round(this.margin * 100));
+        return enlarged;
+    }
+
+    /**
+     * Learns the size of the tokens returned by the TSA; the largest one seen is used for later estimates.
+     */
+    public void recordTimestampToken(int length) {
+        if (length > this.timestampSize) {
+            this.timestampSize = length;
+        }
+    }
+
+    public static boolean isPlaceholderTooSmall(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            if (t.getMessage() != null && t.getMessage().contains(NOT_ENOUGH_SPACE)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private int getTimestampSize() {
+        int observed = this.timestampSize;
+        return observed > 0 ? observed : DEFAULT_TIMESTAMP_SIZE;
+    }
+
+    private int withMargin(int size) {
+        return roundUp((int) Math.ceil(size * (1 + this.margin)));
+    }
+
+    private static int chainSize(CertificateToken signingCertificate) {
+        if (signingCertificate == null) {
+            return UNKNOWN_CERTIFICATE_SIZE * 3;
+        }
+
+        TrustStoreManager trustStore = TrustStoreManager.getInstance();
+        List<CertificateSource> sources = List.of(trustStore.getTrustedCertSource(), trustStore.getAdjunctCertSource());
+        int size = 0;
+        CertificateToken certificate = signingCertificate;
+        for (int i = 0; i < MAX_CHAIN_LENGTH && certificate != null; i++) {
+            size += certificate.getEncoded().length;
+            if (certificate.isSelfSigned()) {
+                return size;
+            }
+            certificate = findIssuer(certificate, sources);
+        }
+
+        return certificate == null ? size + UNKNOWN_CERTIFICATE_SIZE : size;
+    }
+
+    private static CertificateToken findIssuer(CertificateToken certificate, List<CertificateSource> sources) {
+        for (CertificateSource source : sources) {
+            Set<CertificateToken> candidates = source.getBySubject(certificate.getIssuer());
+            for (CertificateToken candidate : candidates) {
+                if (certificate.isSignedBy(candidate)) {
+                    return candidate;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static int roundUp(int size) {
+        return (size + ROUNDING - 1) / ROUNDING * ROUNDING;
+    }
+}
@@ -0,0 +1,81 @@
+package cr.poc.firmador.sign;
+
+import cr.poc.firmador.card.CardSignInfo;
+import cr.poc.firmador.settings.Settings;
+import cr.poc.firmador.settings.SettingsManager;
+import eu.europa.esig.dss.enumerations.SignatureLevel;
+import eu.europa.esig.dss.model.DSSDocument;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the signatures of several cards on one PDF in a single pass.
+ * <p>
+ * Each card adds its revision at PAdES-BASELINE-B on top of the previous one, in memory (or in the temporary files
+ * of the large-document mode), with no network access and without writing the intermediate documents out. The
+ * document is then raised to the configured level once: one document timestamp covers every signature, and the
+ * chains and revocation data the signers share are fetched and embedded a single time, instead of one timestamp,
+ * validation and rewrite of the whole file per signer.
+ */
+public class PAdESMultiSigner implements AutoCloseable {
+    private static final Logger LOG = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+
+    private final Settings settings = SettingsManager.getInstance().getAndCreateSettings();
+    // Cada firmador conserva los archivos temporales de su revisión, que lee el siguiente
+    private final List<FirmadorPAdES> signers = new ArrayList<>();
+
+    /**
+     * Signs {@code document} with every card of {@code cards}, in order, and raises the signatures to the configured
+     * level. If the revocation data cannot be obtained the signatures are kept at BASELINE-T, and if the TSA fails
+     * too at BASELINE-B.
+     *
+     * @return the signed document, or {@code null} if a card could not sign
+     */
+    public DSSDocument sign(DSSDocument document, List<CardSignInfo> cards, String reason, String location) {
+        DSSDocument current = document;
+        for (int i = 0; i < cards.size(); i++) {
+            FirmadorPAdES signer = new FirmadorPAdES();
+            this.signers.add(signer);
+            signer.setAugmentLater(true);
+            DSSDocument signed = signer.sign(current, cards.get(i), reason, location, null, null, false);
+            if (signed == null) {
+                LOG.error("No se pudo agregar la firma {} de {} ({}), se cancela la firma múltiple", i + 1, cards.size(), cards.get(i).getIdentification());
+                return null;
+            }
+            current = signed;
+        }
+
+        SignatureLevel level = this.settings.getPAdESLevel();
+        if (level == SignatureLevel.PAdES_BASELINE_B || cards.isEmpty()) {
+            return current;
+        }
+
+        FirmadorPAdES extender = new FirmadorPAdES();
+        this.signers.add(extender);
+        DSSDocument extended = extender.extend(current, level);
+        if (extended == null && level != SignatureLevel.PAdES_BASELINE_T) {
+            // Sin información de revocación al menos se agrega el sello de tiempo, como en FirmadorPAdES#complete
+            LOG.warn("No se pudieron ampliar las {} firmas a {}, se intenta agregar sólo el sello de tiempo", cards.size(), level);
+            extended = extender.extend(current, SignatureLevel.PAdES_BASELINE_T);
+        }
+        if (extended == null) {
+            LOG.warn("No se pudo agregar el sello de tiempo a las {} firmas, se conservan en nivel B", cards.size());
+            return current;
+        }
+
+        return extended;
+    }
+
+    /**
+     * Deletes the temporary files of every revision, so it must be called once the signed document has been saved.
+     */
+    @Override
+    public void close() {
+        this.signers.forEach(FirmadorPAdES::close);
+        this.signers.clear();
+    }
+}
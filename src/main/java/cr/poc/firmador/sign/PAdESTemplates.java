@@ -0,0 +1,102 @@
+package cr.poc.firmador.sign;
+
+import cr.poc.firmador.settings.Settings;
+import eu.europa.esig.dss.enumerations.DigestAlgorithm;
+import eu.europa.esig.dss.enumerations.VisualSignatureRotation;
+import eu.europa.esig.dss.model.DSSDocument;
+import eu.europa.esig.dss.model.InMemoryDocument;
+import eu.europa.esig.dss.pades.SignatureFieldParameters;
+import eu.europa.esig.dss.pades.signature.PAdESService;
+import eu.europa.esig.dss.pdf.pdfbox.PdfBoxDocumentReader;
+import eu.europa.esig.dss.spi.DSSUtils;
+import eu.europa.esig.dss.spi.validation.CommonCertificateVerifier;
+import eu.europa.esig.dss.utils.Utils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * PDF templates prepared for high-volume forms: the visible signature field is laid out once per template, moved to
+ * a free area of its page if the configured position is taken, and added to the template as an empty signature
+ * field. The documents generated from the prepared template are signed into that field with
+ * {@link FirmadorPAdES#setSignatureFieldId}, so DSS neither creates the field nor looks for room for it, and each
+ * signature only builds its text and digest.
+ * <p>
+ * Prepared templates are cached by the content hash of the template, the field name and the field layout.
+ */
+public class PAdESTemplates {
+    private static final Logger LOG = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+    private static final PAdESTemplates tp = new PAdESTemplates();
+    private static final int MAX_TEMPLATES = 16;
+    public static final String DEFAULT_FIELD_ID = "Firma";
+
+    private final Map<TemplateKey, DSSDocument> prepared = new LinkedHashMap<>(MAX_TEMPLATES, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<TemplateKey, DSSDocument> eldest) {
+            return this.size() > MAX_TEMPLATES;
+        }
+    };
+
+    private PAdESTemplates() {
+    }
+
+    public static PAdESTemplates getInstance() {
+        return tp;
+    }
+
+    /**
+     * {@code template} with an empty signature field named {@code fieldId} at the visible signature position of the
+     * settings.
+     */
+    public DSSDocument prepare(DSSDocument template, String fieldId, Settings settings) {
+        SignatureFieldParameters field = new SignatureFieldParameters();
+        field.setFieldId(fieldId);
+        field.setPage(settings.pageNumber);
+        field.setOriginX((float) settings.signX);
+        field.setOriginY((float) settings.signY);
+        field.setWidth((float) settings.signWidth);
+        field.setHeight((float) settings.signHeight);
+        field.setRotation(VisualSignatureRotation.AUTOMATIC);
+        return this.prepare(template, field);
+    }
+
+    /**
+     * {@code template} with an empty signature field laid out as {@code field}, which is moved to a free area of its
+     * page if needed.
+     */
+    public DSSDocument prepare(DSSDocument template, SignatureFieldParameters field) {
+        TemplateKey key = new TemplateKey(Utils.toHex(template.getDigestValue(DigestAlgorithm.SHA256)), field.getFieldId(),
+                field.getPage(), field.getOriginX(), field.getOriginY(), field.getWidth(), field.getHeight());
+        synchronized (this) {
+            DSSDocument cached = this.prepared.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        try (PdfBoxDocumentReader reader = new PdfBoxDocumentReader(template)) {
+            if (field.getPage() >= 1 && field.getPage() <= reader.getNumberOfPages()
+                    && SignatureFieldPlacer.forPage(reader, field.getPage(), field.getRotation()).place(field)) {
+                LOG.info("El campo de firma {} de la plantilla se movió a un espacio libre de la página {}", field.getFieldId(), field.getPage());
+            }
+        } catch (IOException e) {
+            LOG.warn("No se pudo buscar un espacio libre para el campo de firma de la plantilla, se usa la posición configurada", e);
+        }
+
+        PAdESService service = new PAdESService(new CommonCertificateVerifier());
+        DSSDocument withField = service.addNewSignatureField(template, field);
+        DSSDocument preparedTemplate = new InMemoryDocument(DSSUtils.toByteArray(withField), template.getName());
+        synchronized (this) {
+            this.prepared.put(key, preparedTemplate);
+        }
+        LOG.debug("Plantilla {} preparada con el campo de firma {}", template.getName(), field.getFieldId());
+        return preparedTemplate;
+    }
+
+    private record TemplateKey(String hash, String fieldId, int page, float x, float y, float width, float height) {
+    }
+}
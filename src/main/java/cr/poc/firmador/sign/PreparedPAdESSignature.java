@@ -0,0 +1,23 @@
+package cr.poc.firmador.sign;
+
+import eu.europa.esig.dss.model.DSSDocument;
+import eu.europa.esig.dss.model.ToBeSigned;
+import eu.europa.esig.dss.pades.PAdESSignatureParameters;
+import eu.europa.esig.dss.pades.signature.PAdESService;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * State carried from {@link FirmadorPAdES#prepare} to {@link FirmadorPAdES#complete}: the service and parameters
+ * used to compute the data to be signed must be the same ones used to embed the signature value. The parameters also
+ * hold the revision DSS prepared, with the reserved {@code /Contents} and the ByteRange, so completing the signature
+ * only writes the CMS into it instead of parsing the PDF again.
+ */
+@Getter
+@AllArgsConstructor
+public class PreparedPAdESSignature {
+    private final DSSDocument document;
+    private final PAdESService service;
+    private final PAdESSignatureParameters parameters;
+    private final ToBeSigned dataToSign;
+}
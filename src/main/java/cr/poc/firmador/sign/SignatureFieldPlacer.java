@@ -0,0 +1,174 @@
+package cr.poc.firmador.sign;
+
+import eu.europa.esig.dss.enumerations.VisualSignatureRotation;
+import eu.europa.esig.dss.pades.SignatureFieldParameters;
+import eu.europa.esig.dss.pdf.AnnotationBox;
+import eu.europa.esig.dss.pdf.PdfAnnotation;
+import eu.europa.esig.dss.pdf.PdfDocumentReader;
+import eu.europa.esig.dss.pdf.visible.ImageRotationUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Moves a visible signature field to the nearest position of its page where it overlaps no existing annotation or
+ * signature widget, so DSS does not reject the signature after the document has been prepared.
+ * <p>
+ * The annotations of the page are read once into a grid of cells, so testing a candidate only looks at the
+ * annotations of the cells it covers. Candidates are mapped to PDF coordinates exactly as DSS does before checking
+ * the field position, including the automatic rotation of the field on rotated pages.
+ */
+public class SignatureFieldPlacer {
+    private static final Logger LOG = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+    private static final float CELL_SIZE = 64;
+    private static final float STEP = 4;
+
+    private final AnnotationBox pageBox;
+    private final AnnotationBox visualPageBox;
+    private final int rotation;
+    private final Map<Long, List<AnnotationBox>> cells = new HashMap<>();
+    private final int annotations;
+
+    private SignatureFieldPlacer(AnnotationBox pageBox, int rotation, List<PdfAnnotation> annotations) {
+        this.pageBox = pageBox;
+        this.rotation = rotation;
+        this.visualPageBox = ImageRotationUtils.isSwapOfDimensionsRequired(rotation) ? ImageRotationUtils.swapDimensions(pageBox) : pageBox;
+        this.annotations = annotations.size();
+        for (PdfAnnotation annotation : annotations) {
+            // El campo siempre queda dentro de la página, sólo cuenta la parte de la anotación que cae en ella
+            AnnotationBox box = clip(annotation.getAnnotationBox(), pageBox);
+            if (box == null) {
+                continue;
+            }
+            for (long cell : cellsOf(box)) {
+                this.cells.computeIfAbsent(cell, key -> new ArrayList<>()).add(box);
+            }
+        }
+    }
+
+    /**
+     * Indexes the annotations of page {@code page} of the document read by {@code reader}.
+     */
+    public static SignatureFieldPlacer forPage(PdfDocumentReader reader, int page, VisualSignatureRotation fieldRotation) throws IOException {
+        int rotation = ImageRotationUtils.getRotation(fieldRotation, reader.getPageRotation(page));
+        return new SignatureFieldPlacer(reader.getPageBox(page), rotation, reader.getPdfAnnotations(page));
+    }
+
+    /**
+     * Moves {@code field}, which must have its width and height set, to the free position closest to its origin.
+     *
+     * @return whether the field was moved
+     */
+    public boolean place(SignatureFieldParameters field) {
+        return this.place(field, field.getWidth(), field.getHeight());
+    }
+
+    /**
+     * Moves {@code field} to the free position closest to its origin, searching with the size of {@code fieldBox}, the
+     * box DSS builds for the appearance of the field (see {@code SignatureFieldBoxBuilder}), which is already rotated
+     * with the page. Only the origin of the field is changed, so DSS still sizes it to fit its text and image. The
+     * field is left untouched if it is already free or if no free position fits in the page.
+     *
+     * @return whether the field was moved
+     */
+    public boolean place(SignatureFieldParameters field, AnnotationBox fieldBox) {
+        boolean swapped = ImageRotationUtils.isSwapOfDimensionsRequired(this.rotation);
+        return this.place(field, swapped ? fieldBox.getHeight() : fieldBox.getWidth(), swapped ? fieldBox.getWidth() : fieldBox.getHeight());
+    }
+
+    private boolean place(SignatureFieldParameters field, float width, float height) {
+        float x = field.getOriginX();
+        float y = field.getOriginY();
+        if (this.isFree(x, y, width, height)) {
+            return false;
+        }
+
+        float maxX = this.visualPageBox.getWidth() - width;
+        float maxY = this.visualPageBox.getHeight() - height;
+        float bestX = -1;
+        float bestY = -1;
+        double bestDistance = Double.MAX_VALUE;
+        for (float candidateY = 0; candidateY <= maxY; candidateY += STEP) {
+            for (float candidateX = 0; candidateX <= maxX; candidateX += STEP) {
+                double distance = Math.hypot(candidateX - x, candidateY - y);
+                if (distance < bestDistance && this.isFree(candidateX, candidateY, width, height)) {
+                    bestDistance = distance;
+                    bestX = candidateX;
+                    bestY = candidateY;
+                }
+            }
+        }
+
+        if (bestX < 0) {
+            LOG.warn("No hay espacio libre de {}x{} en la página {} ({} anotaciones)", width, height, field.getPage(), this.annotations);
+            return false;
+        }
+
+        LOG.info("Campo de firma movido de ({}, {}) a ({}, {}) en la página {} para no traslapar anotaciones existentes", x, y, bestX, bestY, field.getPage());
+        field.setOriginX(bestX);
+        field.setOriginY(bestY);
+        return true;
+    }
+
+    private boolean isFree(float x, float y, float width, float height) {
+        AnnotationBox box = this.toPdfPageCoordinates(new AnnotationBox(x, y, x + width, y + height));
+        if (box.getMinX() < this.pageBox.getMinX() || box.getMinY() < this.pageBox.getMinY()
+                || box.getMaxX() > this.pageBox.getMaxX() || box.getMaxY() > this.pageBox.getMaxY()) {
+            return false;
+        }
+
+        for (long cell : cellsOf(box)) {
+            for (AnnotationBox annotation : this.cells.getOrDefault(cell, List.of())) {
+                if (box.isOverlap(annotation)) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    // Igual que AbstractPDFSignatureService#getVisibleSignatureFieldBoxPosition
+    private AnnotationBox toPdfPageCoordinates(AnnotationBox fieldBox) {
+        AnnotationBox rotated = ImageRotationUtils.rotateRelativelyWrappingBox(fieldBox, this.visualPageBox, ImageRotationUtils.ANGLE_360 - this.rotation);
+        return rotated.toPdfPageCoordinates(this.pageBox.getHeight());
+    }
+
+    /**
+     * The part of {@code box} inside {@code pageBox}, {@code null} if it is empty, outside the page or not a valid
+     * rectangle. A malformed /Rect can be arbitrarily large, and indexed as it is it would cover millions of cells.
+     */
+    private static AnnotationBox clip(AnnotationBox box, AnnotationBox pageBox) {
+        float minX = Math.max(box.getMinX(), pageBox.getMinX());
+        float minY = Math.max(box.getMinY(), pageBox.getMinY());
+        float maxX = Math.min(box.getMaxX(), pageBox.getMaxX());
+        float maxY = Math.min(box.getMaxY(), pageBox.getMaxY());
+        // También descarta las coordenadas NaN
+        if (!(minX < maxX) || !(minY < maxY)) {
+            return null;
+        }
+
+        return new AnnotationBox(minX, minY, maxX, maxY);
+    }
+
+    private static List<Long> cellsOf(AnnotationBox box) {
+        int minColumn = (int) Math.floor(box.getMinX() / CELL_SIZE);
+        int maxColumn = (int) Math.floor(box.getMaxX() / CELL_SIZE);
+        int minRow = (int) Math.floor(box.getMinY() / CELL_SIZE);
+        int maxRow = (int) Math.floor(box.getMaxY() / CELL_SIZE);
+        List<Long> cells = new ArrayList<>((maxColumn - minColumn + 1) * (maxRow - minRow + 1));
+        for (int column = minColumn; column <= maxColumn; column++) {
+            for (int row = minRow; row <= maxRow; row++) {
+                cells.add(((long) column << 32) | (row & 0xFFFFFFFFL));
+            }
+        }
+
+        return cells;
+    }
+}
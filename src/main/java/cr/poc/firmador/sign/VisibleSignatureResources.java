@@ -0,0 +1,177 @@
+package cr.poc.firmador.sign;
+
+import cr.poc.firmador.settings.Settings;
+import eu.europa.esig.dss.enumerations.DigestAlgorithm;
+import eu.europa.esig.dss.model.DSSDocument;
+import eu.europa.esig.dss.model.InMemoryDocument;
+import eu.europa.esig.dss.pades.DSSJavaFont;
+import eu.europa.esig.dss.spi.DSSUtils;
+import eu.europa.esig.dss.utils.Utils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Resources of the visible signature appearance shared by every PAdES signature of the process, so a batch of
+ * visible signatures reads and scales the image and builds the font once.
+ * <p>
+ * Images are cached by URL and by content hash: the image of a {@code file:} URL is read again only when the
+ * modification time or the size of the file change, other URLs are fetched once, and two URLs with the same content
+ * share the scaled copy. The font is rebuilt whenever the font settings differ from the ones it was built with.
+ */
+public class VisibleSignatureResources {
+    private static final Logger LOG = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+    private static final VisibleSignatureResources vr = new VisibleSignatureResources();
+    private static final int MAX_IMAGES = 16;
+
+    private final Map<ImageKey, ImageSource> sources = lruMap();
+    private final Map<ImageKey, DSSDocument> images = lruMap();
+    private volatile CachedFont font;
+
+    private VisibleSignatureResources() {
+    }
+
+    public static VisibleSignatureResources getInstance() {
+        return vr;
+    }
+
+    /**
+     * Font of the visible signature text for the current font settings.
+     */
+    public DSSJavaFont getFont(Settings settings) {
+        FontKey key = new FontKey(settings.getFontName(settings.font, true), settings.getFontStyle(settings.font), settings.fontSize);
+        CachedFont cached = this.font;
+        if (cached == null || !cached.key().equals(key)) {
+            cached = new CachedFont(key, new DSSJavaFont(new Font(key.name(), key.style(), key.size())));
+            this.font = cached;
+        }
+
+        return cached.font();
+    }
+
+    /**
+     * Image at {@code url} scaled by {@code scaleFactor}, as PNG unless the factor is 1 and the original bytes are kept.
+     */
+    public DSSDocument getImage(String url, float scaleFactor) throws IOException {
+        ImageKey urlKey = new ImageKey(url, scaleFactor);
+        String version = version(url);
+        synchronized (this) {
+            ImageSource source = this.sources.get(urlKey);
+            if (source != null && source.version().equals(version)) {
+                DSSDocument image = this.images.get(new ImageKey(source.hash(), scaleFactor));
+                if (image != null) {
+                    return image;
+                }
+            }
+        }
+
+        byte[] bytes;
+        try (InputStream in = new URL(url).openStream()) {
+            bytes = Utils.toByteArray(in);
+        }
+        String hash = Utils.toHex(DSSUtils.digest(DigestAlgorithm.SHA256, bytes));
+        ImageKey contentKey = new ImageKey(hash, scaleFactor);
+        synchronized (this) {
+            this.sources.put(urlKey, new ImageSource(version, hash));
+            DSSDocument image = this.images.get(contentKey);
+            if (image != null) {
+                return image;
+            }
+        }
+
+        byte[] scaled = scale(bytes, scaleFactor);
+        DSSDocument image = new InMemoryDocument(scaled, imageName(url, scaled != bytes));
+        synchronized (this) {
+            this.images.put(contentKey, image);
+        }
+        LOG.debug("Imagen de firma visible {} cargada ({} bytes, escala {})", url, bytes.length, scaleFactor);
+        return image;
+    }
+
+    private static byte[] scale(byte[] bytes, float scaleFactor) throws IOException {
+        if (scaleFactor <= 0 || scaleFactor == 1.0F) {
+            return bytes;
+        }
+
+        BufferedImage original = ImageIO.read(new ByteArrayInputStream(bytes));
+        if (original == null) {
+            LOG.warn("Formato de imagen de firma visible no reconocido, se usa sin escalar");
+            return bytes;
+        }
+
+        int width = Math.max(1, Math.round(original.getWidth() * scaleFactor));
+        int height = Math.max(1, Math.round(original.getHeight() * scaleFactor));
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(original, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(scaled, "png", out);
+        return out.toByteArray();
+    }
+
+    // DSS deduce el tipo de la imagen por la extensión del nombre
+    private static String imageName(String url, boolean scaled) {
+        String name = url.substring(url.lastIndexOf('/') + 1);
+        if (!scaled) {
+            return name;
+        }
+
+        return (name.lastIndexOf('.') > 0 ? name.substring(0, name.lastIndexOf('.')) : name) + ".png";
+    }
+
+    // Sólo los archivos locales pueden cambiar sin que cambie el URL; los demás se descargan una vez
+    private static String version(String url) {
+        if (!url.startsWith("file:")) {
+            return "";
+        }
+
+        try {
+            Path path = Path.of(URI.create(url));
+            return Files.getLastModifiedTime(path).toMillis() + ":" + Files.size(path);
+        } catch (IOException | RuntimeException e) {
+            return "";
+        }
+    }
+
+    private static <K, V> Map<K, V> lruMap() {
+        return new LinkedHashMap<>(MAX_IMAGES, 0.75F, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return this.size() > MAX_IMAGES;
+            }
+        };
+    }
+
+    private record ImageKey(String id, float scaleFactor) {
+    }
+
+    private record ImageSource(String version, String hash) {
+    }
+
+    private record FontKey(String name, int style, int size) {
+    }
+
+    private record CachedFont(FontKey key, DSSJavaFont font) {
+    }
+}
@@ -0,0 +1,389 @@
+package cr.poc.firmador.trust;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Enumerated;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.ASN1SequenceParser;
+import org.bouncycastle.asn1.ASN1StreamParser;
+import org.bouncycastle.asn1.ASN1TaggedObjectParser;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.Time;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorted file of the serial numbers revoked by one CRL, memory-mapped and searched in place.
+ * <p>
+ * The CRL is read once with a streaming ASN.1 parser, one revoked entry at a time, and written as fixed size
+ * records ordered by serial number. The records are sorted in runs of {@value #RUN_RECORDS} that are spilled to a
+ * scratch file and merged into the index, so building it needs a bounded amount of heap whatever the size of the
+ * CRL. Lookups are a binary search over the mapped file, so checking a serial needs neither the CRL nor any of its
+ * entries on the heap.
+ * <p>
+ * File layout (big-endian): a 32 byte header with magic, version, thisUpdate, nextUpdate ({@code -1} when absent)
+ * and record count, followed by 32 byte records of serial number (20 bytes, unsigned, left padded with zeros),
+ * revocation date and reason code ({@code -1} when absent).
+ */
+public class CRLSerialIndex {
+    private static final int MAGIC = 0x43524c58;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int SERIAL_SIZE = 20;
+    private static final int RECORD_SIZE = 32;
+    private static final int RUN_RECORDS = 64 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MERGE_BUFFER_RECORDS = 128;
+
+    private final MappedByteBuffer buffer;
+    private final Date thisUpdate;
+    private final Date nextUpdate;
+    private final int count;
+
+    private CRLSerialIndex(MappedByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Índice de CRL inválido");
+        }
+
+        this.buffer = buffer;
+        this.thisUpdate = new Date(buffer.getLong(8));
+        long next = buffer.getLong(16);
+        this.nextUpdate = next < 0 ? null : new Date(next);
+        this.count = buffer.getInt(24);
+        if (buffer.capacity() < HEADER_SIZE + (long) this.count * RECORD_SIZE) {
+            throw new IOException("Índice de CRL truncado");
+        }
+    }
+
+    /**
+     * Maps an index previously written by {@link #build(Path, Path)}.
+     */
+    public static CRLSerialIndex open(Path indexFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            // El mapeo sigue siendo válido después de cerrar el canal
+            return new CRLSerialIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Streams the DER encoded CRL in {@code crlFile} into a new index at {@code indexFile} and maps it.
+     * {@code indexFile} must not exist yet: an index that is still mapped cannot be replaced on Windows.
+     */
+    public static CRLSerialIndex build(Path crlFile, Path indexFile) throws IOException {
+        Path directory = indexFile.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(directory, "crl-index", ".tmp");
+        try (RecordSorter records = new RecordSorter(directory)) {
+            Date thisUpdate = null;
+            Date nextUpdate = null;
+
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(crlFile))) {
+                ASN1SequenceParser certificateList = (ASN1SequenceParser) new ASN1StreamParser(in).readObject();
+                ASN1SequenceParser tbsCertList = (ASN1SequenceParser) certificateList.readObject();
+
+                // tbsCertList: version?, signature, issuer, thisUpdate, nextUpdate?, revokedCertificates?,
+                // [0] extensions
+                int sequences = 0;
+                ASN1Encodable field;
+                while ((field = tbsCertList.readObject()) != null) {
+                    if (field instanceof ASN1SequenceParser sequence) {
+                        sequences++;
+                        if (sequences < 3) {
+                            sequence.toASN1Primitive();
+                            continue;
+                        }
+                        readRevokedCertificates(sequence, records);
+                        break;
+                    }
+
+                    if (field instanceof ASN1TaggedObjectParser) {
+                        // Extensiones de la CRL: no hay certificados revocados
+                        break;
+                    }
+
+                    if (field instanceof ASN1Integer) {
+                        continue;
+                    }
+
+                    Date time = Time.getInstance(field.toASN1Primitive()).getDate();
+                    if (thisUpdate == null) {
+                        thisUpdate = time;
+                    } else {
+                        nextUpdate = time;
+                    }
+                }
+            } catch (ClassCastException | IllegalArgumentException | IllegalStateException e) {
+                throw new IOException("CRL mal formada: " + crlFile, e);
+            }
+
+            if (thisUpdate == null) {
+                throw new IOException("CRL sin fecha de emisión: " + crlFile);
+            }
+
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                channel.position(HEADER_SIZE);
+                records.writeTo(channel);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putLong(thisUpdate.getTime())
+                        .putLong(nextUpdate == null ? -1 : nextUpdate.getTime()).putInt(records.size()).putInt(0).flip();
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+            }
+            Files.move(tmp, indexFile, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+
+        return open(indexFile);
+    }
+
+    private static void readRevokedCertificates(ASN1SequenceParser revokedCertificates, RecordSorter records) throws IOException {
+        ASN1Encodable item;
+        while ((item = revokedCertificates.readObject()) != null) {
+            ASN1Sequence entry = ASN1Sequence.getInstance(item.toASN1Primitive());
+            BigInteger serial = ASN1Integer.getInstance(entry.getObjectAt(0)).getValue();
+            Date revocationDate = Time.getInstance(entry.getObjectAt(1)).getDate();
+            int reason = -1;
+            if (entry.size() > 2) {
+                Extension reasonCode = Extensions.getInstance(entry.getObjectAt(2)).getExtension(Extension.reasonCode);
+                if (reasonCode != null) {
+                    reason = ASN1Enumerated.getInstance(reasonCode.getParsedValue()).intValueExact();
+                }
+            }
+
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            record.put(serialBytes(serial)).putLong(revocationDate.getTime()).put((byte) reason);
+            records.add(record.array());
+        }
+    }
+
+    private static byte[] serialBytes(BigInteger serial) throws IOException {
+        byte[] magnitude = serial.toByteArray();
+        int offset = magnitude.length > 1 && magnitude[0] == 0 ? 1 : 0;
+        int length = magnitude.length - offset;
+        if (serial.signum() < 0 || length > SERIAL_SIZE) {
+            // RFC 5280 limita los números de serie a 20 octetos positivos
+            throw new IOException("Número de serie fuera de rango en la CRL: " + serial.toString(16));
+        }
+
+        byte[] padded = new byte[SERIAL_SIZE];
+        System.arraycopy(magnitude, offset, padded, SERIAL_SIZE - length, length);
+        return padded;
+    }
+
+    /**
+     * Binary search for {@code serial}; returns {@code null} when it is not on the CRL.
+     */
+    public RevokedSerial find(BigInteger serial) {
+        byte[] key;
+        try {
+            key = serialBytes(serial);
+        } catch (IOException e) {
+            return null;
+        }
+
+        byte[] candidate = new byte[SERIAL_SIZE];
+        int low = 0;
+        int high = this.count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int position = HEADER_SIZE + middle * RECORD_SIZE;
+            this.buffer.get(position, candidate);
+            int comparison = Arrays.compareUnsigned(candidate, key);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                long revocationDate = this.buffer.getLong(position + SERIAL_SIZE);
+                int reason = this.buffer.get(position + SERIAL_SIZE + 8);
+                return new RevokedSerial(serial, new Date(revocationDate), reason);
+            }
+        }
+
+        return null;
+    }
+
+    public Date getThisUpdate() {
+        return this.thisUpdate;
+    }
+
+    public Date getNextUpdate() {
+        return this.nextUpdate;
+    }
+
+    public int size() {
+        return this.count;
+    }
+
+    /**
+     * Sorts the records of an index with bounded memory: every {@value #RUN_RECORDS} records are sorted on the heap
+     * and spilled as a run to a scratch file, and the runs are merged into the index. A CRL that fits in one run is
+     * written directly.
+     */
+    private static final class RecordSorter implements AutoCloseable {
+        private final Path directory;
+        private final List<byte[]> run = new ArrayList<>();
+        private final List<Long> runEnds = new ArrayList<>();
+        private Path scratchFile;
+        private FileChannel scratch;
+        private int count;
+
+        private RecordSorter(Path directory) {
+            this.directory = directory;
+        }
+
+        void add(byte[] record) throws IOException {
+            this.run.add(record);
+            this.count++;
+            if (this.run.size() == RUN_RECORDS) {
+                this.spill();
+            }
+        }
+
+        int size() {
+            return this.count;
+        }
+
+        /**
+         * Writes every record, in order, at the position of {@code out}.
+         */
+        void writeTo(FileChannel out) throws IOException {
+            if (this.scratch == null) {
+                writeSorted(this.run, out);
+                return;
+            }
+
+            if (!this.run.isEmpty()) {
+                this.spill();
+            }
+            this.merge(out);
+        }
+
+        private void spill() throws IOException {
+            if (this.scratch == null) {
+                this.scratchFile = Files.createTempFile(this.directory, "crl-runs", ".tmp");
+                this.scratch = FileChannel.open(this.scratchFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            writeSorted(this.run, this.scratch);
+            this.runEnds.add(this.scratch.position());
+            this.run.clear();
+        }
+
+        private void merge(FileChannel out) throws IOException {
+            PriorityQueue<RunCursor> cursors = new PriorityQueue<>((a, b) -> Arrays.compareUnsigned(a.current, b.current));
+            long start = 0;
+            for (long end : this.runEnds) {
+                RunCursor cursor = new RunCursor(this.scratch, start, end);
+                if (cursor.advance()) {
+                    cursors.add(cursor);
+                }
+                start = end;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (!cursors.isEmpty()) {
+                RunCursor cursor = cursors.poll();
+                if (buffer.remaining() < RECORD_SIZE) {
+                    flush(buffer, out);
+                }
+                buffer.put(cursor.current);
+                if (cursor.advance()) {
+                    cursors.add(cursor);
+                }
+            }
+            flush(buffer, out);
+        }
+
+        private static void writeSorted(List<byte[]> records, FileChannel out) throws IOException {
+            records.sort(Arrays::compareUnsigned);
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            for (byte[] record : records) {
+                if (buffer.remaining() < RECORD_SIZE) {
+                    flush(buffer, out);
+                }
+                buffer.put(record);
+            }
+            flush(buffer, out);
+        }
+
+        private static void flush(ByteBuffer buffer, FileChannel out) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.scratch != null) {
+                this.scratch.close();
+                Files.deleteIfExists(this.scratchFile);
+            }
+        }
+    }
+
+    /**
+     * Reads one sorted run of the scratch file a few records at a time.
+     */
+    private static final class RunCursor {
+        private final FileChannel channel;
+        private final long end;
+        private final ByteBuffer buffer = ByteBuffer.allocate(MERGE_BUFFER_RECORDS * RECORD_SIZE);
+        private long position;
+        private byte[] current;
+
+        private RunCursor(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+            this.buffer.flip();
+        }
+
+        boolean advance() throws IOException {
+            if (!this.buffer.hasRemaining()) {
+                if (this.position >= this.end) {
+                    return false;
+                }
+
+                this.buffer.clear().limit((int) Math.min(this.buffer.capacity(), this.end - this.position));
+                while (this.buffer.hasRemaining()) {
+                    int read = this.channel.read(this.buffer, this.position);
+                    if (read < 0) {
+                        throw new EOFException("Fin inesperado de las corridas del índice de CRL");
+                    }
+                    this.position += read;
+                }
+                this.buffer.flip();
+            }
+
+            this.current = new byte[RECORD_SIZE];
+            this.buffer.get(this.current);
+            return true;
+        }
+    }
+
+    /**
+     * @param reason CRLReason code as defined in RFC 5280, {@code -1} when the entry has none
+     */
+    public record RevokedSerial(BigInteger serial, Date revocationDate, int reason) {
+    }
+}
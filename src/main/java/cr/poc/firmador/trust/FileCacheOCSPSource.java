@@ -0,0 +1,264 @@
+package cr.poc.firmador.trust;
+
+import eu.europa.esig.dss.enumerations.DigestAlgorithm;
+import eu.europa.esig.dss.enumerations.RevocationOrigin;
+import eu.europa.esig.dss.model.x509.CertificateToken;
+import eu.europa.esig.dss.model.x509.revocation.ocsp.OCSP;
+import eu.europa.esig.dss.spi.CertificateExtensionsUtils;
+import eu.europa.esig.dss.spi.DSSRevocationUtils;
+import eu.europa.esig.dss.spi.DSSUtils;
+import eu.europa.esig.dss.spi.x509.revocation.RepositoryRevocationSource;
+import eu.europa.esig.dss.spi.x509.revocation.RevocationToken;
+import eu.europa.esig.dss.spi.x509.revocation.ocsp.OCSPSource;
+import eu.europa.esig.dss.spi.x509.revocation.ocsp.OCSPToken;
+import eu.europa.esig.dss.utils.Utils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.SingleResp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * OCSP source that answers from a local cache and only asks the proxied online source on a miss.
+ * <p>
+ * Responses are keyed by the issuer name hash plus the certificate serial number, the same pair that identifies a
+ * certificate in an OCSP request, and are reused until their nextUpdate, capped at the configured maximum age
+ * (responses without nextUpdate are never reused). The cache is written to a properties file a few seconds after
+ * it changes, once for all the changes made meanwhile, and on shutdown; it is read back on start-up, dropping the
+ * entries that have already expired.
+ */
+public class FileCacheOCSPSource extends RepositoryRevocationSource<OCSP> implements OCSPSource {
+    private static final Logger LOG = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+    private static final long SAVE_DELAY_SECONDS = 5;
+
+    private final Map<String, CacheEntry> entries = new ConcurrentHashMap<>();
+    private final Path cacheFile;
+    private final long maxAgeSeconds;
+    // Null si la caché sólo vive en memoria
+    private final ScheduledExecutorService saver;
+    private final AtomicBoolean savePending = new AtomicBoolean();
+
+    /**
+     * @param proxiedSource source queried on a cache miss
+     * @param cacheFile     file the cache is persisted to, or {@code null} to keep it in memory only
+     * @param maxAgeSeconds maximum time a response is reused after its thisUpdate, whatever its nextUpdate says
+     */
+    public FileCacheOCSPSource(OCSPSource proxiedSource, Path cacheFile, long maxAgeSeconds) {
+        this.cacheFile = cacheFile;
+        this.maxAgeSeconds = maxAgeSeconds;
+        this.setProxySource(proxiedSource);
+        this.setMaxNextUpdateDelay(maxAgeSeconds);
+        this.setRemoveExpired(true);
+        if (cacheFile == null) {
+            this.saver = null;
+        } else {
+            this.saver = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "ocsp-cache-saver");
+                thread.setDaemon(true);
+                return thread;
+            });
+            Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "ocsp-cache-flush"));
+        }
+        this.load();
+    }
+
+    @Override
+    public OCSPToken getRevocationToken(CertificateToken certificateToken, CertificateToken issuerCertificateToken) {
+        return (OCSPToken) super.getRevocationToken(certificateToken, issuerCertificateToken);
+    }
+
+    @Override
+    public OCSPToken getRevocationToken(CertificateToken certificateToken, CertificateToken issuerCertificateToken, boolean forceRefresh) {
+        return (OCSPToken) super.getRevocationToken(certificateToken, issuerCertificateToken, forceRefresh);
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Writes the pending changes of the cache to its file now.
+     */
+    public void flush() {
+        if (this.savePending.getAndSet(false)) {
+            this.save();
+        }
+    }
+
+    @Override
+    protected List<String> initRevocationTokenKeys(CertificateToken certificateToken) {
+        return List.of(cacheKey(certificateToken));
+    }
+
+    @Override
+    protected String getRevocationTokenKey(CertificateToken certificateToken, String url) {
+        // La URL del servicio no forma parte de la llave: cualquier respuesta para el mismo certificado sirve
+        return cacheKey(certificateToken);
+    }
+
+    @Override
+    protected List<String> getRevocationAccessUrls(CertificateToken certificateToken) {
+        return CertificateExtensionsUtils.getOCSPAccessUrls(certificateToken);
+    }
+
+    @Override
+    protected List<RevocationToken<OCSP>> findRevocations(String key, CertificateToken certificateToken, CertificateToken issuerCertificateToken) {
+        CacheEntry entry = this.entries.get(key);
+        if (entry == null) {
+            return List.of();
+        }
+
+        try {
+            BasicOCSPResp basicResponse = DSSRevocationUtils.loadOCSPFromBinaries(entry.encoded());
+            SingleResp singleResponse = DSSRevocationUtils.getLatestSingleResponse(basicResponse, certificateToken, issuerCertificateToken);
+            if (singleResponse == null) {
+                return List.of();
+            }
+
+            OCSPToken token = new OCSPToken(basicResponse, singleResponse, certificateToken, issuerCertificateToken);
+            token.setSourceURL(entry.sourceUrl());
+            token.setExternalOrigin(RevocationOrigin.CACHED);
+            return List.of(token);
+        } catch (Exception e) {
+            LOG.warn("Respuesta OCSP en caché inválida para {}, se descarta: {}", key, e.getMessage());
+            this.removeRevocation(key);
+            return List.of();
+        }
+    }
+
+    @Override
+    protected void insertRevocation(String key, RevocationToken<OCSP> token) {
+        this.entries.put(key, new CacheEntry(token.getSourceURL(), token.getEncoded()));
+        this.scheduleSave();
+    }
+
+    @Override
+    protected void updateRevocation(String key, RevocationToken<OCSP> token) {
+        this.insertRevocation(key, token);
+    }
+
+    @Override
+    protected void removeRevocation(String key) {
+        if (this.entries.remove(key) != null) {
+            this.scheduleSave();
+        }
+    }
+
+    static String cacheKey(CertificateToken certificateToken) {
+        byte[] issuerNameHash = DSSUtils.digest(DigestAlgorithm.SHA256, certificateToken.getIssuerX500Principal().getEncoded());
+        return Utils.toHex(issuerNameHash) + ":" + certificateToken.getSerialNumber().toString(16);
+    }
+
+    private void load() {
+        if (this.cacheFile == null || !Files.isRegularFile(this.cacheFile)) {
+            return;
+        }
+
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(this.cacheFile)) {
+            props.load(in);
+        } catch (IOException e) {
+            LOG.warn("No se pudo leer la caché OCSP {}: {}", this.cacheFile, e.getMessage());
+            return;
+        }
+
+        int expired = 0;
+        for (String key : props.stringPropertyNames()) {
+            CacheEntry entry = CacheEntry.parse(props.getProperty(key));
+            if (entry != null && this.isFresh(entry)) {
+                this.entries.put(key, entry);
+            } else {
+                expired++;
+            }
+        }
+
+        LOG.info("Caché OCSP cargada: {} respuestas vigentes, {} descartadas", this.entries.size(), expired);
+        if (expired > 0) {
+            this.scheduleSave();
+        }
+    }
+
+    private boolean isFresh(CacheEntry entry) {
+        try {
+            BasicOCSPResp basicResponse = DSSRevocationUtils.loadOCSPFromBinaries(entry.encoded());
+            Date now = new Date();
+            for (SingleResp singleResponse : basicResponse.getResponses()) {
+                Date nextUpdate = singleResponse.getNextUpdate();
+                Date maxAge = new Date(singleResponse.getThisUpdate().getTime() + this.maxAgeSeconds * 1000L);
+                if (nextUpdate != null && now.before(nextUpdate) && now.before(maxAge)) {
+                    return true;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.debug("Respuesta OCSP en caché ilegible: {}", e.getMessage());
+        }
+
+        return false;
+    }
+
+    /**
+     * Saves the cache once {@value #SAVE_DELAY_SECONDS} seconds have passed, with every change made until then, so a
+     * burst of signatures does not rewrite the file for each response.
+     */
+    private void scheduleSave() {
+        if (this.saver != null && this.savePending.compareAndSet(false, true)) {
+            this.saver.schedule(this::flush, SAVE_DELAY_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private synchronized void save() {
+        Properties props = new Properties();
+        this.entries.forEach((key, entry) -> props.setProperty(key, entry.format()));
+        try {
+            // Se escribe en un archivo temporal y se reemplaza, para no dejar la caché a medias si el proceso muere
+            Files.createDirectories(this.cacheFile.toAbsolutePath().getParent());
+            Path tmp = Files.createTempFile(this.cacheFile.toAbsolutePath().getParent(), "ocsp-cache", ".tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(tmp)) {
+                    props.store(out, "Firmador - caché de respuestas OCSP");
+                }
+                Files.move(tmp, this.cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            LOG.warn("No se pudo guardar la caché OCSP {}: {}", this.cacheFile, e.getMessage());
+        }
+    }
+
+    private record CacheEntry(String sourceUrl, byte[] encoded) {
+
+        String format() {
+            return Utils.toBase64(this.encoded) + "|" + (this.sourceUrl == null ? "" : this.sourceUrl);
+        }
+
+        static CacheEntry parse(String value) {
+            int separator = value.indexOf('|');
+            if (separator < 0) {
+                return null;
+            }
+            String sourceUrl = value.substring(separator + 1);
+            try {
+                return new CacheEntry(sourceUrl.isEmpty() ? null : sourceUrl, Utils.fromBase64(value.substring(0, separator)));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+}
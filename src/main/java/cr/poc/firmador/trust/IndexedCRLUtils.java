@@ -0,0 +1,126 @@
+package cr.poc.firmador.trust;
+
+import eu.europa.esig.dss.crl.CRLValidity;
+import eu.europa.esig.dss.crl.stream.impl.CRLUtilsStreamImpl;
+import org.bouncycastle.asn1.ASN1Enumerated;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.x509.Extension;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.security.cert.CRLException;
+import java.security.cert.CRLReason;
+import java.security.cert.X509CRLEntry;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * DSS CRL utilities that answer revocation lookups from the {@link CRLSerialIndex} of the CRLs stored by
+ * {@link MappedCRLSource}.
+ * <p>
+ * {@code CRLToken} resolves the status of its certificate through {@code CRLUtils.getRevocationInfo}, which the
+ * streaming implementation answers by scanning the whole CRL again. This implementation is registered as the DSS
+ * {@code ICRLUtils} service, ahead of the streaming one in the class path, and looks up the CRLs that have an index
+ * with a binary search on the mapped file instead. Any other CRL, and everything but the lookup, is left to the
+ * streaming implementation, so the result is the same whichever of the two DSS picks.
+ */
+public class IndexedCRLUtils extends CRLUtilsStreamImpl {
+    // Sin referencias fuertes: el índice se olvida cuando el GC reclama la CRL
+    private static final Map<CRLValidity, CRLSerialIndex> INDEXES = Collections.synchronizedMap(new WeakHashMap<>());
+    private static final String REASON_CODE_OID = Extension.reasonCode.getId();
+
+    /**
+     * Answers the lookups on {@code crlValidity} from {@code index}, built from the same CRL.
+     */
+    static void register(CRLValidity crlValidity, CRLSerialIndex index) {
+        INDEXES.put(crlValidity, index);
+    }
+
+    @Override
+    public X509CRLEntry getRevocationInfo(CRLValidity crlValidity, BigInteger serialNumber) {
+        CRLSerialIndex index = INDEXES.get(crlValidity);
+        if (index == null) {
+            return super.getRevocationInfo(crlValidity, serialNumber);
+        }
+
+        CRLSerialIndex.RevokedSerial revoked = index.find(serialNumber);
+        return revoked == null ? null : new IndexedCRLEntry(revoked);
+    }
+
+    /**
+     * Revoked entry with the serial number, date and reason kept in the index, the reason also as its reasonCode
+     * extension. DSS reads nothing else from it.
+     */
+    private static final class IndexedCRLEntry extends X509CRLEntry {
+        private final CRLSerialIndex.RevokedSerial revoked;
+
+        private IndexedCRLEntry(CRLSerialIndex.RevokedSerial revoked) {
+            this.revoked = revoked;
+        }
+
+        @Override
+        public BigInteger getSerialNumber() {
+            return this.revoked.serial();
+        }
+
+        @Override
+        public Date getRevocationDate() {
+            return this.revoked.revocationDate();
+        }
+
+        @Override
+        public CRLReason getRevocationReason() {
+            int reason = this.revoked.reason();
+            return reason >= 0 && reason < CRLReason.values().length ? CRLReason.values()[reason] : null;
+        }
+
+        @Override
+        public byte[] getEncoded() throws CRLException {
+            throw new CRLException("La entrada del índice no conserva su codificación");
+        }
+
+        // La única extensión que se conserva es el motivo, reasonCode, que no es crítica
+        @Override
+        public boolean hasExtensions() {
+            return this.revoked.reason() >= 0;
+        }
+
+        @Override
+        public boolean hasUnsupportedCriticalExtension() {
+            return false;
+        }
+
+        @Override
+        public Set<String> getCriticalExtensionOIDs() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public Set<String> getNonCriticalExtensionOIDs() {
+            return this.hasExtensions() ? Set.of(REASON_CODE_OID) : Collections.emptySet();
+        }
+
+        @Override
+        public byte[] getExtensionValue(String oid) {
+            if (!REASON_CODE_OID.equals(oid) || !this.hasExtensions()) {
+                return null;
+            }
+
+            // Como en X509CRLEntry, el valor DER de la extensión dentro de un OCTET STRING
+            try {
+                return new DEROctetString(new ASN1Enumerated(this.revoked.reason())).getEncoded();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Serie " + this.revoked.serial().toString(16) + " revocada el " + this.revoked.revocationDate();
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package cr.poc.firmador.trust;
+
+import eu.europa.esig.dss.crl.CRLBinary;
+import eu.europa.esig.dss.crl.CRLUtils;
+import eu.europa.esig.dss.crl.CRLValidity;
+import eu.europa.esig.dss.enumerations.DigestAlgorithm;
+import eu.europa.esig.dss.enumerations.RevocationOrigin;
+import eu.europa.esig.dss.model.x509.CertificateToken;
+import eu.europa.esig.dss.spi.CertificateExtensionsUtils;
+import eu.europa.esig.dss.spi.DSSUtils;
+import eu.europa.esig.dss.spi.client.http.DataLoader;
+import eu.europa.esig.dss.spi.x509.revocation.crl.CRLSource;
+import eu.europa.esig.dss.spi.x509.revocation.crl.CRLToken;
+import eu.europa.esig.dss.utils.Utils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * CRL source backed by a local store that downloads each CRL once per validity period.
+ * <p>
+ * Every distribution point gets a DER file with the CRL and a {@link CRLSerialIndex} next to it. Both are reused
+ * across runs until the CRL's nextUpdate, capped at the configured maximum age. DSS still needs a {@link CRLToken}
+ * to validate and embed the revocation data, so {@link #getRevocationToken} builds one from the stored file, but the
+ * status of the certificate is looked up in the mapped index through {@link IndexedCRLUtils} rather than by scanning
+ * the CRL, as {@link #findRevoked} does. DSS embeds the DER of the CRL from a {@link CRLBinary}, so that is read
+ * from the stored file once, when the CRL is first used, and its signature is checked once per issuer; lookups
+ * reuse both instead of reading the file again.
+ * <p>
+ * Each download is stored under a new generation number instead of replacing the previous files, which may still
+ * be mapped and, on Windows, can be neither replaced nor deleted until they are unmapped. Older generations are
+ * deleted when possible.
+ */
+public class MappedCRLSource implements CRLSource {
+    private static final Logger LOG = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String CRL_SUFFIX = ".crl";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private final DataLoader dataLoader;
+    private final Path storeDir;
+    private final long maxAgeSeconds;
+    private final Map<String, StoredCRL> crls = new ConcurrentHashMap<>();
+    private final Map<String, Object> locks = new ConcurrentHashMap<>();
+
+    /**
+     * @param dataLoader    loader used to download the CRLs
+     * @param storeDir      directory holding the downloaded CRLs and their indexes
+     * @param maxAgeSeconds maximum time a CRL is reused after its thisUpdate, whatever its nextUpdate says
+     */
+    public MappedCRLSource(DataLoader dataLoader, Path storeDir, long maxAgeSeconds) {
+        this.dataLoader = dataLoader;
+        this.storeDir = storeDir;
+        this.maxAgeSeconds = maxAgeSeconds;
+    }
+
+    @Override
+    public CRLToken getRevocationToken(CertificateToken certificateToken, CertificateToken issuerCertificateToken) {
+        if (issuerCertificateToken == null) {
+            return null;
+        }
+
+        for (String url : CertificateExtensionsUtils.getCRLAccessUrls(certificateToken)) {
+            StoredCRL crl = this.getStoredCRL(url);
+            if (crl == null) {
+                continue;
+            }
+
+            try {
+                CRLToken token = new CRLToken(certificateToken, crl.getValidity(issuerCertificateToken));
+                token.setSourceURL(url);
+                token.setExternalOrigin(RevocationOrigin.CACHED);
+                return token;
+            } catch (IOException e) {
+                LOG.warn("No se pudo usar la CRL almacenada de {}: {}", url, e.getMessage());
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Looks the certificate up in the indexes of its distribution points, downloading them if needed.
+     *
+     * @return the revoked entry, or {@code null} if the certificate is not on any of its CRLs or none is available
+     */
+    public CRLSerialIndex.RevokedSerial findRevoked(CertificateToken certificateToken) {
+        for (String url : CertificateExtensionsUtils.getCRLAccessUrls(certificateToken)) {
+            StoredCRL crl = this.getStoredCRL(url);
+            if (crl != null) {
+                return crl.index.find(certificateToken.getSerialNumber());
+            }
+        }
+
+        return null;
+    }
+
+    private StoredCRL getStoredCRL(String url) {
+        StoredCRL crl = this.crls.get(url);
+        if (crl != null && this.isFresh(crl.index)) {
+            return crl;
+        }
+
+        // Una sola descarga por URL aunque varios hilos pidan la misma CRL
+        synchronized (this.locks.computeIfAbsent(url, k -> new Object())) {
+            crl = this.crls.get(url);
+            if (crl != null && this.isFresh(crl.index)) {
+                return crl;
+            }
+
+            String name = Utils.toHex(DSSUtils.digest(DigestAlgorithm.SHA256, url.getBytes(StandardCharsets.UTF_8)));
+            crl = this.openStored(name);
+            if (crl == null) {
+                crl = this.download(url, name);
+            }
+            if (crl != null) {
+                this.crls.put(url, crl);
+            } else {
+                this.crls.remove(url);
+            }
+
+            return crl;
+        }
+    }
+
+    private StoredCRL openStored(String name) {
+        long generation = this.latestGeneration(name);
+        if (generation < 0) {
+            return null;
+        }
+
+        Path crlFile = this.storeDir.resolve(name + "." + generation + CRL_SUFFIX);
+        Path indexFile = this.storeDir.resolve(name + "." + generation + INDEX_SUFFIX);
+        if (!Files.isRegularFile(crlFile)) {
+            return null;
+        }
+
+        try {
+            CRLSerialIndex index = CRLSerialIndex.open(indexFile);
+            return this.isFresh(index) ? new StoredCRL(crlFile, index) : null;
+        } catch (IOException e) {
+            LOG.debug("Índice de CRL ilegible {}: {}", indexFile, e.getMessage());
+            return null;
+        }
+    }
+
+    private StoredCRL download(String url, String name) {
+        try {
+            byte[] encoded = this.dataLoader.get(url);
+            if (encoded == null || encoded.length == 0) {
+                return null;
+            }
+
+            Files.createDirectories(this.storeDir);
+            long generation = Math.max(System.currentTimeMillis(), this.latestGeneration(name) + 1);
+            Path crlFile = this.storeDir.resolve(name + "." + generation + CRL_SUFFIX);
+            Path indexFile = this.storeDir.resolve(name + "." + generation + INDEX_SUFFIX);
+            Path tmp = Files.createTempFile(this.storeDir, "crl", ".tmp");
+            Files.write(tmp, encoded);
+            Files.move(tmp, crlFile, StandardCopyOption.ATOMIC_MOVE);
+
+            CRLSerialIndex index = CRLSerialIndex.build(crlFile, indexFile);
+            LOG.info("CRL descargada de {}: {} certificados revocados", url, index.size());
+            this.deleteOlderGenerations(name, generation);
+            return new StoredCRL(crlFile, index);
+        } catch (Exception e) {
+            LOG.warn("No se pudo descargar la CRL de {}: {}", url, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Generation of the newest index stored for {@code name}, {@code -1} if there is none.
+     */
+    private long latestGeneration(String name) {
+        long latest = -1;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.storeDir, name + ".*" + INDEX_SUFFIX)) {
+            for (Path file : files) {
+                latest = Math.max(latest, generationOf(file, name));
+            }
+        } catch (IOException e) {
+            // Sin directorio todavía: no hay nada almacenado
+        }
+
+        return latest;
+    }
+
+    private void deleteOlderGenerations(String name, long current) {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.storeDir, name + ".*")) {
+            for (Path file : files) {
+                long generation = generationOf(file, name);
+                if (generation >= 0 && generation < current) {
+                    try {
+                        Files.deleteIfExists(file);
+                    } catch (IOException e) {
+                        // En Windows un archivo mapeado no se puede borrar; se intenta en la próxima descarga
+                        LOG.debug("No se pudo borrar {}: {}", file, e.getMessage());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOG.debug("No se pudieron limpiar las CRL anteriores de {}: {}", name, e.getMessage());
+        }
+    }
+
+    private static long generationOf(Path file, String name) {
+        String fileName = file.getFileName().toString();
+        int end = fileName.lastIndexOf('.');
+        if (end <= name.length() + 1) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(fileName.substring(name.length() + 1, end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private boolean isFresh(CRLSerialIndex index) {
+        Date now = new Date();
+        Date maxAge = new Date(index.getThisUpdate().getTime() + this.maxAgeSeconds * 1000L);
+        Date nextUpdate = index.getNextUpdate();
+        return now.before(maxAge) && (nextUpdate == null || now.before(nextUpdate));
+    }
+
+    private static final class StoredCRL {
+        private final Path crlFile;
+        private final CRLSerialIndex index;
+        private CRLBinary binary;
+        private CRLValidity validity;
+
+        private StoredCRL(Path crlFile, CRLSerialIndex index) {
+            this.crlFile = crlFile;
+            this.index = index;
+        }
+
+        synchronized CRLValidity getValidity(CertificateToken issuerCertificateToken) throws IOException {
+            if (this.validity == null || !issuerCertificateToken.equals(this.validity.getIssuerToken())) {
+                if (this.binary == null) {
+                    this.binary = CRLUtils.buildCRLBinary(Files.readAllBytes(this.crlFile));
+                }
+                this.validity = CRLUtils.buildCRLValidity(this.binary, issuerCertificateToken);
+                // El estado de cada certificado se busca en el índice y no recorriendo la CRL otra vez
+                IndexedCRLUtils.register(this.validity, this.index);
+            }
+
+            return this.validity;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package cr.poc.firmador.trust;
+
+import cr.poc.firmador.http.DataLoaderManager;
+import cr.poc.firmador.settings.Settings;
+import cr.poc.firmador.settings.SettingsManager;
+import eu.europa.esig.dss.model.DSSException;
+import eu.europa.esig.dss.service.crl.OnlineCRLSource;
+import eu.europa.esig.dss.service.ocsp.OnlineOCSPSource;
+import eu.europa.esig.dss.spi.DSSUtils;
+import eu.europa.esig.dss.spi.validation.CertificateVerifier;
+import eu.europa.esig.dss.spi.validation.CommonCertificateVerifier;
+import eu.europa.esig.dss.spi.x509.CertificateSource;
+import eu.europa.esig.dss.spi.x509.CommonCertificateSource;
+import eu.europa.esig.dss.spi.x509.CommonTrustedCertificateSource;
+import eu.europa.esig.dss.spi.x509.aia.DefaultAIASource;
+import eu.europa.esig.dss.spi.x509.revocation.crl.CRLSource;
+import eu.europa.esig.dss.spi.x509.revocation.ocsp.OCSPSource;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Process-wide holder of the Costa Rica trust anchors and the {@link CertificateVerifier} built on top of them.
+ * <p>
+ * The certificates are parsed once and the verifiers are shared by every signer and validator. The held
+ * instances are never modified after they are published; {@link #reload()} builds a complete new snapshot and
+ * swaps it in, so callers that already hold a verifier keep using a consistent one.
+ * <p>
+ * Both verifiers share one {@link FileCacheOCSPSource} and one {@link MappedCRLSource}, which outlive reloads, so
+ * revocation data fetched while signing is reused by later signatures and validations of the same certificates.
+ */
+public class TrustStoreManager {
+    private static final Logger LOG = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final List<String> ROOT_CERTIFICATES = List.of(
+            "certs/CA RAIZ NACIONAL - COSTA RICA v2.crt",
+            "certs/CA RAIZ NACIONAL COSTA RICA.cer");
+
+    public static final List<String> INTERMEDIATE_CERTIFICATES = List.of(
+            "certs/CA POLITICA PERSONA FISICA - COSTA RICA v2.crt",
+            "certs/CA POLITICA PERSONA JURIDICA - COSTA RICA v2.crt",
+            "certs/CA POLITICA SELLADO DE TIEMPO - COSTA RICA v2.crt",
+            "certs/CA SINPE - PERSONA FISICA v2(1).crt",
+            "certs/CA SINPE - PERSONA FISICA v2(2).crt",
+            "certs/CA SINPE - PERSONA JURIDICA v2(1).crt",
+            "certs/CA SINPE - PERSONA JURIDICA v2(2).crt",
+            "certs/TSA SINPE v3.cer");
+
+    public static final String OCSP_CACHE_FILE = "ocsp-cache.properties";
+    public static final String CRL_STORE_DIR = "crl-cache";
+
+    // Declarado después de las listas de certificados, que el constructor necesita ya inicializadas
+    private static final TrustStoreManager tm = new TrustStoreManager();
+
+    private final OCSPSource ocspSource;
+    private final CRLSource crlSource;
+    private volatile Snapshot snapshot;
+
+    private TrustStoreManager() {
+        this.ocspSource = buildOCSPSource();
+        this.crlSource = buildCRLSource();
+        this.snapshot = this.buildSnapshot();
+    }
+
+    public static TrustStoreManager getInstance() {
+        return tm;
+    }
+
+    /**
+     * Verifier used while signing and extending: trusted roots, intermediate CAs as adjunct source, online
+     * revocation sources and revocation fallback enabled.
+     */
+    public CertificateVerifier getCertificateVerifier() {
+        return this.snapshot.signingVerifier;
+    }
+
+    /**
+     * Verifier used by {@link cr.poc.firmador.validate.Validator}: trusted roots and online revocation sources only.
+     */
+    public CertificateVerifier getValidationVerifier() {
+        return this.snapshot.validationVerifier;
+    }
+
+    /**
+     * Cached OCSP source used by both verifiers.
+     */
+    public OCSPSource getOCSPSource() {
+        return this.ocspSource;
+    }
+
+    /**
+     * Local CRL store used by both verifiers.
+     */
+    public CRLSource getCRLSource() {
+        return this.crlSource;
+    }
+
+    public CertificateSource getTrustedCertSource() {
+        return this.snapshot.trustedCertSource;
+    }
+
+    public CertificateSource getAdjunctCertSource() {
+        return this.snapshot.adjunctCertSource;
+    }
+
+    /**
+     * Re-reads the certificate resources and atomically replaces the shared verifiers.
+     */
+    public synchronized void reload() {
+        this.snapshot = this.buildSnapshot();
+        LOG.info("Almacén de certificados de confianza recargado");
+    }
+
+    private Snapshot buildSnapshot() {
+        CertificateSource trustedCertSource = new CommonTrustedCertificateSource();
+        for (String certPath : ROOT_CERTIFICATES) {
+            addCertificateToSource(trustedCertSource, certPath);
+        }
+
+        CertificateSource adjunctCertSource = new CommonCertificateSource();
+        for (String certPath : INTERMEDIATE_CERTIFICATES) {
+            addCertificateToSource(adjunctCertSource, certPath);
+        }
+
+        DataLoaderManager loaders = DataLoaderManager.getInstance();
+        CommonCertificateVerifier signingVerifier = new CommonCertificateVerifier();
+        signingVerifier.setTrustedCertSources(new CertificateSource[]{trustedCertSource});
+        signingVerifier.setAdjunctCertSources(new CertificateSource[]{adjunctCertSource});
+        signingVerifier.setCrlSource(this.crlSource);
+        signingVerifier.setOcspSource(this.ocspSource);
+        signingVerifier.setAIASource(new DefaultAIASource(loaders.getDataLoader()));
+        signingVerifier.setRevocationFallback(true);
+
+        CommonCertificateVerifier validationVerifier = new CommonCertificateVerifier();
+        validationVerifier.setTrustedCertSources(new CertificateSource[]{trustedCertSource});
+        validationVerifier.setOcspSource(this.ocspSource);
+        validationVerifier.setCrlSource(this.crlSource);
+        validationVerifier.setAIASource(new DefaultAIASource(loaders.getDataLoader()));
+
+        return new Snapshot(trustedCertSource, adjunctCertSource, signingVerifier, validationVerifier);
+    }
+
+    private static OCSPSource buildOCSPSource() {
+        OnlineOCSPSource onlineSource = new OnlineOCSPSource(DataLoaderManager.getInstance().getOcspDataLoader());
+        Settings settings = SettingsManager.getInstance().getAndCreateSettings();
+        if (settings.ocspCacheMaxAge == null || settings.ocspCacheMaxAge <= 0) {
+            return onlineSource;
+        }
+
+        Path cacheFile = null;
+        try {
+            cacheFile = SettingsManager.getInstance().getConfigDir().resolve(OCSP_CACHE_FILE);
+        } catch (IOException e) {
+            LOG.warn("No se pudo acceder al directorio de configuración, la caché OCSP solo se mantendrá en memoria: {}", e.getMessage());
+        }
+
+        return new FileCacheOCSPSource(onlineSource, cacheFile, settings.ocspCacheMaxAge);
+    }
+
+    private static CRLSource buildCRLSource() {
+        OnlineCRLSource onlineSource = new OnlineCRLSource(DataLoaderManager.getInstance().getDataLoader());
+        Settings settings = SettingsManager.getInstance().getAndCreateSettings();
+        if (settings.crlCacheMaxAge == null || settings.crlCacheMaxAge <= 0) {
+            return onlineSource;
+        }
+
+        try {
+            Path storeDir = SettingsManager.getInstance().getConfigDir().resolve(CRL_STORE_DIR);
+            return new MappedCRLSource(DataLoaderManager.getInstance().getDataLoader(), storeDir, settings.crlCacheMaxAge);
+        } catch (IOException e) {
+            LOG.warn("No se pudo acceder al directorio de configuración, las CRL se descargarán en cada consulta: {}", e.getMessage());
+            return onlineSource;
+        }
+    }
+
+    private static void addCertificateToSource(CertificateSource source, String certPath) {
+        try (InputStream certStream = TrustStoreManager.class.getClassLoader().getResourceAsStream(certPath)) {
+            if (certStream == null) {
+                LOG.error("Certificate file not found: {}", certPath);
+                return;
+            }
+            source.addCertificate(DSSUtils.loadCertificate(certStream));
+        } catch (IOException | DSSException e) {
+            LOG.error("Failed to load certificate from {}: {}", certPath, e.getMessage());
+        }
+    }
+
+    private record Snapshot(CertificateSource trustedCertSource, CertificateSource adjunctCertSource,
+                            CertificateVerifier signingVerifier, CertificateVerifier validationVerifier) {
+    }
+}
@@ -3,6 +3,7 @@ package cr.poc.firmador.utils;
 import lombok.NoArgsConstructor;
 
 import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
 
 @NoArgsConstructor
 public class FirmadorUtils {
@@ -16,4 +17,14 @@ public class FirmadorUtils {
         return rootCause;
     }
 
+    /**
+     * Delay before retrying an operation that already failed {@code failures} times: {@code baseDelayMillis}
+     * doubled on every failure up to {@code maxDelayMillis}, plus or minus a random jitter of 20% so that the
+     * retries of everything that failed during the same outage are spread out instead of arriving together.
+     */
+    public static long retryDelay(long baseDelayMillis, int failures, long maxDelayMillis) {
+        long delay = Math.min(baseDelayMillis << Math.min(Math.max(failures, 0), 20), maxDelayMillis);
+        long jitter = (long) (delay * 0.2 * (ThreadLocalRandom.current().nextDouble() * 2 - 1));
+        return delay + jitter;
+    }
 }
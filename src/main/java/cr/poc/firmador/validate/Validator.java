@@ -1,19 +1,13 @@
 package cr.poc.firmador.validate;
 
+import cr.poc.firmador.trust.TrustStoreManager;
 import eu.europa.esig.dss.enumerations.MimeTypeEnum;
 import eu.europa.esig.dss.enumerations.TokenExtractionStrategy;
 import eu.europa.esig.dss.model.DSSDocument;
 import eu.europa.esig.dss.model.FileDocument;
 import eu.europa.esig.dss.model.InMemoryDocument;
-import eu.europa.esig.dss.service.crl.OnlineCRLSource;
-import eu.europa.esig.dss.service.ocsp.OnlineOCSPSource;
-import eu.europa.esig.dss.spi.DSSUtils;
 import eu.europa.esig.dss.spi.policy.SignaturePolicyProvider;
 import eu.europa.esig.dss.spi.validation.CertificateVerifier;
-import eu.europa.esig.dss.spi.validation.CommonCertificateVerifier;
-import eu.europa.esig.dss.spi.x509.CertificateSource;
-import eu.europa.esig.dss.spi.x509.CommonTrustedCertificateSource;
-import eu.europa.esig.dss.spi.x509.aia.DefaultAIASource;
 import eu.europa.esig.dss.validation.SignedDocumentValidator;
 import eu.europa.esig.dss.validation.identifier.UserFriendlyIdentifierProvider;
 import eu.europa.esig.dss.validation.reports.Reports;
@@ -27,14 +21,7 @@ public class Validator {
     private SignedDocumentValidator documentValidator;
 
     public Validator(String fileName) {
-        CertificateSource trustedCertSource = new CommonTrustedCertificateSource();
-        trustedCertSource.addCertificate(DSSUtils.loadCertificate(this.getClass().getClassLoader().getResourceAsStream("certs/CA RAIZ NACIONAL - COSTA RICA v2.crt")));
-        trustedCertSource.addCertificate(DSSUtils.loadCertificate(this.getClass().getClassLoader().getResourceAsStream("certs/CA RAIZ NACIONAL COSTA RICA.cer")));
-        CertificateVerifier cv = new CommonCertificateVerifier();
-        cv.setTrustedCertSources(new CertificateSource[]{trustedCertSource});
-        cv.setOcspSource(new OnlineOCSPSource());
-        cv.setCrlSource(new OnlineCRLSource());
-        cv.setAIASource(new DefaultAIASource());
+        CertificateVerifier cv = TrustStoreManager.getInstance().getValidationVerifier();
         FileDocument fileDocument = new FileDocument(fileName);
         this.documentValidator = SignedDocumentValidator.fromDocument(fileDocument);
         this.documentValidator.setCertificateVerifier(cv);
@@ -0,0 +1,331 @@
+package cr.poc.firmador.zip;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+/**
+ * Updates a ZIP file in place by appending, for adding a signature to a large package or container without
+ * rewriting it.
+ * <p>
+ * The new entries are written after the data of the last entry, where the central directory was, followed by a new
+ * central directory. An entry added with the name of an existing one supersedes it: the new central directory points
+ * to the new entry and the old data stays in the file, unreferenced. The existing entries are neither read nor
+ * moved, so adding a signature costs I/O proportional to the signature and not to the package. Readers that go
+ * through the central directory see the updated archive; readers that scan the local headers in order also see
+ * the superseded entries, and may take the first copy of a name for the current one. This is meant for adding
+ * parts, as an ASiC-E signature does, or for packages whose consumers read them through the directory. An OOXML
+ * signature supersedes {@code [Content_Types].xml} and the relationship parts, so a package updated this way must
+ * not be handed to a reader that scans the local headers.
+ * <p>
+ * Nothing is written until {@link #finish()}. The original central directory, the only part of the file that is
+ * overwritten, is first saved to a sidecar file next to it ({@value #SIDECAR_SUFFIX}), which is removed once the
+ * update is on disk. If writing fails, the original directory is put back; if the process dies while writing, the
+ * next {@link #open} of the file puts it back from the sidecar, unless the sidecar does not match the file.
+ */
+public final class ZipAppender implements ZipEntryWriter, AutoCloseable {
+    private static final Logger LOG = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int FINGERPRINT_SIZE = 64 * 1024;
+    static final String SIDECAR_SUFFIX = ".zipdir";
+    static final int SIDECAR_HEADER_SIZE = 4 * Long.BYTES;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final ZipSource source;
+    // Entradas nuevas por nombre, en el orden en que se agregaron
+    private final Map<String, PendingEntry> pending = new LinkedHashMap<>();
+    private boolean finished;
+
+    private ZipAppender(Path file, FileChannel channel, ZipSource source) {
+        this.file = file;
+        this.channel = channel;
+        this.source = source;
+    }
+
+    /**
+     * Opens the ZIP file {@code file} for update, first putting back its central directory if a previous update was
+     * interrupted.
+     */
+    public static ZipAppender open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            recover(file, channel);
+            return new ZipAppender(file, channel, ZipSource.read(channel));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The archive as it was opened, to read the parts to replace.
+     */
+    public ZipSource getSource() {
+        return this.source;
+    }
+
+    /**
+     * Adds the entry {@code name}, superseding the existing entry with that name if there is one.
+     */
+    @Override
+    public void add(String name, byte[] content) {
+        this.put(name, writer -> writer.add(name, content));
+    }
+
+    @Override
+    public void addDirectory(String name) {
+        this.put(name, writer -> writer.addDirectory(name));
+    }
+
+    /**
+     * Adds {@code entry} of {@code from} without decompressing it, superseding the existing entry with that name if
+     * there is one. {@code from} must stay open until {@link #finish()}.
+     */
+    public void copy(ZipSource from, ZipSource.Entry entry) {
+        this.put(entry.name(), writer -> writer.copy(from, entry));
+    }
+
+    /**
+     * Brings the archive up to date with {@code updated}, another version of it: entries that are new or whose CRC or
+     * size differ are copied from {@code updated}, which must stay open until {@link #finish()}. Entries that
+     * {@code updated} does not have are kept.
+     *
+     * @return the number of entries added or superseded
+     */
+    public int copyChanges(ZipSource updated) {
+        int changes = 0;
+        for (ZipSource.Entry entry : updated.entries()) {
+            ZipSource.Entry current = this.source.getEntry(entry.name());
+            if (current == null || current.crc() != entry.crc() || current.size() != entry.size()) {
+                this.copy(updated, entry);
+                changes++;
+            }
+        }
+
+        return changes;
+    }
+
+    /**
+     * Writes the new entries and central directory.
+     */
+    public void finish() throws IOException {
+        if (this.finished) {
+            throw new IllegalStateException("El archivo zip ya se actualizó");
+        }
+        this.finished = true;
+
+        long directoryOffset = this.source.getCentralDirectoryOffset();
+        long originalSize = this.source.size();
+        // El directorio original es lo único que se sobrescribe, así que se guarda para restaurarlo si algo falla
+        Path sidecar = sidecarOf(this.file);
+        this.saveTail(sidecar, directoryOffset, originalSize);
+        List<ZipSource.Entry> kept = new ArrayList<>();
+        for (ZipSource.Entry entry : this.source.entries()) {
+            if (!this.pending.containsKey(entry.name())) {
+                kept.add(entry);
+            }
+        }
+
+        try {
+            this.channel.position(directoryOffset);
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(this.channel), BUFFER_SIZE);
+            ZipRewriter writer = new ZipRewriter(out, directoryOffset, kept);
+            for (PendingEntry entry : this.pending.values()) {
+                entry.writeTo(writer);
+            }
+            writer.finish();
+            this.channel.truncate(this.channel.position());
+            this.channel.force(false);
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Error agregando entradas a {}, se restaura el directorio original", this.file, e);
+            if (this.restore(sidecar)) {
+                Files.deleteIfExists(sidecar);
+            }
+            throw e;
+        }
+        Files.delete(sidecar);
+
+        LOG.debug("{}: {} entradas agregadas, {} bytes escritos de {}", this.file, this.pending.size(),
+                this.channel.size() - directoryOffset, this.channel.size());
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            this.source.close();
+        } finally {
+            this.channel.close();
+        }
+    }
+
+    private void put(String name, PendingEntry entry) {
+        if (this.finished) {
+            throw new IllegalStateException("El archivo zip ya se actualizó");
+        }
+        this.pending.put(Objects.requireNonNull(name), entry);
+    }
+
+    private boolean restore(Path sidecar) {
+        try {
+            restoreTail(sidecar, this.channel);
+            return true;
+        } catch (IOException e) {
+            LOG.error("No se pudo restaurar el directorio central de {}, queda en {}", this.file, sidecarOf(this.file), e);
+            return false;
+        }
+    }
+
+    private static Path sidecarOf(Path file) {
+        return file.resolveSibling(file.getFileName() + SIDECAR_SUFFIX);
+    }
+
+    /**
+     * Saves the original central directory to {@code sidecar}, on disk before anything is overwritten, after a header
+     * with its offset, the original size of the file, the CRC of the directory and the CRC of the
+     * {@value #FINGERPRINT_SIZE} bytes before it. Those bytes are never overwritten, so they tell whether the sidecar
+     * belongs to the file it is found next to.
+     */
+    private void saveTail(Path sidecar, long directoryOffset, long originalSize) throws IOException {
+        try (FileChannel out = FileChannel.open(sidecar, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            CRC32 directoryCrc = new CRC32();
+            out.position(SIDECAR_HEADER_SIZE);
+            this.source.transferTail(directoryOffset, new WritableByteChannel() {
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    ByteBuffer written = src.duplicate();
+                    int length = out.write(src);
+                    directoryCrc.update(written.limit(written.position() + length));
+                    return length;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return out.isOpen();
+                }
+
+                @Override
+                public void close() {
+                    // El canal se cierra con el archivo
+                }
+            });
+
+            ByteBuffer header = ByteBuffer.allocate(SIDECAR_HEADER_SIZE).putLong(directoryOffset).putLong(originalSize)
+                    .putLong(directoryCrc.getValue()).putLong(fingerprint(this.channel, directoryOffset)).flip();
+            while (header.hasRemaining()) {
+                out.write(header, header.position());
+            }
+            out.force(true);
+        }
+    }
+
+    /**
+     * Puts back the central directory saved next to {@code file} by an update that did not finish.
+     */
+    private static void recover(Path file, FileChannel channel) throws IOException {
+        Path sidecar = sidecarOf(file);
+        if (!Files.exists(sidecar)) {
+            return;
+        }
+
+        if (!restoreTail(sidecar, channel)) {
+            // Se cortó al guardarlo, antes de tocar el archivo, o es de otra versión del archivo
+            LOG.warn("La copia del directorio central {} está incompleta o no corresponde a {}, se descarta", sidecar, file);
+            Files.delete(sidecar);
+            return;
+        }
+
+        LOG.warn("Una actualización anterior de {} no terminó, se restauró su directorio central", file);
+        channel.force(false);
+        Files.delete(sidecar);
+    }
+
+    /**
+     * Writes the central directory saved in {@code sidecar} back to {@code channel}, in chunks, and truncates the
+     * file to its original size. An update that did not finish leaves the file at least as long as it was, so the
+     * directory is only put back into a file that long whose bytes before the directory are the saved ones.
+     *
+     * @return false, without writing anything, if the sidecar is incomplete or does not belong to the file
+     */
+    private static boolean restoreTail(Path sidecar, FileChannel channel) throws IOException {
+        try (FileChannel in = FileChannel.open(sidecar, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(SIDECAR_HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (in.read(header, header.position()) < 0) {
+                    return false;
+                }
+            }
+            header.flip();
+            long directoryOffset = header.getLong();
+            long originalSize = header.getLong();
+            long directoryCrc = header.getLong();
+            long fingerprint = header.getLong();
+            if (directoryOffset < 0 || originalSize - directoryOffset != in.size() - SIDECAR_HEADER_SIZE
+                    || crc(in, SIDECAR_HEADER_SIZE, in.size() - SIDECAR_HEADER_SIZE) != directoryCrc
+                    || channel.size() < originalSize || fingerprint(channel, directoryOffset) != fingerprint) {
+                return false;
+            }
+
+            ByteBuffer chunk = ByteBuffer.allocate(BUFFER_SIZE);
+            for (long position = directoryOffset; position < originalSize; ) {
+                chunk.clear();
+                if (in.read(chunk, SIDECAR_HEADER_SIZE + position - directoryOffset) < 0) {
+                    throw new EOFException("Fin inesperado de " + sidecar);
+                }
+                chunk.flip();
+                while (chunk.hasRemaining()) {
+                    position += channel.write(chunk, position);
+                }
+            }
+            channel.truncate(originalSize);
+            return true;
+        }
+    }
+
+    /**
+     * CRC of the {@value #FINGERPRINT_SIZE} bytes of {@code channel} before {@code directoryOffset}, or of all of
+     * them if there are fewer.
+     */
+    private static long fingerprint(FileChannel channel, long directoryOffset) throws IOException {
+        long length = Math.min(FINGERPRINT_SIZE, directoryOffset);
+        return crc(channel, directoryOffset - length, length);
+    }
+
+    private static long crc(FileChannel channel, long offset, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(1, length)));
+        for (long position = offset; position < offset + length; ) {
+            chunk.clear().limit((int) Math.min(chunk.capacity(), offset + length - position));
+            int read = channel.read(chunk, position);
+            if (read < 0) {
+                throw new EOFException("Fin inesperado del archivo zip");
+            }
+            position += read;
+            crc.update(chunk.flip());
+        }
+
+        return crc.getValue();
+    }
+
+    private interface PendingEntry {
+        void writeTo(ZipRewriter writer) throws IOException;
+    }
+}
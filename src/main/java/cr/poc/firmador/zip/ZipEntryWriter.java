@@ -0,0 +1,20 @@
+package cr.poc.firmador.zip;
+
+import java.io.IOException;
+
+/**
+ * Where a package signer writes the parts it creates or replaces, whether the package is rewritten
+ * ({@link ZipRewriter}) or updated in place ({@link ZipAppender}).
+ */
+public interface ZipEntryWriter {
+
+    /**
+     * Adds the entry {@code name} with {@code content} deflated.
+     */
+    void add(String name, byte[] content) throws IOException;
+
+    /**
+     * Adds the directory entry {@code name}, which must end with {@code /}.
+     */
+    void addDirectory(String name) throws IOException;
+}
@@ -0,0 +1,212 @@
+package cr.poc.firmador.zip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a ZIP archive made of entries copied from a {@link ZipSource} and new entries, for signers that add or
+ * replace a few parts of a package (signature, relationships, content types) and keep the rest.
+ * <p>
+ * Copied entries are written with their compressed bytes as they are in the source, so they keep their CRC, sizes
+ * and compression method and are neither inflated nor deflated again. Only new entries are compressed. The sizes of
+ * every entry are known before it is written, so no entry has a data descriptor.
+ */
+public final class ZipRewriter implements ZipEntryWriter {
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+    private static final int VERSION = 20;
+    private static final int DATA_DESCRIPTOR_FLAG = 0x0008;
+    private static final int DIRECTORY_ATTRIBUTE = 0x10;
+    private static final long MAX_OFFSET = 0xFFFFFFFFL;
+    private static final int MAX_ENTRIES = 0xFFFF;
+
+    private final OutputStream out;
+    private final WritableByteChannel channel;
+    private final List<ZipSource.Entry> written = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+    private long position;
+
+    /**
+     * Writes the archive to {@code out}, which is not closed.
+     */
+    public ZipRewriter(OutputStream out) {
+        this.out = out;
+        this.channel = Channels.newChannel(out);
+    }
+
+    /**
+     * Continues an archive whose first {@code position} bytes are already in place before {@code out}, keeping the
+     * entries {@code kept} of its central directory.
+     */
+    ZipRewriter(OutputStream out, long position, List<ZipSource.Entry> kept) {
+        this(out);
+        this.position = position;
+        for (ZipSource.Entry entry : kept) {
+            this.written.add(entry);
+            this.names.add(entry.name());
+        }
+    }
+
+    /**
+     * Copies {@code entry} of {@code source} without decompressing it.
+     */
+    public void copy(ZipSource source, ZipSource.Entry entry) throws IOException {
+        ZipSource.Entry copy = new ZipSource.Entry(entry.name(), entry.rawName(), entry.flags() & ~DATA_DESCRIPTOR_FLAG,
+                entry.method(), entry.time(), entry.date(), entry.crc(), entry.compressedSize(), entry.size(),
+                entry.externalAttributes(), this.position, 0);
+        this.writeLocalHeader(copy);
+        source.transferRaw(entry, this.channel);
+        this.position += entry.compressedSize();
+    }
+
+    /**
+     * Copies every entry of {@code source} but the {@code skipped} ones, in source order.
+     */
+    public void copyAll(ZipSource source, Set<String> skipped) throws IOException {
+        for (ZipSource.Entry entry : source.entries()) {
+            if (!skipped.contains(entry.name())) {
+                this.copy(source, entry);
+            }
+        }
+    }
+
+    @Override
+    public void addDirectory(String name) throws IOException {
+        this.add(name, new byte[0], STORED, 0, 0, DIRECTORY_ATTRIBUTE);
+    }
+
+    @Override
+    public void add(String name, byte[] content) throws IOException {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, content.length / 2));
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished()) {
+                compressed.write(chunk, 0, deflater.deflate(chunk));
+            }
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            this.add(name, compressed.toByteArray(), DEFLATED, content.length, crc.getValue(), 0);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Writes the central directory. The stream is flushed but not closed.
+     */
+    public void finish() throws IOException {
+        if (this.written.size() > MAX_ENTRIES) {
+            throw new ZipException("Demasiadas entradas para un zip sin ZIP64: " + this.written.size());
+        }
+
+        long directoryOffset = this.position;
+        for (ZipSource.Entry entry : this.written) {
+            ByteBuffer header = header(ZipSource.CENTRAL_HEADER_SIZE + entry.rawName().length);
+            header.putInt(ZipSource.CENTRAL_HEADER_SIGNATURE);
+            header.putShort((short) VERSION);
+            header.putShort((short) VERSION);
+            putCommonFields(header, entry);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putInt(entry.externalAttributes());
+            header.putInt((int) entry.localHeaderOffset());
+            header.put(entry.rawName());
+            this.write(header);
+        }
+
+        long directorySize = this.position - directoryOffset;
+        this.checkOffset(this.position);
+        ByteBuffer end = header(ZipSource.END_SIZE);
+        end.putInt(ZipSource.END_SIGNATURE);
+        end.putShort((short) 0);
+        end.putShort((short) 0);
+        end.putShort((short) this.written.size());
+        end.putShort((short) this.written.size());
+        end.putInt((int) directorySize);
+        end.putInt((int) directoryOffset);
+        end.putShort((short) 0);
+        this.write(end);
+        this.out.flush();
+    }
+
+    private void add(String name, byte[] data, int method, long size, long crc, int externalAttributes) throws IOException {
+        int[] dosTime = dosTime(LocalDateTime.now());
+        ZipSource.Entry entry = new ZipSource.Entry(name, name.getBytes(StandardCharsets.UTF_8), ZipSource.UTF8_FLAG,
+                method, dosTime[0], dosTime[1], crc, data.length, size, externalAttributes, this.position, 0);
+        this.writeLocalHeader(entry);
+        this.out.write(data);
+        this.position += data.length;
+    }
+
+    private void writeLocalHeader(ZipSource.Entry entry) throws IOException {
+        if (!this.names.add(entry.name())) {
+            throw new ZipException("Entrada duplicada: " + entry.name());
+        }
+        this.checkOffset(this.position + ZipSource.LOCAL_HEADER_SIZE + entry.rawName().length + entry.compressedSize());
+
+        ByteBuffer header = header(ZipSource.LOCAL_HEADER_SIZE + entry.rawName().length);
+        header.putInt(ZipSource.LOCAL_HEADER_SIGNATURE);
+        header.putShort((short) VERSION);
+        putCommonFields(header, entry);
+        header.put(entry.rawName());
+        this.write(header);
+        this.written.add(entry);
+    }
+
+    private static void putCommonFields(ByteBuffer header, ZipSource.Entry entry) {
+        header.putShort((short) entry.flags());
+        header.putShort((short) entry.method());
+        header.putShort((short) entry.time());
+        header.putShort((short) entry.date());
+        header.putInt((int) entry.crc());
+        header.putInt((int) entry.compressedSize());
+        header.putInt((int) entry.size());
+        header.putShort((short) entry.rawName().length);
+        header.putShort((short) 0);
+    }
+
+    private void write(ByteBuffer header) throws IOException {
+        header.flip();
+        this.position += header.remaining();
+        this.out.write(header.array(), 0, header.limit());
+    }
+
+    private void checkOffset(long offset) throws ZipException {
+        if (offset > MAX_OFFSET) {
+            throw new ZipException("El archivo zip supera los 4 GB, que requieren ZIP64");
+        }
+    }
+
+    private static ByteBuffer header(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int[] dosTime(LocalDateTime time) {
+        if (time.getYear() < 1980) {
+            return new int[]{0, (1 << 5) | 1};
+        }
+
+        return new int[]{
+                (time.getHour() << 11) | (time.getMinute() << 5) | (time.getSecond() >> 1),
+                ((time.getYear() - 1980) << 9) | (time.getMonthValue() << 5) | time.getDayOfMonth()
+        };
+    }
+}
@@ -0,0 +1,361 @@
+package cr.poc.firmador.zip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * A ZIP archive read through its central directory, with access to the compressed bytes of each entry so they can
+ * be copied to another archive by {@link ZipRewriter} without inflating them.
+ * <p>
+ * A file is mapped into memory and any other archive is read from a byte array; {@link ZipAppender} reads the file
+ * it updates through its channel instead. ZIP64 archives and archives split over several disks are not supported,
+ * which is not a limit for office documents or ASiC containers.
+ */
+public final class ZipSource implements Closeable {
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    static final int END_SIGNATURE = 0x06054b50;
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int END_SIZE = 22;
+    static final int UTF8_FLAG = 0x0800;
+    private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+    private static final int TRANSFER_CHUNK = 64 * 1024;
+    private static final Charset LEGACY_CHARSET = Charset.forName("IBM437");
+
+    // Se cierra con la fuente sólo si la abrió ella
+    private final FileChannel channel;
+    private final boolean ownsChannel;
+    // Todo el archivo, o null si se lee por posiciones del canal
+    private final ByteBuffer buffer;
+    private final long size;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private long centralDirectoryOffset;
+
+    private ZipSource(FileChannel channel, boolean ownsChannel, ByteBuffer buffer, long size) throws IOException {
+        this.channel = channel;
+        this.ownsChannel = ownsChannel;
+        this.buffer = buffer == null ? null : buffer.order(ByteOrder.LITTLE_ENDIAN);
+        this.size = size;
+        this.readCentralDirectory();
+    }
+
+    /**
+     * Maps the archive {@code file}.
+     */
+    public static ZipSource open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new ZipSource(channel, true, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), channel.size());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the archive held in {@code bytes}, which must not change while the source is in use.
+     */
+    public static ZipSource of(byte[] bytes) throws IOException {
+        return new ZipSource(null, false, ByteBuffer.wrap(bytes), bytes.length);
+    }
+
+    /**
+     * Reads the archive of {@code channel} through positional reads instead of mapping it, so the file can be
+     * written (and truncated) while the source is in use. The channel is not closed with the source.
+     */
+    static ZipSource read(FileChannel channel) throws IOException {
+        return new ZipSource(channel, false, null, channel.size());
+    }
+
+    /**
+     * The entries, in central directory order.
+     */
+    public List<Entry> entries() {
+        return Collections.unmodifiableList(new ArrayList<>(this.entries.values()));
+    }
+
+    /**
+     * The entry {@code name}, {@code null} if the archive does not have it.
+     */
+    public Entry getEntry(String name) {
+        return this.entries.get(name);
+    }
+
+    /**
+     * Size in bytes of the archive.
+     */
+    public long size() {
+        return this.size;
+    }
+
+    /**
+     * Offset of the central directory, where the data of the last entry ends.
+     */
+    public long getCentralDirectoryOffset() {
+        return this.centralDirectoryOffset;
+    }
+
+    /**
+     * Uncompressed content of {@code entry}.
+     */
+    public byte[] read(Entry entry) throws IOException {
+        if (entry.size() > Integer.MAX_VALUE - 8) {
+            throw new ZipException("La entrada " + entry.name() + " es demasiado grande para leerla en memoria");
+        }
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream((int) entry.size());
+        this.transferTo(entry, content);
+        return content.toByteArray();
+    }
+
+    /**
+     * Writes the uncompressed content of {@code entry} to {@code out}, reading and inflating it in chunks so large
+     * entries are not held in memory. Entries can be transferred from several threads at once.
+     */
+    public void transferTo(Entry entry, OutputStream out) throws IOException {
+        if (entry.method() == ZipRewriter.STORED) {
+            this.transferRaw(entry, Channels.newChannel(out));
+            return;
+        }
+        if (entry.method() != ZipRewriter.DEFLATED) {
+            throw new ZipException("Método de compresión " + entry.method() + " no soportado en " + entry.name());
+        }
+
+        byte[] chunk = new byte[(int) Math.min(TRANSFER_CHUNK, Math.max(1, entry.size()))];
+        long[] written = {0};
+        Inflater inflater = new Inflater(true);
+        try {
+            this.forEachChunk(entry.dataOffset(), entry.compressedSize(), data -> {
+                inflater.setInput(data);
+                while (!inflater.finished() && !inflater.needsInput()) {
+                    int inflated = inflate(inflater, chunk, entry);
+                    written[0] += inflated;
+                    if (written[0] > entry.size()) {
+                        throw new ZipException("La entrada " + entry.name() + " está dañada: es mayor que su tamaño");
+                    }
+                    out.write(chunk, 0, inflated);
+                }
+            });
+            if (!inflater.finished() || written[0] != entry.size()) {
+                throw new ZipException("La entrada " + entry.name() + " está truncada");
+            }
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Writes the compressed bytes of {@code entry}, as stored in the archive, to {@code target} in chunks.
+     */
+    public void transferRaw(Entry entry, WritableByteChannel target) throws IOException {
+        this.forEachChunk(entry.dataOffset(), entry.compressedSize(), data -> {
+            while (data.hasRemaining()) {
+                target.write(data);
+            }
+        });
+    }
+
+    /**
+     * Writes the bytes of the archive from {@code offset} to the end to {@code target} in chunks.
+     */
+    void transferTail(long offset, WritableByteChannel target) throws IOException {
+        this.forEachChunk(offset, this.size - offset, data -> {
+            while (data.hasRemaining()) {
+                target.write(data);
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.entries.clear();
+        if (this.ownsChannel) {
+            this.channel.close();
+        }
+    }
+
+    private void readCentralDirectory() throws IOException {
+        long end = this.findEnd();
+        ByteBuffer record = this.region(end, END_SIZE);
+        int count = Short.toUnsignedInt(record.getShort(10));
+        long directorySize = Integer.toUnsignedLong(record.getInt(12));
+        long directoryOffset = Integer.toUnsignedLong(record.getInt(16));
+        if (Short.toUnsignedInt(record.getShort(4)) != 0 || count != Short.toUnsignedInt(record.getShort(8))) {
+            throw new ZipException("Los archivos zip divididos en varios discos no están soportados");
+        }
+        if (count == 0xFFFF || directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL) {
+            throw new ZipException("Los archivos zip ZIP64 no están soportados");
+        }
+        if (directoryOffset + directorySize > end) {
+            throw new ZipException("El directorio central está fuera del archivo");
+        }
+
+        this.centralDirectoryOffset = directoryOffset;
+        ByteBuffer directory = this.region(directoryOffset, (int) directorySize);
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            if (position + CENTRAL_HEADER_SIZE > directorySize || directory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Entrada " + i + " del directorio central inválida");
+            }
+
+            int flags = Short.toUnsignedInt(directory.getShort(position + 8));
+            int method = Short.toUnsignedInt(directory.getShort(position + 10));
+            int time = Short.toUnsignedInt(directory.getShort(position + 12));
+            int date = Short.toUnsignedInt(directory.getShort(position + 14));
+            long crc = Integer.toUnsignedLong(directory.getInt(position + 16));
+            long compressedSize = Integer.toUnsignedLong(directory.getInt(position + 20));
+            long size = Integer.toUnsignedLong(directory.getInt(position + 24));
+            int nameLength = Short.toUnsignedInt(directory.getShort(position + 28));
+            int extraLength = Short.toUnsignedInt(directory.getShort(position + 30));
+            int commentLength = Short.toUnsignedInt(directory.getShort(position + 32));
+            int externalAttributes = directory.getInt(position + 38);
+            long localHeaderOffset = Integer.toUnsignedLong(directory.getInt(position + 42));
+            if (compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || localHeaderOffset == 0xFFFFFFFFL) {
+                throw new ZipException("Los archivos zip ZIP64 no están soportados");
+            }
+            if (position + CENTRAL_HEADER_SIZE + nameLength > directorySize) {
+                throw new ZipException("Entrada " + i + " del directorio central inválida");
+            }
+
+            byte[] rawName = new byte[nameLength];
+            directory.get(position + CENTRAL_HEADER_SIZE, rawName);
+            String name = new String(rawName, (flags & UTF8_FLAG) != 0 ? StandardCharsets.UTF_8 : LEGACY_CHARSET);
+
+            // Los datos empiezan tras la cabecera local, cuyo campo extra puede no coincidir con el del directorio
+            if (localHeaderOffset + LOCAL_HEADER_SIZE > directoryOffset) {
+                throw new ZipException("Cabecera local de " + name + " inválida");
+            }
+            ByteBuffer localHeader = this.region(localHeaderOffset, LOCAL_HEADER_SIZE);
+            if (localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                throw new ZipException("Cabecera local de " + name + " inválida");
+            }
+            long dataOffset = localHeaderOffset + LOCAL_HEADER_SIZE
+                    + Short.toUnsignedInt(localHeader.getShort(26)) + Short.toUnsignedInt(localHeader.getShort(28));
+            if (dataOffset + compressedSize > directoryOffset) {
+                throw new ZipException("Los datos de " + name + " están fuera del archivo");
+            }
+
+            this.entries.put(name, new Entry(name, rawName, flags, method, time, date, crc, compressedSize, size,
+                    externalAttributes, localHeaderOffset, dataOffset));
+            position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+    }
+
+    private long findEnd() throws IOException {
+        if (this.size < END_SIZE) {
+            throw new ZipException("No es un archivo zip o está incompleto");
+        }
+
+        // El registro final está en los últimos bytes, seguido como mucho por un comentario
+        int tailLength = (int) Math.min(this.size, END_SIZE + MAX_COMMENT_LENGTH);
+        long tailOffset = this.size - tailLength;
+        ByteBuffer tail = this.region(tailOffset, tailLength);
+        for (int position = tailLength - END_SIZE; position >= 0; position--) {
+            if (tail.getInt(position) == END_SIGNATURE
+                    && position + END_SIZE + Short.toUnsignedInt(tail.getShort(position + 20)) == tailLength) {
+                return tailOffset + position;
+            }
+        }
+
+        throw new ZipException("No es un archivo zip o está incompleto");
+    }
+
+    private static int inflate(Inflater inflater, byte[] chunk, Entry entry) throws ZipException {
+        try {
+            int inflated = inflater.inflate(chunk);
+            if (inflated == 0 && inflater.needsDictionary()) {
+                throw new ZipException("La entrada " + entry.name() + " está dañada: requiere un diccionario");
+            }
+            return inflated;
+        } catch (DataFormatException e) {
+            throw new ZipException("La entrada " + entry.name() + " está dañada: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Passes the bytes of the archive from {@code offset} to {@code consumer} in chunks of at most
+     * {@value #TRANSFER_CHUNK} bytes. Through the channel the chunks are read into one buffer, reused for every chunk,
+     * so each must be consumed before the next.
+     */
+    private void forEachChunk(long offset, long length, ChunkConsumer consumer) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > this.size) {
+            throw new ZipException("Lectura fuera del archivo zip");
+        }
+
+        long end = offset + length;
+        if (this.buffer != null) {
+            for (long position = offset; position < end; position += TRANSFER_CHUNK) {
+                consumer.accept(this.region(position, (int) Math.min(TRANSFER_CHUNK, end - position)));
+            }
+            return;
+        }
+
+        ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(TRANSFER_CHUNK, Math.max(1, length)));
+        for (long position = offset; position < end; ) {
+            chunk.clear().limit((int) Math.min(chunk.capacity(), end - position));
+            while (chunk.hasRemaining()) {
+                if (this.channel.read(chunk, position + chunk.position()) < 0) {
+                    throw new EOFException("Fin inesperado del archivo zip");
+                }
+            }
+            chunk.flip();
+            position += chunk.remaining();
+            consumer.accept(chunk);
+        }
+    }
+
+    private ByteBuffer region(long offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > this.size) {
+            throw new ZipException("Lectura fuera del archivo zip");
+        }
+        if (this.buffer != null) {
+            return this.buffer.slice((int) offset, length).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        ByteBuffer region = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (region.hasRemaining()) {
+            if (this.channel.read(region, offset + region.position()) < 0) {
+                throw new EOFException("Fin inesperado del archivo zip");
+            }
+        }
+        return region.flip();
+    }
+
+    private interface ChunkConsumer {
+        void accept(ByteBuffer chunk) throws IOException;
+    }
+
+    /**
+     * An entry of the central directory. {@code rawName} keeps the bytes of the name so a copy of the entry stays
+     * byte for byte the same whatever its encoding.
+     */
+    public record Entry(String name, byte[] rawName, int flags, int method, int time, int date, long crc,
+                        long compressedSize, long size, int externalAttributes, long localHeaderOffset,
+                        long dataOffset) {
+
+        public boolean isDirectory() {
+            return this.name.endsWith("/");
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package cr.poc.firmador;
+
+import cr.poc.firmador.card.CardSignInfo;
+import eu.europa.esig.dss.token.Pkcs12SignatureToken;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throwaway PKCS#12 signers for tests and benchmarks: a self-signed RSA certificate valid for a month, with the key
+ * usages of a signing card, so no card, CA or revocation service is needed.
+ */
+public final class TestKeyStores {
+    public static final String PASSWORD = "test";
+
+    private TestKeyStores() {
+    }
+
+    /**
+     * Writes a PKCS#12 key store with a new key and self-signed certificate for {@code commonName} to {@code path},
+     * protected with {@link #PASSWORD}.
+     */
+    public static Path createKeyStore(Path path, String commonName) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        X500Name subject = new X500Name("CN=" + commonName);
+        Date notBefore = new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1));
+        Date notAfter = new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(30));
+        X509Certificate certificate = new JcaX509CertificateConverter().getCertificate(
+                new JcaX509v3CertificateBuilder(subject, BigInteger.valueOf(System.nanoTime()), notBefore, notAfter, subject, keyPair.getPublic())
+                        .addExtension(Extension.basicConstraints, false, new BasicConstraints(false))
+                        .addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.digitalSignature | KeyUsage.nonRepudiation))
+                        .build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(null, null);
+        keyStore.setKeyEntry("signer", keyPair.getPrivate(), PASSWORD.toCharArray(), new Certificate[]{certificate});
+        try (OutputStream out = Files.newOutputStream(path)) {
+            keyStore.store(out, PASSWORD.toCharArray());
+        }
+
+        return path;
+    }
+
+    /**
+     * A new key store at {@code path}, as a card the signers can use with its PIN already set.
+     */
+    public static CardSignInfo createCard(Path path) throws Exception {
+        createKeyStore(path, "Firmador Test");
+        CardSignInfo card = new CardSignInfo(CardSignInfo.PKCS12TYPE, path.toString(), path.getFileName().toString());
+        card.setPin(new KeyStore.PasswordProtection(PASSWORD.toCharArray()));
+        return card;
+    }
+
+    /**
+     * A new key store at {@code path}, opened as a DSS token.
+     */
+    public static Pkcs12SignatureToken createToken(Path path) throws Exception {
+        createKeyStore(path, "Firmador Test");
+        return new Pkcs12SignatureToken(path.toFile(), new KeyStore.PasswordProtection(PASSWORD.toCharArray()));
+    }
+}
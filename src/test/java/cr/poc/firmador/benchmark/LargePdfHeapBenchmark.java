@@ -0,0 +1,154 @@
+package cr.poc.firmador.benchmark;
+
+import cr.poc.firmador.TestKeyStores;
+import cr.poc.firmador.card.CardSignInfo;
+import cr.poc.firmador.sign.FirmadorPAdES;
+import eu.europa.esig.dss.model.DSSDocument;
+import eu.europa.esig.dss.model.FileDocument;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Peak heap used by a PAdES signature as the size of the PDF grows, with the default in-memory processing of
+ * {@link FirmadorPAdES} and with its large-document mode.
+ * <p>
+ * Not a unit test: it writes PDFs of hundreds of megabytes. Run it from the test classpath with a small heap so the
+ * difference shows, for example {@code java -Xmx256m -XX:+UseSerialGC ... LargePdfHeapBenchmark 32 128 512}; the
+ * arguments are the PDF sizes in MB. The document is signed at PAdES-BASELINE-B with a throwaway PKCS#12 key, so
+ * no card, TSA or revocation service is needed.
+ */
+public class LargePdfHeapBenchmark {
+    private static final long MEGABYTE = 1024L * 1024L;
+    private static final int IMAGE_SIDE = 2048;
+
+    public static void main(String[] args) throws Exception {
+        List<Integer> sizes = args.length == 0 ? List.of(32, 128, 256) : Arrays.stream(args).map(Integer::valueOf).toList();
+        Path workDir = Files.createTempDirectory("firmador-benchmark");
+        CardSignInfo card = TestKeyStores.createCard(workDir.resolve("benchmark.p12"));
+
+        System.out.printf("Max heap: %d MB%n", Runtime.getRuntime().maxMemory() / MEGABYTE);
+        System.out.printf("%-8s %-8s %14s %10s%n", "pdf MB", "mode", "peak heap MB", "ms");
+        try {
+            for (int size : sizes) {
+                Path pdf = createPdf(workDir.resolve("large-" + size + ".pdf"), size);
+                size = (int) (Files.size(pdf) / MEGABYTE);
+                for (boolean largeMode : List.of(false, true)) {
+                    run(pdf, size, largeMode, card, workDir.resolve("signed.pdf"));
+                }
+                Files.deleteIfExists(pdf);
+            }
+        } finally {
+            try (var files = Files.list(workDir)) {
+                for (Path file : files.toList()) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(workDir);
+        }
+        System.exit(0);
+    }
+
+    private static void run(Path pdf, int size, boolean largeMode, CardSignInfo card, Path output) throws Exception {
+        String mode = largeMode ? "large" : "default";
+        System.gc();
+        HeapSampler sampler = new HeapSampler();
+        sampler.start();
+        long start = System.nanoTime();
+        try (FirmadorPAdES signer = new FirmadorPAdES()) {
+            signer.setAugmentLater(true);
+            signer.setLargeDocumentMode(largeMode);
+            DSSDocument signed = signer.sign(new FileDocument(pdf.toFile()), card, "Benchmark", null, null, null, false);
+            if (signed == null) {
+                System.out.printf("%-8d %-8s %14s %10s%n", size, mode, "error", "-");
+                return;
+            }
+            signed.save(output.toString());
+        } catch (OutOfMemoryError e) {
+            System.out.printf("%-8d %-8s %14s %10s%n", size, mode, "OOM", "-");
+            return;
+        } finally {
+            sampler.interrupt();
+            sampler.join();
+            Files.deleteIfExists(output);
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.printf("%-8d %-8s %14d %10d%n", size, mode, sampler.peak / MEGABYTE, elapsed);
+    }
+
+    /**
+     * Samples the used heap every millisecond; the peak counters of the memory pools are only refreshed on garbage
+     * collections and miss short-lived buffers.
+     */
+    private static final class HeapSampler extends Thread {
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private volatile long peak;
+
+        private HeapSampler() {
+            super("heap-sampler");
+            this.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!this.isInterrupted()) {
+                this.peak = Math.max(this.peak, this.memory.getHeapMemoryUsage().getUsed());
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * PDF of about {@code sizeMb} MB made of pages holding an uncompressed image of random bytes, written through a
+     * scratch file so the generator itself does not need the heap it is measuring.
+     */
+    private static Path createPdf(Path path, int sizeMb) throws Exception {
+        int pages = Math.max(1, (int) (sizeMb * MEGABYTE / ((long) IMAGE_SIDE * IMAGE_SIDE)));
+        byte[] pixels = new byte[IMAGE_SIDE * IMAGE_SIDE];
+        Random random = new Random(sizeMb);
+        try (PDDocument document = new PDDocument(IOUtils.createTempFileOnlyStreamCache())) {
+            for (int i = 0; i < pages; i++) {
+                random.nextBytes(pixels);
+                PDStream stream = new PDStream(document);
+                try (OutputStream out = stream.createOutputStream()) {
+                    out.write(pixels);
+                }
+                PDImageXObject image = new PDImageXObject(stream, null);
+                image.setWidth(IMAGE_SIDE);
+                image.setHeight(IMAGE_SIDE);
+                image.setBitsPerComponent(8);
+                image.setColorSpace(PDDeviceGray.INSTANCE);
+                image.getCOSObject().setItem(COSName.SUBTYPE, COSName.IMAGE);
+
+                PDPage page = new PDPage(PDRectangle.A4);
+                document.addPage(page);
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.drawImage(image, 0, 0, PDRectangle.A4.getWidth(), PDRectangle.A4.getHeight());
+                }
+            }
+            document.save(path.toFile());
+        }
+
+        return path;
+    }
+}
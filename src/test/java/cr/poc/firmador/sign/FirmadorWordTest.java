@@ -0,0 +1,325 @@
+package cr.poc.firmador.sign;
+
+import cr.poc.firmador.TestKeyStores;
+import cr.poc.firmador.card.CardSignInfo;
+import cr.poc.firmador.settings.Settings;
+import cr.poc.firmador.settings.SettingsManager;
+import eu.europa.esig.dss.diagnostic.DiagnosticData;
+import eu.europa.esig.dss.diagnostic.SignatureWrapper;
+import eu.europa.esig.dss.enumerations.DigestAlgorithm;
+import eu.europa.esig.dss.enumerations.DigestMatcherType;
+import eu.europa.esig.dss.model.DSSDocument;
+import eu.europa.esig.dss.model.FileDocument;
+import eu.europa.esig.dss.model.InMemoryDocument;
+import eu.europa.esig.dss.model.TimestampBinary;
+import eu.europa.esig.dss.service.tsp.OnlineTSPSource;
+import eu.europa.esig.dss.spi.DSSUtils;
+import eu.europa.esig.dss.spi.validation.CommonCertificateVerifier;
+import eu.europa.esig.dss.utils.Utils;
+import eu.europa.esig.dss.validation.DocumentValidator;
+import eu.europa.esig.dss.validation.SignedDocumentValidator;
+import eu.europa.esig.dss.xml.utils.DomUtils;
+import eu.europa.esig.dss.xml.utils.XMLCanonicalizer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.bouncycastle.tsp.TimeStampRequestGenerator;
+import org.bouncycastle.tsp.TimeStampTokenGenerator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FirmadorWordTest {
+    private static final String CONTENT_TYPES = "[Content_Types].xml";
+    private static final String ORIGIN_RELS = "_xmlsignatures/_rels/origin.sigs.rels";
+    private static final String XMLDSIG_NS = "http://www.w3.org/2000/09/xmldsig#";
+    private static final String DIGITAL_SIGNATURE_NS = "http://schemas.openxmlformats.org/package/2006/digital-signature";
+    private static final String RELATIONSHIPS_NS = "http://schemas.openxmlformats.org/package/2006/relationships";
+
+    @TempDir
+    Path workDir;
+
+    private String xAdESLevel;
+
+    @BeforeEach
+    void useTimestampLevel() {
+        // Sin servicios de revocación en las pruebas, se sella con la TSA de prueba y no se llega a LTA
+        Settings settings = SettingsManager.getInstance().getAndCreateSettings();
+        this.xAdESLevel = settings.xAdESLevel;
+        settings.xAdESLevel = "T";
+    }
+
+    @AfterEach
+    void restoreLevel() {
+        SettingsManager.getInstance().getAndCreateSettings().xAdESLevel = this.xAdESLevel;
+    }
+
+    @Test
+    void addsASignatureAfterTheOnesThePackageHas() throws Exception {
+        Path document = createDocument(this.workDir.resolve("document.docx"));
+        CardSignInfo card = TestKeyStores.createCard(this.workDir.resolve("signer.p12"));
+        OnlineTSPSource tsa = createTsa();
+
+        assertTrue(signInPlace(document, card, tsa));
+        byte[] firstSignature;
+        try (ZipFile zip = new ZipFile(document.toFile())) {
+            firstSignature = readBytes(zip, "_xmlsignatures/sig1.xml");
+        }
+
+        assertTrue(signInPlace(document, card, tsa));
+
+        try (ZipFile zip = new ZipFile(document.toFile())) {
+            assertArrayEquals(firstSignature, readBytes(zip, "_xmlsignatures/sig1.xml"), "La primera firma no cambia");
+            assertNotNull(zip.getEntry("_xmlsignatures/sig2.xml"));
+
+            String originRels = new String(readBytes(zip, ORIGIN_RELS), StandardCharsets.UTF_8);
+            assertTrue(originRels.contains("Target=\"sig1.xml\""), originRels);
+            assertTrue(originRels.contains("Target=\"sig2.xml\""), originRels);
+            assertEquals(2, originRels.split("<Relationship ", -1).length - 1, originRels);
+
+            String contentTypes = new String(readBytes(zip, CONTENT_TYPES), StandardCharsets.UTF_8);
+            assertTrue(contentTypes.contains("PartName=\"/_xmlsignatures/sig1.xml\""), contentTypes);
+            assertTrue(contentTypes.contains("PartName=\"/_xmlsignatures/sig2.xml\""), contentTypes);
+        }
+    }
+
+    @Test
+    void signsEveryPartOfThePackage() throws Exception {
+        Path document = createDocument(this.workDir.resolve("document.docx"));
+        Path signed = this.workDir.resolve("signed.docx");
+        CardSignInfo card = TestKeyStores.createCard(this.workDir.resolve("signer.p12"));
+
+        try (FirmadorWord signer = new FirmadorWord()) {
+            signer.setTSPSource(createTsa());
+            DSSDocument signedDocument = signer.sign(new FileDocument(document.toFile()), card);
+            assertNotNull(signedDocument);
+            signedDocument.save(signed.toString());
+        }
+
+        try (ZipFile zip = new ZipFile(signed.toFile())) {
+            byte[] signature = readBytes(zip, "_xmlsignatures/sig1.xml");
+
+            // El objeto del paquete incrustado debe canonicalizarse igual que el que se firmó
+            DocumentValidator validator = SignedDocumentValidator.fromDocument(new InMemoryDocument(signature, "sig1.xml"));
+            validator.setCertificateVerifier(new CommonCertificateVerifier());
+            DiagnosticData diagnosticData = validator.validateDocument().getDiagnosticData();
+            assertEquals(1, diagnosticData.getSignatures().size());
+            SignatureWrapper wrapper = diagnosticData.getSignatures().get(0);
+            assertTrue(wrapper.isSignatureIntact());
+            assertTrue(wrapper.isSignatureValid());
+            assertEquals(1, wrapper.getTimestampList().size());
+            assertTrue(wrapper.getDigestMatchers().stream().anyMatch(matcher -> matcher.getType() == DigestMatcherType.OBJECT));
+            wrapper.getDigestMatchers().forEach(matcher -> assertTrue(matcher.isDataFound() && matcher.isDataIntact(), matcher.getType() + " " + matcher.getUri()));
+
+            // DSS no sigue las referencias del Manifest, así que se comprueban contra las partes del paquete firmado
+            Element manifest = (Element) DomUtils.buildDOM(signature).getElementsByTagNameNS(XMLDSIG_NS, "Manifest").item(0);
+            assertNotNull(manifest);
+            List<String> referenced = new ArrayList<>();
+            NodeList references = manifest.getElementsByTagNameNS(XMLDSIG_NS, "Reference");
+            for (int i = 0; i < references.getLength(); i++) {
+                Element reference = (Element) references.item(i);
+                String uri = reference.getAttribute("URI");
+                String part = uri.substring(1, uri.indexOf('?'));
+                referenced.add(part);
+
+                DigestAlgorithm digestAlgorithm = DigestAlgorithm.forXML(((Element) reference.getElementsByTagNameNS(XMLDSIG_NS, "DigestMethod").item(0)).getAttribute("Algorithm"));
+                String digestValue = reference.getElementsByTagNameNS(XMLDSIG_NS, "DigestValue").item(0).getTextContent();
+                byte[] content = readBytes(zip, part);
+                byte[] digested = part.endsWith(".rels") ? relationshipTransform(reference, content) : content;
+                assertEquals(digestValue, Utils.toBase64(DSSUtils.digest(digestAlgorithm, digested)), part);
+            }
+
+            List<String> parts = Collections.list(zip.entries()).stream()
+                    .filter(entry -> !entry.isDirectory())
+                    .map(ZipEntry::getName)
+                    .filter(name -> !name.equals(CONTENT_TYPES) && !name.startsWith("_xmlsignatures/"))
+                    .sorted()
+                    .toList();
+            assertEquals(parts, referenced);
+        }
+    }
+
+    @Test
+    void keepsTheInputWhenSavedOverIt() throws Exception {
+        Path document = createDocument(this.workDir.resolve("document.docx"));
+        byte[] original = Files.readAllBytes(document);
+        CardSignInfo card = TestKeyStores.createCard(this.workDir.resolve("signer.p12"));
+
+        try (FirmadorWord signer = new FirmadorWord()) {
+            signer.setTSPSource(createTsa());
+            DSSDocument signedDocument = signer.sign(new FileDocument(document.toFile()), card);
+            assertNotNull(signedDocument);
+            assertThrows(IOException.class, () -> signedDocument.save(document.toString()));
+            assertArrayEquals(original, Files.readAllBytes(document));
+
+            // El paquete firmado se lee mientras se genera
+            try (InputStream is = signedDocument.openStream()) {
+                Files.write(this.workDir.resolve("signed.docx"), is.readAllBytes());
+            }
+        }
+
+        try (ZipFile zip = new ZipFile(this.workDir.resolve("signed.docx").toFile())) {
+            assertNotNull(zip.getEntry("_xmlsignatures/sig1.xml"));
+        }
+    }
+
+    /**
+     * Output of the relationship transform of {@code reference} over the relationship part {@code rels}: the
+     * relationships it selects by SourceId, sorted by Id, with TargetMode made explicit and canonicalized.
+     */
+    private static byte[] relationshipTransform(Element reference, byte[] rels) {
+        Set<String> selected = new HashSet<>();
+        NodeList sources = reference.getElementsByTagNameNS(DIGITAL_SIGNATURE_NS, "RelationshipReference");
+        for (int i = 0; i < sources.getLength(); i++) {
+            selected.add(((Element) sources.item(i)).getAttribute("SourceId"));
+        }
+
+        NodeList relationships = DomUtils.buildDOM(rels).getElementsByTagNameNS(RELATIONSHIPS_NS, "Relationship");
+        List<Element> kept = new ArrayList<>();
+        for (int i = 0; i < relationships.getLength(); i++) {
+            Element relationship = (Element) relationships.item(i);
+            if (selected.contains(relationship.getAttribute("Id"))) {
+                kept.add(relationship);
+            }
+        }
+        assertEquals(selected.size(), kept.size(), "Todas las relaciones firmadas siguen en el paquete");
+        kept.sort(Comparator.comparing(relationship -> relationship.getAttribute("Id")));
+
+        StringBuilder xml = new StringBuilder("<Relationships xmlns=\"" + RELATIONSHIPS_NS + "\">");
+        for (Element relationship : kept) {
+            String targetMode = relationship.getAttribute("TargetMode");
+            xml.append("<Relationship Id=\"").append(relationship.getAttribute("Id"))
+                    .append("\" Target=\"").append(relationship.getAttribute("Target"))
+                    .append("\" TargetMode=\"").append(targetMode.isEmpty() ? "Internal" : targetMode)
+                    .append("\" Type=\"").append(relationship.getAttribute("Type")).append("\"/>");
+        }
+        xml.append("</Relationships>");
+        return XMLCanonicalizer.createInstance(XMLCanonicalizer.DEFAULT_XMLDSIG_C14N_METHOD).canonicalize(xml.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static boolean signInPlace(Path document, CardSignInfo card, OnlineTSPSource tsa) {
+        try (FirmadorWord signer = new FirmadorWord()) {
+            signer.setTSPSource(tsa);
+            return signer.signInPlace(document.toFile(), card);
+        }
+    }
+
+    static Path createDocument(Path path) throws IOException {
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(path))) {
+            addEntry(zip, CONTENT_TYPES, "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+                    + "<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">"
+                    + "<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>"
+                    + "<Default Extension=\"xml\" ContentType=\"application/xml\"/>"
+                    + "<Override PartName=\"/word/document.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.wordprocessingml.document.main+xml\"/>"
+                    + "<Override PartName=\"/word/styles.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.wordprocessingml.styles+xml\"/>"
+                    + "</Types>");
+            addEntry(zip, "_rels/.rels", "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+                    + "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+                    + "<Relationship Id=\"rId1\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/officeDocument\" Target=\"word/document.xml\"/>"
+                    + "</Relationships>");
+            addEntry(zip, "word/document.xml", "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+                    + "<w:document xmlns:w=\"http://schemas.openxmlformats.org/wordprocessingml/2006/main\">"
+                    + "<w:body><w:p><w:r><w:t>Documento de prueba</w:t></w:r></w:p></w:body></w:document>");
+            addEntry(zip, "word/_rels/document.xml.rels", "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+                    + "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+                    + "<Relationship Id=\"rId1\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/styles\" Target=\"styles.xml\"/>"
+                    + "</Relationships>");
+            addEntry(zip, "word/styles.xml", "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+                    + "<w:styles xmlns:w=\"http://schemas.openxmlformats.org/wordprocessingml/2006/main\"/>");
+        }
+
+        return path;
+    }
+
+    /**
+     * A TSA that answers locally with a self-signed timestamping certificate.
+     */
+    static OnlineTSPSource createTsa() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        X500Name subject = new X500Name("CN=Firmador Test TSA");
+        Date notBefore = new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1));
+        Date notAfter = new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(30));
+        X509Certificate certificate = new JcaX509CertificateConverter().getCertificate(
+                new JcaX509v3CertificateBuilder(subject, BigInteger.ONE, notBefore, notAfter, subject, keyPair.getPublic())
+                        .addExtension(Extension.extendedKeyUsage, true, new ExtendedKeyUsage(KeyPurposeId.id_kp_timeStamping))
+                        .build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+
+        TimeStampTokenGenerator tokens = new TimeStampTokenGenerator(
+                new JcaSimpleSignerInfoGeneratorBuilder().build("SHA256withRSA", keyPair.getPrivate(), certificate),
+                new JcaDigestCalculatorProviderBuilder().build().get(new AlgorithmIdentifier(new ASN1ObjectIdentifier("1.3.14.3.2.26"))),
+                new ASN1ObjectIdentifier("1.2.3.4"));
+        tokens.addCertificates(new JcaCertStore(List.of(certificate)));
+
+        return new OnlineTSPSource() {
+            @Override
+            public synchronized TimestampBinary getTimeStampResponse(DigestAlgorithm digestAlgorithm, byte[] digest) {
+                try {
+                    TimeStampRequestGenerator requests = new TimeStampRequestGenerator();
+                    requests.setCertReq(true);
+                    return new TimestampBinary(tokens.generate(requests.generate(new ASN1ObjectIdentifier(digestAlgorithm.getOid()), digest),
+                            BigInteger.valueOf(System.nanoTime()), new Date()).getEncoded());
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+
+    private static void addEntry(ZipOutputStream zip, String name, String content) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(content.getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+    }
+
+    static byte[] readBytes(ZipFile zip, String name) throws IOException {
+        ZipEntry entry = zip.getEntry(name);
+        assertNotNull(entry, name);
+        try (InputStream is = zip.getInputStream(entry)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            is.transferTo(out);
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package cr.poc.firmador.zip;
+
+import cr.poc.firmador.TestKeyStores;
+import eu.europa.esig.dss.asic.xades.ASiCWithXAdESSignatureParameters;
+import eu.europa.esig.dss.asic.xades.signature.ASiCWithXAdESService;
+import eu.europa.esig.dss.diagnostic.DiagnosticData;
+import eu.europa.esig.dss.diagnostic.SignatureWrapper;
+import eu.europa.esig.dss.enumerations.ASiCContainerType;
+import eu.europa.esig.dss.enumerations.DigestAlgorithm;
+import eu.europa.esig.dss.enumerations.SignatureLevel;
+import eu.europa.esig.dss.enumerations.SignaturePackaging;
+import eu.europa.esig.dss.model.DSSDocument;
+import eu.europa.esig.dss.model.FileDocument;
+import eu.europa.esig.dss.model.InMemoryDocument;
+import eu.europa.esig.dss.model.SignatureValue;
+import eu.europa.esig.dss.model.ToBeSigned;
+import eu.europa.esig.dss.spi.DSSUtils;
+import eu.europa.esig.dss.spi.validation.CommonCertificateVerifier;
+import eu.europa.esig.dss.token.DSSPrivateKeyEntry;
+import eu.europa.esig.dss.token.Pkcs12SignatureToken;
+import eu.europa.esig.dss.validation.DocumentValidator;
+import eu.europa.esig.dss.validation.SignedDocumentValidator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ZipAppenderTest {
+    private static final String CONTENT_TYPES = "[Content_Types].xml";
+    private static final String MEDIA = "word/media/image1.bin";
+
+    @TempDir
+    Path workDir;
+
+    @Test
+    void appendsAndSupersedesEntriesWithoutRewritingTheArchive() throws Exception {
+        byte[] media = new byte[1024 * 1024];
+        new Random(1).nextBytes(media);
+        Path archive = this.workDir.resolve("package.docx");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(archive))) {
+            addEntry(zip, CONTENT_TYPES, "<Types/>".getBytes(StandardCharsets.UTF_8));
+            addEntry(zip, "word/document.xml", "<document/>".getBytes(StandardCharsets.UTF_8));
+            addStoredEntry(zip, MEDIA, media);
+        }
+        byte[] original = Files.readAllBytes(archive);
+
+        long directoryOffset;
+        try (ZipAppender appender = ZipAppender.open(archive)) {
+            directoryOffset = appender.getSource().getCentralDirectoryOffset();
+            appender.add(CONTENT_TYPES, "<Types><Override/></Types>".getBytes(StandardCharsets.UTF_8));
+            appender.addDirectory("_xmlsignatures/");
+            appender.add("_xmlsignatures/sig1.xml", "<Signature/>".getBytes(StandardCharsets.UTF_8));
+            appender.finish();
+        }
+
+        byte[] updated = Files.readAllBytes(archive);
+        assertArrayEquals(Arrays.copyOf(original, (int) directoryOffset), Arrays.copyOf(updated, (int) directoryOffset));
+        assertTrue(updated.length - original.length < 1024, "Sólo se agregan las entradas nuevas y el directorio");
+
+        try (ZipFile zip = new ZipFile(archive.toFile())) {
+            assertEquals(List.of(CONTENT_TYPES, "word/document.xml", MEDIA, "_xmlsignatures/", "_xmlsignatures/sig1.xml").stream().sorted().toList(),
+                    Collections.list(zip.entries()).stream().map(ZipEntry::getName).sorted().toList());
+            assertEquals("<Types><Override/></Types>", read(zip, CONTENT_TYPES));
+            assertEquals("<Signature/>", read(zip, "_xmlsignatures/sig1.xml"));
+            try (InputStream is = zip.getInputStream(zip.getEntry(MEDIA))) {
+                assertArrayEquals(media, is.readAllBytes());
+            }
+        }
+
+        // Un lector secuencial encuentra todas las entradas, también la reemplazada
+        List<String> localEntries = new ArrayList<>();
+        try (ZipInputStream zip = new ZipInputStream(Files.newInputStream(archive))) {
+            for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+                zip.readAllBytes();
+                localEntries.add(entry.getName());
+            }
+        }
+        assertEquals(List.of(CONTENT_TYPES, "word/document.xml", MEDIA, CONTENT_TYPES, "_xmlsignatures/", "_xmlsignatures/sig1.xml"), localEntries);
+    }
+
+    @Test
+    void leavesTheArchiveUntouchedIfNotFinished() throws Exception {
+        Path archive = this.workDir.resolve("package.zip");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(archive))) {
+            addEntry(zip, "a.txt", "a".getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] original = Files.readAllBytes(archive);
+
+        try (ZipAppender appender = ZipAppender.open(archive)) {
+            appender.add("b.txt", "b".getBytes(StandardCharsets.UTF_8));
+        }
+
+        assertArrayEquals(original, Files.readAllBytes(archive));
+    }
+
+    @Test
+    void restoresTheCentralDirectoryOfAnInterruptedUpdate() throws Exception {
+        Path archive = this.workDir.resolve("package.zip");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(archive))) {
+            addEntry(zip, "a.txt", "a".getBytes(StandardCharsets.UTF_8));
+            addEntry(zip, "b.txt", "b".getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] original = Files.readAllBytes(archive);
+        Path sidecar = archive.resolveSibling(archive.getFileName() + ZipAppender.SIDECAR_SUFFIX);
+
+        try (ZipAppender appender = ZipAppender.open(archive)) {
+            appender.add("c.txt", "c".getBytes(StandardCharsets.UTF_8));
+            appender.finish();
+        }
+        assertTrue(Files.notExists(sidecar), "La copia del directorio se borra al terminar");
+
+        // Un proceso que murió a medio escribir: el directorio original sólo queda en la copia
+        int directoryOffset;
+        try (ZipSource source = ZipSource.of(original)) {
+            directoryOffset = (int) source.getCentralDirectoryOffset();
+        }
+        Files.write(sidecar, sidecar(original, directoryOffset));
+        byte[] interrupted = Arrays.copyOf(original, original.length + 10);
+        Arrays.fill(interrupted, directoryOffset, interrupted.length, (byte) 0x55);
+        Files.write(archive, interrupted);
+
+        try (ZipAppender appender = ZipAppender.open(archive)) {
+            assertEquals(2, appender.getSource().entries().size());
+        }
+        assertArrayEquals(original, Files.readAllBytes(archive));
+        assertTrue(Files.notExists(sidecar));
+    }
+
+    @Test
+    void discardsTheSidecarOfAnotherFile() throws Exception {
+        Path archive = this.workDir.resolve("package.zip");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(archive))) {
+            addEntry(zip, "a.txt", "a".getBytes(StandardCharsets.UTF_8));
+            addEntry(zip, "b.txt", "b".getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] previous = Files.readAllBytes(archive);
+        Path sidecar = archive.resolveSibling(archive.getFileName() + ZipAppender.SIDECAR_SUFFIX);
+        int directoryOffset;
+        try (ZipSource source = ZipSource.of(previous)) {
+            directoryOffset = (int) source.getCentralDirectoryOffset();
+        }
+        Files.write(sidecar, sidecar(previous, directoryOffset));
+
+        // El archivo se reemplazó por otro, más corto, después de la actualización interrumpida
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(archive))) {
+            addEntry(zip, "c.txt", "c".getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] replaced = Files.readAllBytes(archive);
+
+        try (ZipAppender appender = ZipAppender.open(archive)) {
+            assertEquals(List.of("c.txt"), appender.getSource().entries().stream().map(ZipSource.Entry::name).toList());
+        }
+        assertArrayEquals(replaced, Files.readAllBytes(archive));
+        assertTrue(Files.notExists(sidecar));
+    }
+
+    /**
+     * The sidecar {@link ZipAppender} saves before overwriting the central directory of {@code archive}.
+     */
+    private static byte[] sidecar(byte[] archive, int directoryOffset) {
+        CRC32 directoryCrc = new CRC32();
+        directoryCrc.update(archive, directoryOffset, archive.length - directoryOffset);
+        int fingerprintStart = Math.max(0, directoryOffset - 64 * 1024);
+        CRC32 fingerprint = new CRC32();
+        fingerprint.update(archive, fingerprintStart, directoryOffset - fingerprintStart);
+
+        ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        saved.writeBytes(ByteBuffer.allocate(ZipAppender.SIDECAR_HEADER_SIZE).putLong(directoryOffset).putLong(archive.length)
+                .putLong(directoryCrc.getValue()).putLong(fingerprint.getValue()).array());
+        saved.writeBytes(Arrays.copyOfRange(archive, directoryOffset, archive.length));
+        return saved.toByteArray();
+    }
+
+    @Test
+    void addsAnotherSignatureToAnASiCContainerInPlace() throws Exception {
+        Pkcs12SignatureToken token = TestKeyStores.createToken(this.workDir.resolve("signer.p12"));
+        DSSPrivateKeyEntry key = token.getKeys().get(0);
+        Path container = this.workDir.resolve("container.asice");
+        byte[] payload = new byte[256 * 1024];
+        new Random(2).nextBytes(payload);
+
+        try (token) {
+            Files.write(container, DSSUtils.toByteArray(sign(new InMemoryDocument(payload, "payload.bin"), token, key)));
+            long sizeWithOneSignature = Files.size(container);
+
+            DSSDocument signedTwice = sign(new FileDocument(container.toFile()), token, key);
+            try (ZipAppender appender = ZipAppender.open(container);
+                 ZipSource signedContainer = ZipSource.of(DSSUtils.toByteArray(signedTwice))) {
+                assertEquals(1, appender.copyChanges(signedContainer), "Sólo se agrega el archivo de la segunda firma");
+                appender.finish();
+            }
+            assertTrue(Files.size(container) - sizeWithOneSignature < 16 * 1024);
+        }
+
+        try (ZipFile zip = new ZipFile(container.toFile())) {
+            assertEquals("mimetype", zip.entries().nextElement().getName());
+            try (InputStream is = zip.getInputStream(zip.getEntry("payload.bin"))) {
+                assertArrayEquals(payload, is.readAllBytes());
+            }
+        }
+
+        DocumentValidator validator = SignedDocumentValidator.fromDocument(new FileDocument(container.toFile()));
+        validator.setCertificateVerifier(new CommonCertificateVerifier());
+        DiagnosticData diagnosticData = validator.validateDocument().getDiagnosticData();
+        assertEquals(2, diagnosticData.getSignatures().size());
+        for (SignatureWrapper signature : diagnosticData.getSignatures()) {
+            assertTrue(signature.isSignatureIntact(), signature.getId());
+            assertTrue(signature.isSignatureValid(), signature.getId());
+            signature.getDigestMatchers().forEach(matcher -> assertTrue(matcher.isDataFound() && matcher.isDataIntact(), matcher.getUri()));
+        }
+    }
+
+    private static DSSDocument sign(DSSDocument document, Pkcs12SignatureToken token, DSSPrivateKeyEntry key) {
+        ASiCWithXAdESSignatureParameters parameters = new ASiCWithXAdESSignatureParameters();
+        parameters.setSignatureLevel(SignatureLevel.XAdES_BASELINE_B);
+        parameters.setSignaturePackaging(SignaturePackaging.ENVELOPED);
+        parameters.setDigestAlgorithm(DigestAlgorithm.SHA256);
+        parameters.setSigningCertificate(key.getCertificate());
+        parameters.aSiC().setContainerType(ASiCContainerType.ASiC_E);
+
+        ASiCWithXAdESService service = new ASiCWithXAdESService(new CommonCertificateVerifier());
+        ToBeSigned dataToSign = service.getDataToSign(document, parameters);
+        SignatureValue signatureValue = token.sign(dataToSign, parameters.getDigestAlgorithm(), key);
+        return service.signDocument(document, parameters, signatureValue);
+    }
+
+    private static void addEntry(ZipOutputStream zip, String name, byte[] content) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(content);
+        zip.closeEntry();
+    }
+
+    private static void addStoredEntry(ZipOutputStream zip, String name, byte[] content) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(content.length);
+        entry.setCrc(crc.getValue());
+        zip.putNextEntry(entry);
+        zip.write(content);
+        zip.closeEntry();
+    }
+
+    private static String read(ZipFile zip, String name) throws IOException {
+        try (InputStream is = zip.getInputStream(zip.getEntry(name))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            is.transferTo(out);
+            return out.toString(StandardCharsets.UTF_8);
+        }
+    }
+}